@@ -0,0 +1,178 @@
+package org.elasticsearch.benchmark.xterms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In process stand-in for redis, speaking just enough of the protocol for the commands the plugin sends on sets:
+ * <tt>SMEMBERS</tt>, <tt>SSCAN</tt> (with <tt>COUNT</tt>), plus <tt>PING</tt> and <tt>SELECT</tt> for the client.
+ */
+public class FakeRedisServer implements Runnable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, List<byte[]>> sets = new HashMap<String, List<byte[]>>();
+
+    private final ServerSocket serverSocket;
+
+    private final Thread thread;
+
+    public FakeRedisServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.thread = new Thread(this, "fake-redis");
+        this.thread.setDaemon(true);
+    }
+
+    public FakeRedisServer addSet(String key, long[] members) {
+        List<byte[]> set = new ArrayList<byte[]>(members.length);
+        for (long member : members) {
+            set.add(Long.toString(member).getBytes(UTF8));
+        }
+        sets.put(key, set);
+        return this;
+    }
+
+    public FakeRedisServer start() {
+        thread.start();
+        return this;
+    }
+
+    public String url() {
+        return "redis://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread connection = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "fake-redis-connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            List<String> command;
+            while ((command = readCommand(in)) != null) {
+                reply(command, out);
+                if (in.available() == 0) {
+                    // pipelined commands are answered together
+                    out.flush();
+                }
+            }
+            socket.close();
+        } catch (IOException e) {
+            // connection dropped
+        }
+    }
+
+    private void reply(List<String> command, OutputStream out) throws IOException {
+        String name = command.get(0).toLowerCase();
+        if ("ping".equals(name)) {
+            out.write("+PONG\r\n".getBytes(UTF8));
+        } else if ("select".equals(name)) {
+            out.write("+OK\r\n".getBytes(UTF8));
+        } else if ("smembers".equals(name)) {
+            List<byte[]> set = set(command.get(1));
+            writeArray(out, set, 0, set.size());
+        } else if ("sscan".equals(name)) {
+            List<byte[]> set = set(command.get(1));
+            int cursor = Integer.parseInt(command.get(2));
+            int count = 10;
+            for (int i = 3; i < command.size() - 1; i++) {
+                if ("count".equalsIgnoreCase(command.get(i))) {
+                    count = Integer.parseInt(command.get(i + 1));
+                }
+            }
+            int end = Math.min(set.size(), cursor + count);
+            byte[] next = Integer.toString(end == set.size() ? 0 : end).getBytes(UTF8);
+            out.write("*2\r\n".getBytes(UTF8));
+            writeBulk(out, next);
+            writeArray(out, set, cursor, end);
+        } else {
+            out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(UTF8));
+        }
+    }
+
+    private List<byte[]> set(String key) {
+        List<byte[]> set = sets.get(key);
+        return set != null ? set : new ArrayList<byte[]>();
+    }
+
+    private static void writeArray(OutputStream out, List<byte[]> elements, int from, int to) throws IOException {
+        out.write(("*" + (to - from) + "\r\n").getBytes(UTF8));
+        for (int i = from; i < to; i++) {
+            writeBulk(out, elements.get(i));
+        }
+    }
+
+    private static void writeBulk(OutputStream out, byte[] bytes) throws IOException {
+        out.write(("$" + bytes.length + "\r\n").getBytes(UTF8));
+        out.write(bytes);
+        out.write("\r\n".getBytes(UTF8));
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        int size = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            readLine(in);
+            command.add(new String(bytes, UTF8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') {
+                in.read(); // \n
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,58 @@
+package org.elasticsearch.benchmark.xterms;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.mapper.core.StringFieldMapper;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Shared setup of the benchmarks: field mappers, a fetch service without caching limits getting in the way, and
+ * reproducible random terms
+ */
+public class XTermsFixtures {
+
+    public static final String FIELD = "id";
+
+    public static final long SEED = 42;
+
+    public static FieldMapper mapper(String type) {
+        Mapper.BuilderContext context = new Mapper.BuilderContext(ImmutableSettings.EMPTY, new ContentPath());
+        if ("long".equals(type)) {
+            return new LongFieldMapper.Builder(FIELD).build(context);
+        } else if ("string".equals(type)) {
+            return new StringFieldMapper.Builder(FIELD).build(context);
+        }
+        throw new IllegalArgumentException("No field type [" + type + "]");
+    }
+
+    public static XTermsFetchService fetchService() {
+        return new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.fetch.max_size", "1gb")
+                .put("xterms.breaker.limit", "100%")
+                .put("xterms.source.failure_cache.expire", "0s")
+                .build());
+    }
+
+    /**
+     * Distinct random ids below the given bound, in random order
+     */
+    public static long[] randomIds(int size, long bound) {
+        Random random = new Random(SEED);
+        long[] ids = new long[size];
+        Set<Long> seen = new HashSet<Long>(size * 2);
+        for (int i = 0; i < size; ) {
+            long id = (long) (random.nextDouble() * bound);
+            if (seen.add(id)) {
+                ids[i++] = id;
+            }
+        }
+        return ids;
+    }
+}
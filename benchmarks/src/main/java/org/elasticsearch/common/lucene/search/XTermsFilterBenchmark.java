@@ -0,0 +1,133 @@
+package org.elasticsearch.common.lucene.search;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.benchmark.xterms.XTermsFixtures;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.fetch.XPayloadTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.index.query.fetch.XTermsSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of a xterms filter over all segments of an in memory index of unique ids, for string and numeric
+ * fields, varying the number of terms looked up and the number of segments the index is split in. Half of the
+ * looked up terms are in the index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XTermsFilterBenchmark {
+
+    private static final int DOCS = 1000000;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int terms;
+
+    @Param({"1", "10", "30"})
+    public int segments;
+
+    @Param({"long", "string"})
+    public String type;
+
+    @Param({"auto"})
+    public String execution;
+
+    private RAMDirectory directory;
+
+    private DirectoryReader reader;
+
+    private XTermsFetchService fetchService;
+
+    private XTermsFilter filter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        boolean numeric = "long".equals(type);
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
+        config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+        config.setRAMBufferSizeMB(256);
+        IndexWriter writer = new IndexWriter(directory, config);
+        int docsPerSegment = DOCS / segments;
+        for (int i = 0; i < DOCS; i++) {
+            Document document = new Document();
+            // ids are even, so odd looked up terms miss
+            long id = i * 2L;
+            if (numeric) {
+                document.add(new LongField(XTermsFixtures.FIELD, id, Field.Store.NO));
+            } else {
+                document.add(new StringField(XTermsFixtures.FIELD, Long.toString(id), Field.Store.NO));
+            }
+            writer.addDocument(document);
+            if ((i + 1) % docsPerSegment == 0) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+
+        FieldMapper mapper = XTermsFixtures.mapper(type);
+        XTermsSet.Builder builder = XTermsSet.builder(mapper);
+        Random random = new Random(XTermsFixtures.SEED);
+        for (int i = 0; i < terms; i++) {
+            builder.add((long) random.nextInt(DOCS * 2));
+        }
+        fetchService = XTermsFixtures.fetchService();
+        XPayloadTermsFetch fetch = new XPayloadTermsFetch(builder.build().encode(), null, null, fetchService, mapper, null);
+        filter = new XTermsFilter(fetch, null, XTermsFilter.Execution.fromString(execution), null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+        fetchService.close();
+    }
+
+    @Benchmark
+    public int getDocIdSet() throws IOException {
+        int count = 0;
+        for (AtomicReaderContext context : reader.leaves()) {
+            DocIdSet docIdSet = filter.getDocIdSet(context, context.reader().getLiveDocs());
+            DocIdSetIterator iterator = docIdSet != null ? docIdSet.iterator() : null;
+            if (iterator != null) {
+                while (iterator.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.benchmark.xterms.XTermsFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches of terms from an embedded H2 database, in one query or split in partitions, bypassing the cache of the
+ * fetch service
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XJDBCTermsFetchBenchmark {
+
+    private static final String DRIVER = "org.h2.Driver";
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"1", "4"})
+    public int partitions;
+
+    @Param({"long", "string"})
+    public String type;
+
+    private Connection connection;
+
+    private XTermsFetchService fetchService;
+
+    private XJDBCTermsFetch fetch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String url = "jdbc:h2:mem:xterms_" + size + ";DB_CLOSE_DELAY=-1";
+        Class.forName(DRIVER);
+        // kept open so the in memory database lives as long as the benchmark
+        connection = DriverManager.getConnection(url, "sa", "sa");
+        Statement statement = connection.createStatement();
+        statement.execute("DROP TABLE IF EXISTS users");
+        statement.execute("CREATE TABLE users (id BIGINT PRIMARY KEY, active BOOLEAN)");
+        statement.close();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO users VALUES (?, ?)");
+        long[] ids = XTermsFixtures.randomIds(size, Integer.MAX_VALUE);
+        for (long id : ids) {
+            insert.setLong(1, id);
+            insert.setBoolean(2, true);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+
+        fetchService = XTermsFixtures.fetchService();
+        fetch = new XJDBCTermsFetch(url, "SELECT id FROM users WHERE active = TRUE", DRIVER, "sa", "sa", null, null,
+                partitions > 1 ? "id" : null, partitions, null, fetchService, XTermsFixtures.mapper(type), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fetchService.close();
+        connection.close();
+    }
+
+    @Benchmark
+    public XFetchedTerms fetch() {
+        fetch.acquireBuilders();
+        try {
+            return fetch.fetchTerms();
+        } finally {
+            fetch.releaseBuilders();
+        }
+    }
+}
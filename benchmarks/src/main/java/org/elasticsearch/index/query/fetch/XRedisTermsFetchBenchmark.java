@@ -0,0 +1,76 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.benchmark.xterms.FakeRedisServer;
+import org.elasticsearch.benchmark.xterms.XTermsFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches of a set from an in process fake redis, in a single reply (<tt>smembers</tt>) or walking its cursor
+ * (<tt>sscan</tt>), bypassing the cache of the fetch service
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XRedisTermsFetchBenchmark {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"smembers", "sscan"})
+    public String command;
+
+    @Param({"long", "string"})
+    public String type;
+
+    private FakeRedisServer server;
+
+    private XTermsFetchService fetchService;
+
+    private XRedisTermsFetch fetch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new FakeRedisServer().addSet("users", XTermsFixtures.randomIds(size, Integer.MAX_VALUE)).start();
+        fetchService = XTermsFixtures.fetchService();
+        List<List<String>> args = Collections.singletonList(Arrays.asList("users"));
+        fetch = new XRedisTermsFetch(server.url(), Collections.singletonList(command), args, null, null, fetchService,
+                XTermsFixtures.mapper(type), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fetchService.close();
+        server.close();
+    }
+
+    @Benchmark
+    public XFetchedTerms fetch() {
+        fetch.acquireBuilders();
+        try {
+            return fetch.fetchTerms();
+        } finally {
+            fetch.releaseBuilders();
+        }
+    }
+}
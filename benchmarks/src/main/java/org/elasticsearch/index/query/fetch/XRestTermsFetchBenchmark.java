@@ -0,0 +1,112 @@
+package org.elasticsearch.index.query.fetch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.benchmark.xterms.XTermsFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches of JSON terms from an embedded HTTP server, as a plain array or nested in objects and reached through a
+ * path, bypassing the cache of the fetch service
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XRestTermsFetchBenchmark {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean path;
+
+    @Param({"long", "string"})
+    public String type;
+
+    private HttpServer server;
+
+    private XTermsFetchService fetchService;
+
+    private XRestTermsFetch fetch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        long[] ids = XTermsFixtures.randomIds(size, Integer.MAX_VALUE);
+        StringBuilder array = new StringBuilder("[");
+        StringBuilder hits = new StringBuilder("{\"took\":1,\"hits\":{\"total\":").append(size).append(",\"hits\":[");
+        for (int i = 0; i < ids.length; i++) {
+            String separator = i > 0 ? "," : "";
+            array.append(separator).append(ids[i]);
+            hits.append(separator).append("{\"_id\":\"").append(i).append("\",\"_source\":{\"name\":\"doc\",\"user_id\":")
+                    .append(ids[i]).append("}}");
+        }
+        array.append("]");
+        hits.append("]}}");
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/terms", new JsonHandler(array.toString()));
+        server.createContext("/hits", new JsonHandler(hits.toString()));
+        server.start();
+
+        fetchService = XTermsFixtures.fetchService();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + (path ? "/hits" : "/terms");
+        fetch = new XRestTermsFetch(url, path ? "hits.hits._source.user_id" : null, 10000, null, null, fetchService,
+                XTermsFixtures.mapper(type), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        fetchService.close();
+    }
+
+    @Benchmark
+    public XFetchedTerms fetch() {
+        fetch.acquireBuilders();
+        try {
+            return fetch.fetchTerms();
+        } finally {
+            fetch.releaseBuilders();
+        }
+    }
+
+    static class JsonHandler implements HttpHandler {
+
+        private final byte[] body;
+
+        JsonHandler(String body) {
+            this.body = body.getBytes(Charset.forName("UTF-8"));
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.benchmark.xterms.XTermsFixtures;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the cache key of fetched terms, as computed by {@link XTermsFetch#cacheKey()} for each new set of terms:
+ * a digest of the content of the terms, or of their version when the source reports one
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XTermsCacheKeyBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"long", "string"})
+    public String type;
+
+    @Param({"false", "true"})
+    public boolean versioned;
+
+    private XTermsSet terms;
+
+    private String lookupKey;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        XTermsSet.Builder builder = XTermsSet.builder(XTermsFixtures.mapper(type));
+        for (long id : XTermsFixtures.randomIds(size, Integer.MAX_VALUE)) {
+            builder.add(id);
+        }
+        terms = builder.build();
+        lookupKey = "rest|http://localhost:8080/users|null|" + type;
+    }
+
+    @Benchmark
+    public CacheKeyFilter.Key cacheKey() {
+        // the key is kept by the fetched terms, so each invocation needs new ones
+        return new XFetchedTerms(terms, versioned ? "\"5f3a2c\"" : null).cacheKey(lookupKey);
+    }
+}
@@ -0,0 +1,89 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.benchmark.xterms.XTermsFixtures;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building term sets from terms as sources hand them over: raw bytes (redis, binary payloads), numbers (JSON, sql)
+ * or any other object, in random order
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XTermsSetBuildBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"long", "string"})
+    public String type;
+
+    private BytesRef[] bytes;
+
+    private Long[] numbers;
+
+    private FieldMapper mapper;
+
+    private XTermsBreaker breaker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long[] ids = XTermsFixtures.randomIds(size, Integer.MAX_VALUE);
+        bytes = new BytesRef[ids.length];
+        numbers = new Long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            bytes[i] = new BytesRef(Long.toString(ids[i]));
+            numbers[i] = ids[i];
+        }
+        mapper = XTermsFixtures.mapper(type);
+        breaker = new XTermsBreaker(0);
+    }
+
+    private XTermsSet.Builder newBuilder() {
+        return XTermsSet.builder(mapper).limit(breaker, 0, "benchmark");
+    }
+
+    @Benchmark
+    public XTermsSet fromBytes() {
+        XTermsSet.Builder builder = newBuilder();
+        for (BytesRef term : bytes) {
+            builder.add(term);
+        }
+        return build(builder);
+    }
+
+    @Benchmark
+    public XTermsSet fromNumbers() {
+        XTermsSet.Builder builder = newBuilder();
+        for (Long term : numbers) {
+            builder.add(term);
+        }
+        return build(builder);
+    }
+
+    private static XTermsSet build(XTermsSet.Builder builder) {
+        try {
+            return builder.build();
+        } finally {
+            builder.release();
+        }
+    }
+}
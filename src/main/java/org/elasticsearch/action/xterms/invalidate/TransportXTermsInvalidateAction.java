@@ -0,0 +1,113 @@
+package org.elasticsearch.action.xterms.invalidate;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class TransportXTermsInvalidateAction extends TransportNodesOperationAction<XTermsInvalidateRequest, XTermsInvalidateResponse,
+        TransportXTermsInvalidateAction.NodeRequest, XTermsNodeInvalidated> {
+
+    private final XTermsFetchService fetchService;
+
+    @Inject
+    public TransportXTermsInvalidateAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                      ClusterService clusterService, TransportService transportService,
+                                      XTermsFetchService fetchService) {
+        super(settings, clusterName, threadPool, clusterService, transportService);
+        this.fetchService = fetchService;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected String transportAction() {
+        return XTermsInvalidateAction.NAME;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // raw in the signature of the base class
+    protected XTermsInvalidateResponse newResponse(XTermsInvalidateRequest request, AtomicReferenceArray responses) {
+        List<XTermsNodeInvalidated> nodes = Lists.newArrayList();
+        for (int i = 0; i < responses.length(); i++) {
+            Object response = responses.get(i);
+            if (response instanceof XTermsNodeInvalidated) {
+                nodes.add((XTermsNodeInvalidated) response);
+            }
+        }
+        return new XTermsInvalidateResponse(clusterName, nodes.toArray(new XTermsNodeInvalidated[nodes.size()]));
+    }
+
+    @Override
+    protected XTermsInvalidateRequest newRequest() {
+        return new XTermsInvalidateRequest();
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest() {
+        return new NodeRequest();
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, XTermsInvalidateRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected XTermsNodeInvalidated newNodeResponse() {
+        return new XTermsNodeInvalidated();
+    }
+
+    @Override
+    protected XTermsNodeInvalidated nodeOperation(NodeRequest request) throws ElasticSearchException {
+        int invalidated = fetchService.invalidate(request.request.source(), request.request.lookup());
+        return new XTermsNodeInvalidated(clusterService.localNode(), invalidated);
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    static class NodeRequest extends NodeOperationRequest {
+
+        XTermsInvalidateRequest request;
+
+        NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, XTermsInvalidateRequest request) {
+            super(request, nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new XTermsInvalidateRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch.action.xterms.invalidate;
+
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * Invalidates cached xterms lookups on the nodes of the cluster, so they are fetched again on next use
+ */
+public class XTermsInvalidateAction extends ClusterAction<XTermsInvalidateRequest, XTermsInvalidateResponse, XTermsInvalidateRequestBuilder> {
+
+    public static final XTermsInvalidateAction INSTANCE = new XTermsInvalidateAction();
+    public static final String NAME = "cluster/nodes/xterms/invalidate";
+
+    private XTermsInvalidateAction() {
+        super(NAME);
+    }
+
+    @Override
+    public XTermsInvalidateResponse newResponse() {
+        return new XTermsInvalidateResponse();
+    }
+
+    @Override
+    public XTermsInvalidateRequestBuilder newRequestBuilder(ClusterAdminClient client) {
+        return new XTermsInvalidateRequestBuilder(client);
+    }
+}
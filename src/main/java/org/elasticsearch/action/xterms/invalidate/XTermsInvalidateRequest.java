@@ -0,0 +1,62 @@
+package org.elasticsearch.action.xterms.invalidate;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * Invalidates a lookup, or all lookups on a source, or all lookups, on the given nodes (all of them by default)
+ */
+public class XTermsInvalidateRequest extends NodesOperationRequest<XTermsInvalidateRequest> {
+
+    private String source;
+
+    private String lookup;
+
+    public XTermsInvalidateRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    /**
+     * Url of the source whose lookups are invalidated (the path of the file for file lookups)
+     */
+    public XTermsInvalidateRequest source(@Nullable String source) {
+        this.source = source;
+        return this;
+    }
+
+    @Nullable
+    public String source() {
+        return source;
+    }
+
+    /**
+     * Key of the lookup invalidated, as reported by the stats
+     */
+    public XTermsInvalidateRequest lookup(@Nullable String lookup) {
+        this.lookup = lookup;
+        return this;
+    }
+
+    @Nullable
+    public String lookup() {
+        return lookup;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        source = in.readOptionalString();
+        lookup = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(source);
+        out.writeOptionalString(lookup);
+    }
+}
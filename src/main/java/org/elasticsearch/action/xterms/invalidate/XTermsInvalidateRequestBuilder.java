@@ -0,0 +1,28 @@
+package org.elasticsearch.action.xterms.invalidate;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.client.internal.InternalClusterAdminClient;
+
+public class XTermsInvalidateRequestBuilder extends NodesOperationRequestBuilder<XTermsInvalidateRequest, XTermsInvalidateResponse, XTermsInvalidateRequestBuilder> {
+
+    public XTermsInvalidateRequestBuilder(ClusterAdminClient client) {
+        super((InternalClusterAdminClient) client, new XTermsInvalidateRequest());
+    }
+
+    public XTermsInvalidateRequestBuilder setSource(String source) {
+        request.source(source);
+        return this;
+    }
+
+    public XTermsInvalidateRequestBuilder setLookup(String lookup) {
+        request.lookup(lookup);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<XTermsInvalidateResponse> listener) {
+        ((ClusterAdminClient) client).execute(XTermsInvalidateAction.INSTANCE, request, listener);
+    }
+}
@@ -0,0 +1,52 @@
+package org.elasticsearch.action.xterms.invalidate;
+
+import org.elasticsearch.action.support.nodes.NodesOperationResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+public class XTermsInvalidateResponse extends NodesOperationResponse<XTermsNodeInvalidated> implements ToXContent {
+
+    XTermsInvalidateResponse() {
+    }
+
+    public XTermsInvalidateResponse(ClusterName clusterName, XTermsNodeInvalidated[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new XTermsNodeInvalidated[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new XTermsNodeInvalidated();
+            nodes[i].readFrom(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (XTermsNodeInvalidated node : nodes) {
+            node.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("cluster_name", getClusterName().value());
+        builder.startObject("nodes");
+        for (XTermsNodeInvalidated node : this) {
+            builder.startObject(node.getNode().id(), XContentBuilder.FieldCaseConversion.NONE);
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
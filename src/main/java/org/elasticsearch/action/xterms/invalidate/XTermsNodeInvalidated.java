@@ -0,0 +1,49 @@
+package org.elasticsearch.action.xterms.invalidate;
+
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * The number of cached lookups invalidated on a node
+ */
+public class XTermsNodeInvalidated extends NodeOperationResponse implements ToXContent {
+
+    private int invalidated;
+
+    XTermsNodeInvalidated() {
+    }
+
+    public XTermsNodeInvalidated(DiscoveryNode node, int invalidated) {
+        super(node);
+        this.invalidated = invalidated;
+    }
+
+    public int getInvalidated() {
+        return invalidated;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        invalidated = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(invalidated);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().name(), XContentBuilder.FieldCaseConversion.NONE);
+        builder.field("invalidated", invalidated);
+        return builder;
+    }
+}
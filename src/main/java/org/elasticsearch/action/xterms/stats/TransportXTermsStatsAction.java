@@ -0,0 +1,113 @@
+package org.elasticsearch.action.xterms.stats;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class TransportXTermsStatsAction extends TransportNodesOperationAction<XTermsStatsRequest, XTermsStatsResponse,
+        TransportXTermsStatsAction.NodeRequest, XTermsNodeStats> {
+
+    private final XTermsFetchService fetchService;
+
+    @Inject
+    public TransportXTermsStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                      ClusterService clusterService, TransportService transportService,
+                                      XTermsFetchService fetchService) {
+        super(settings, clusterName, threadPool, clusterService, transportService);
+        this.fetchService = fetchService;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected String transportAction() {
+        return XTermsStatsAction.NAME;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // raw in the signature of the base class
+    protected XTermsStatsResponse newResponse(XTermsStatsRequest request, AtomicReferenceArray responses) {
+        List<XTermsNodeStats> nodes = Lists.newArrayList();
+        for (int i = 0; i < responses.length(); i++) {
+            Object response = responses.get(i);
+            if (response instanceof XTermsNodeStats) {
+                nodes.add((XTermsNodeStats) response);
+            }
+        }
+        return new XTermsStatsResponse(clusterName, nodes.toArray(new XTermsNodeStats[nodes.size()]));
+    }
+
+    @Override
+    protected XTermsStatsRequest newRequest() {
+        return new XTermsStatsRequest();
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest() {
+        return new NodeRequest();
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, XTermsStatsRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected XTermsNodeStats newNodeResponse() {
+        return new XTermsNodeStats();
+    }
+
+    @Override
+    protected XTermsNodeStats nodeOperation(NodeRequest request) throws ElasticSearchException {
+        return new XTermsNodeStats(clusterService.localNode(), fetchService.stats(),
+                fetchService.breaker().used(), fetchService.breaker().limit());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    static class NodeRequest extends NodeOperationRequest {
+
+        XTermsStatsRequest request;
+
+        NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, XTermsStatsRequest request) {
+            super(request, nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new XTermsStatsRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
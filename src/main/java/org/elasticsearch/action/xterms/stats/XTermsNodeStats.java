@@ -0,0 +1,68 @@
+package org.elasticsearch.action.xterms.stats;
+
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.fetch.XTermsStats;
+
+import java.io.IOException;
+
+/**
+ * The xterms stats of a node, along with the memory held by its term sets
+ */
+public class XTermsNodeStats extends NodeOperationResponse implements ToXContent {
+
+    private XTermsStats stats;
+
+    private long breakerUsed;
+
+    private long breakerLimit;
+
+    XTermsNodeStats() {
+    }
+
+    public XTermsNodeStats(DiscoveryNode node, XTermsStats stats, long breakerUsed, long breakerLimit) {
+        super(node);
+        this.stats = stats;
+        this.breakerUsed = breakerUsed;
+        this.breakerLimit = breakerLimit;
+    }
+
+    public XTermsStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        stats = XTermsStats.readStats(in);
+        breakerUsed = in.readLong();
+        breakerLimit = in.readLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        stats.writeTo(out);
+        out.writeLong(breakerUsed);
+        out.writeLong(breakerLimit);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().name(), XContentBuilder.FieldCaseConversion.NONE);
+        builder.field("transport_address", getNode().address().toString());
+        builder.startObject("breaker");
+        builder.field("used", new ByteSizeValue(breakerUsed).toString());
+        builder.field("used_in_bytes", breakerUsed);
+        builder.field("limit", new ByteSizeValue(breakerLimit).toString());
+        builder.field("limit_in_bytes", breakerLimit);
+        builder.endObject();
+        stats.toXContent(builder, params);
+        return builder;
+    }
+}
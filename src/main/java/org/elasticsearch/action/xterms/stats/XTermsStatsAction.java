@@ -0,0 +1,27 @@
+package org.elasticsearch.action.xterms.stats;
+
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * Collects the {@link org.elasticsearch.index.query.fetch.XTermsStats} of the nodes of the cluster
+ */
+public class XTermsStatsAction extends ClusterAction<XTermsStatsRequest, XTermsStatsResponse, XTermsStatsRequestBuilder> {
+
+    public static final XTermsStatsAction INSTANCE = new XTermsStatsAction();
+    public static final String NAME = "cluster/nodes/xterms/stats";
+
+    private XTermsStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public XTermsStatsResponse newResponse() {
+        return new XTermsStatsResponse();
+    }
+
+    @Override
+    public XTermsStatsRequestBuilder newRequestBuilder(ClusterAdminClient client) {
+        return new XTermsStatsRequestBuilder(client);
+    }
+}
@@ -0,0 +1,13 @@
+package org.elasticsearch.action.xterms.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+
+/**
+ * Asks the given nodes, all of them by default, for their xterms stats
+ */
+public class XTermsStatsRequest extends NodesOperationRequest<XTermsStatsRequest> {
+
+    public XTermsStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
@@ -0,0 +1,18 @@
+package org.elasticsearch.action.xterms.stats;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.client.internal.InternalClusterAdminClient;
+
+public class XTermsStatsRequestBuilder extends NodesOperationRequestBuilder<XTermsStatsRequest, XTermsStatsResponse, XTermsStatsRequestBuilder> {
+
+    public XTermsStatsRequestBuilder(ClusterAdminClient client) {
+        super((InternalClusterAdminClient) client, new XTermsStatsRequest());
+    }
+
+    @Override
+    protected void doExecute(ActionListener<XTermsStatsResponse> listener) {
+        ((ClusterAdminClient) client).execute(XTermsStatsAction.INSTANCE, request, listener);
+    }
+}
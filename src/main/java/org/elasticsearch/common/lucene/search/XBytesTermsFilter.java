@@ -0,0 +1,144 @@
+package org.elasticsearch.common.lucene.search;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+
+import java.io.IOException;
+
+/**
+ * Filter on a string field matching the terms of a {@link XBytesTermsSet}, see {@link XTermsFilter.Execution} for how
+ * terms are matched on each segment. Terms of the set are in the order of the terms of the segment, so the merge and
+ * scan executions walk both of them together in a single pass.
+ */
+public class XBytesTermsFilter extends Filter {
+
+    private final String field;
+
+    private final XBytesTermsSet terms;
+
+    private final XTermsFilter.Execution execution;
+
+    public XBytesTermsFilter(String field, XBytesTermsSet terms, XTermsFilter.Execution execution) {
+        this.field = field;
+        this.terms = terms;
+        this.execution = execution;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        AtomicReader reader = context.reader();
+        Terms indexTerms = reader.terms(field);
+        if (indexTerms == null) {
+            return null;
+        }
+        switch (execution.forSegment(terms.size(), indexTerms.size(), reader.maxDoc())) {
+            case SEEK:
+                return seek(reader, indexTerms.iterator(null), acceptDocs);
+            case MERGE:
+                return merge(reader, indexTerms.iterator(null), acceptDocs);
+            default:
+                // no field data execution for strings, scanning the terms is as good
+                return scan(reader, indexTerms.iterator(null), acceptDocs);
+        }
+    }
+
+    private DocIdSet seek(AtomicReader reader, TermsEnum termsEnum, Bits acceptDocs) throws IOException {
+        FixedBitSet result = null;
+        DocsEnum docsEnum = null;
+        XBytesTermsSet.Iterator iterator = terms.iterator();
+        BytesRef term;
+        while ((term = iterator.next()) != null) {
+            if (termsEnum.seekExact(term, false)) {
+                docsEnum = termsEnum.docs(acceptDocs, docsEnum, 0);
+                if (result == null) {
+                    result = new FixedBitSet(reader.maxDoc());
+                }
+                result.or(docsEnum);
+            }
+        }
+        return result;
+    }
+
+    private DocIdSet merge(AtomicReader reader, TermsEnum termsEnum, Bits acceptDocs) throws IOException {
+        FixedBitSet result = null;
+        DocsEnum docsEnum = null;
+        XBytesTermsSet.Iterator iterator = terms.iterator();
+        BytesRef term = iterator.next();
+        while (term != null) {
+            TermsEnum.SeekStatus status = termsEnum.seekCeil(term, false);
+            if (status == TermsEnum.SeekStatus.END) {
+                break;
+            }
+            if (status == TermsEnum.SeekStatus.NOT_FOUND) {
+                // skip the terms of the set before the one we landed on, they aren't in the segment
+                BytesRef next = termsEnum.term();
+                do {
+                    term = iterator.next();
+                } while (term != null && term.compareTo(next) < 0);
+                if (term == null || !term.bytesEquals(next)) {
+                    continue;
+                }
+                // the term we landed on is in the set, no need to seek it
+            }
+            docsEnum = termsEnum.docs(acceptDocs, docsEnum, 0);
+            if (result == null) {
+                result = new FixedBitSet(reader.maxDoc());
+            }
+            result.or(docsEnum);
+            term = iterator.next();
+        }
+        return result;
+    }
+
+    private DocIdSet scan(AtomicReader reader, TermsEnum termsEnum, Bits acceptDocs) throws IOException {
+        FixedBitSet result = null;
+        DocsEnum docsEnum = null;
+        XBytesTermsSet.Iterator iterator = terms.iterator();
+        BytesRef term = iterator.next();
+        BytesRef indexTerm;
+        while (term != null && (indexTerm = termsEnum.next()) != null) {
+            int cmp;
+            while ((cmp = term.compareTo(indexTerm)) < 0) {
+                if ((term = iterator.next()) == null) {
+                    return result;
+                }
+            }
+            if (cmp == 0) {
+                docsEnum = termsEnum.docs(acceptDocs, docsEnum, 0);
+                if (result == null) {
+                    result = new FixedBitSet(reader.maxDoc());
+                }
+                result.or(docsEnum);
+                term = iterator.next();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        XBytesTermsFilter that = (XBytesTermsFilter) o;
+        return field.equals(that.field) && terms == that.terms;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * field.hashCode() + System.identityHashCode(terms);
+    }
+
+    @Override
+    public String toString() {
+        return "XBytesTermsFilter(" + field + ", " + terms.size() + " terms)";
+    }
+}
@@ -0,0 +1,282 @@
+package org.elasticsearch.common.lucene.search;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.LongValues;
+import org.elasticsearch.index.query.fetch.XLongTermsSet;
+
+import java.io.IOException;
+
+/**
+ * Filter on an integral numeric field matching the values of a {@link XLongTermsSet}, see
+ * {@link XTermsFilter.Execution} for how values are matched on each segment. Since both the set and the full
+ * precision prefix coded terms of the field are sorted, the merge execution leapfrogs between them: a seek to the
+ * next value of the set lands on the next term of the segment, from which the set is searched for the next value to
+ * seek, skipping all values in between.
+ * <p/>
+ * The field data execution checks the values of each document against the set, through a bitmap over the range of
+ * the set when it is dense enough, or a binary search otherwise.
+ */
+public class XLongTermsFilter extends Filter {
+
+    private final String field;
+
+    private final XLongTermsSet terms;
+
+    private final boolean intEncoded;
+
+    private final IndexNumericFieldData fieldData;
+
+    private final XTermsFilter.Execution execution;
+
+    // bitmap of the values of the set, relative to the first value, built on first use by the field data execution
+    private volatile FixedBitSet bitmap;
+
+    /**
+     * @param field      index name of the field
+     * @param terms      values to match
+     * @param intEncoded whether values are indexed as ints (int, short and byte fields) rather than as longs
+     * @param fieldData  field data of the field, if it can be used for scanning segments
+     * @param execution  how values are matched on each segment
+     */
+    public XLongTermsFilter(String field, XLongTermsSet terms, boolean intEncoded, @Nullable IndexNumericFieldData fieldData,
+                            XTermsFilter.Execution execution) {
+        this.field = field;
+        this.terms = terms;
+        this.intEncoded = intEncoded;
+        this.fieldData = fieldData;
+        this.execution = execution;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        AtomicReader reader = context.reader();
+        Terms indexTerms = reader.terms(field);
+        if (indexTerms == null) {
+            return null;
+        }
+        switch (execution.forSegment(terms.size(), indexTerms.size(), reader.maxDoc())) {
+            case SEEK:
+                return seek(reader, indexTerms.iterator(null), acceptDocs);
+            case SCAN:
+                return scan(reader, indexTerms.iterator(null), acceptDocs);
+            case FIELDDATA:
+                if (fieldData != null) {
+                    return scanFieldData(context, acceptDocs);
+                }
+                return scan(reader, indexTerms.iterator(null), acceptDocs);
+            default:
+                return merge(reader, indexTerms.iterator(null), acceptDocs);
+        }
+    }
+
+    private DocIdSet seek(AtomicReader reader, TermsEnum termsEnum, Bits acceptDocs) throws IOException {
+        FixedBitSet result = null;
+        DocsEnum docsEnum = null;
+        BytesRef term = new BytesRef(NumericUtils.BUF_SIZE_LONG);
+        for (int index = first(), size = last(); index < size; index++) {
+            encode(terms.get(index), term);
+            if (termsEnum.seekExact(term, false)) {
+                docsEnum = termsEnum.docs(acceptDocs, docsEnum, 0);
+                if (result == null) {
+                    result = new FixedBitSet(reader.maxDoc());
+                }
+                result.or(docsEnum);
+            }
+        }
+        return result;
+    }
+
+    private DocIdSet scan(AtomicReader reader, TermsEnum termsEnum, Bits acceptDocs) throws IOException {
+        FixedBitSet result = null;
+        DocsEnum docsEnum = null;
+        int index = first();
+        int size = last();
+        BytesRef term;
+        while (index < size && (term = termsEnum.next()) != null) {
+            if (shift(term) != 0) {
+                break;
+            }
+            long value = decode(term);
+            while (index < size && terms.get(index) < value) {
+                index++;
+            }
+            if (index < size && terms.get(index) == value) {
+                docsEnum = termsEnum.docs(acceptDocs, docsEnum, 0);
+                if (result == null) {
+                    result = new FixedBitSet(reader.maxDoc());
+                }
+                result.or(docsEnum);
+                index++;
+            }
+        }
+        return result;
+    }
+
+    private DocIdSet merge(AtomicReader reader, TermsEnum termsEnum, Bits acceptDocs) throws IOException {
+        FixedBitSet result = null;
+        DocsEnum docsEnum = null;
+        BytesRef term = new BytesRef(NumericUtils.BUF_SIZE_LONG);
+        int index = first();
+        int size = last();
+        while (index < size) {
+            encode(terms.get(index), term);
+            TermsEnum.SeekStatus status = termsEnum.seekCeil(term, false);
+            if (status == TermsEnum.SeekStatus.END) {
+                break;
+            }
+            if (status == TermsEnum.SeekStatus.NOT_FOUND) {
+                BytesRef next = termsEnum.term();
+                if (shift(next) != 0) {
+                    break; // past the full precision terms, only lower precision ones follow
+                }
+                long value = decode(next);
+                index = ceil(value, index + 1, size);
+                if (index == size || terms.get(index) != value) {
+                    continue;
+                }
+                // the term we landed on is in the set, no need to seek it
+            }
+            docsEnum = termsEnum.docs(acceptDocs, docsEnum, 0);
+            if (result == null) {
+                result = new FixedBitSet(reader.maxDoc());
+            }
+            result.or(docsEnum);
+            index++;
+        }
+        return result;
+    }
+
+    private DocIdSet scanFieldData(AtomicReaderContext context, Bits acceptDocs) {
+        LongValues values = fieldData.load(context).getLongValues();
+        FixedBitSet bitmap = bitmap();
+        long min = terms.get(0);
+        int maxDoc = context.reader().maxDoc();
+        FixedBitSet result = new FixedBitSet(maxDoc);
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (acceptDocs != null && !acceptDocs.get(doc)) {
+                continue;
+            }
+            if (values.isMultiValued()) {
+                for (LongValues.Iter iter = values.getIter(doc); iter.hasNext(); ) {
+                    if (contains(iter.next(), bitmap, min)) {
+                        result.set(doc);
+                        break;
+                    }
+                }
+            } else if (values.hasValue(doc) && contains(values.getValue(doc), bitmap, min)) {
+                result.set(doc);
+            }
+        }
+        return result;
+    }
+
+    private boolean contains(long value, @Nullable FixedBitSet bitmap, long min) {
+        if (bitmap == null) {
+            return terms.contains(value);
+        }
+        long offset = value - min;
+        return offset >= 0 && offset < bitmap.length() && bitmap.get((int) offset);
+    }
+
+    /**
+     * Returns a bitmap of the values of the set, if it takes no more memory than the set itself
+     */
+    @Nullable
+    private FixedBitSet bitmap() {
+        FixedBitSet bitmap = this.bitmap;
+        if (bitmap == null) {
+            long min = terms.get(0);
+            long range = terms.get(terms.size() - 1) - min + 1;
+            if (range <= 0 || range > (long) terms.size() * 64 || range > Integer.MAX_VALUE) {
+                return null; // too sparse, or overflowed
+            }
+            bitmap = new FixedBitSet((int) range);
+            for (int i = 0; i < terms.size(); i++) {
+                bitmap.set((int) (terms.get(i) - min));
+            }
+            // concurrent segments might build it too, they'd build the same
+            this.bitmap = bitmap;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Index of the first value of the set that can be indexed, ints can't hold all values of a long set
+     */
+    private int first() {
+        return intEncoded ? ceil(Integer.MIN_VALUE, 0, terms.size()) : 0;
+    }
+
+    private int last() {
+        return intEncoded ? ceil(Integer.MAX_VALUE + 1L, 0, terms.size()) : terms.size();
+    }
+
+    /**
+     * Returns the index of the first value of the set in [from, to) greater than or equal to the given value, or
+     * to if there is none. Searches exponentially first, since the next value is usually close.
+     */
+    private int ceil(long value, int from, int to) {
+        int bound = 1;
+        int low = from;
+        while (low + bound < to && terms.get(low + bound) < value) {
+            low += bound;
+            bound <<= 1;
+        }
+        int high = Math.min(low + bound, to);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (terms.get(mid) < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void encode(long value, BytesRef term) {
+        if (intEncoded) {
+            NumericUtils.intToPrefixCoded((int) value, 0, term);
+        } else {
+            NumericUtils.longToPrefixCoded(value, 0, term);
+        }
+    }
+
+    private long decode(BytesRef term) {
+        return intEncoded ? NumericUtils.prefixCodedToInt(term) : NumericUtils.prefixCodedToLong(term);
+    }
+
+    private int shift(BytesRef term) {
+        return intEncoded ? NumericUtils.getPrefixCodedIntShift(term) : NumericUtils.getPrefixCodedLongShift(term);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        XLongTermsFilter that = (XLongTermsFilter) o;
+        return field.equals(that.field) && terms == that.terms;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * field.hashCode() + System.identityHashCode(terms);
+    }
+
+    @Override
+    public String toString() {
+        return "XLongTermsFilter(" + field + ", " + terms.size() + " terms)";
+    }
+}
@@ -0,0 +1,311 @@
+package org.elasticsearch.common.lucene.search;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node level cache of the doc id sets of xterms filters, per segment core and term set, for filters not going through
+ * the filter cache. Since entries are keyed by the content (or the version) of the terms, a lookup refreshed with the
+ * same terms keeps hitting the sets of all segments, and once segments are added only the new ones get evaluated.
+ * Sets are computed without deleted docs applied, so they stay valid for the life of the segment core, and entries
+ * are dropped as soon as their core is closed.
+ * <p/>
+ * Terms patched with a delta get their sets from the sets of the terms they were patched from, by adding the docs of
+ * the added terms and, on single valued fields, clearing the docs of the removed ones.
+ * <ul>
+ * <li><tt>xterms.segment_cache.size</tt>: max size of the cached sets (defaults to 50mb, 0 disables the cache)</li>
+ * <li><tt>xterms.segment_cache.expire</tt>: time after which unused sets are dropped (defaults to 10m)</li>
+ * </ul>
+ */
+public class XTermsDocIdSetCache extends AbstractComponent implements SegmentReader.CoreClosedListener {
+
+    private final Cache<Key, DocIdSet> cache;
+
+    // cores we registered a close listener on
+    private final ConcurrentMap<Object, Boolean> cores = ConcurrentCollections.newConcurrentMap();
+
+    // whether fields are single valued, per segment core
+    private final ConcurrentMap<Key, Boolean> singleValued = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public XTermsDocIdSetCache(Settings settings) {
+        super(settings);
+        ByteSizeValue size = settings.getAsBytesSize("xterms.segment_cache.size", new ByteSizeValue(50, ByteSizeUnit.MB));
+        TimeValue expire = settings.getAsTime("xterms.segment_cache.expire", TimeValue.timeValueMinutes(10));
+        logger.debug("using xterms segment cache with size [{}], expire [{}]", size, expire);
+        if (size.bytes() > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(size.bytes())
+                    .weigher(new DocIdSetWeigher())
+                    .expireAfterAccess(expire.millis(), TimeUnit.MILLISECONDS)
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * Returns the doc id set of the filter on the given segment, computing it for the whole segment core if it is not
+     * cached yet
+     *
+     * @param key key of the filter, which must identify the field and the terms it matches
+     */
+    public DocIdSet getDocIdSet(Filter filter, Object key, AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        return getDocIdSet(filter, key, null, context, acceptDocs);
+    }
+
+    /**
+     * Returns the doc id set of the filter on the given segment, deriving it from the cached set of the base terms of
+     * the delta if there is one
+     *
+     * @param delta changes the terms of the filter were patched with, or null
+     */
+    public DocIdSet getDocIdSet(Filter filter, Object key, @Nullable Delta delta, AtomicReaderContext context,
+                                Bits acceptDocs) throws IOException {
+        if (cache == null || !(context.reader() instanceof SegmentReader)) {
+            return filter.getDocIdSet(context, acceptDocs);
+        }
+        SegmentReader segmentReader = (SegmentReader) context.reader();
+        Object coreKey = segmentReader.getCoreCacheKey();
+        Key cacheKey = new Key(coreKey, key);
+        DocIdSet docIdSet = cache.getIfPresent(cacheKey);
+        if (docIdSet == null) {
+            docIdSet = delta != null ? patch(delta, coreKey, context) : null;
+            if (docIdSet == null) {
+                docIdSet = filter.getDocIdSet(context, null);
+            }
+            if (docIdSet == null) {
+                docIdSet = DocIdSet.EMPTY_DOCIDSET;
+            } else if (!(docIdSet instanceof FixedBitSet)) {
+                // only sets we know the size of are cached
+                return BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+            }
+            if (cores.putIfAbsent(coreKey, Boolean.TRUE) == null) {
+                segmentReader.addCoreClosedListener(this);
+            }
+            cache.put(cacheKey, docIdSet);
+        }
+        return BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+    }
+
+    /**
+     * Returns a new set patched from the cached set of the base terms, or null if there is none or it can't be patched
+     */
+    private FixedBitSet patch(Delta delta, Object coreKey, AtomicReaderContext context) throws IOException {
+        DocIdSet base = cache.getIfPresent(new Key(coreKey, delta.baseKey));
+        if (base == null) {
+            return null;
+        }
+        int maxDoc = context.reader().maxDoc();
+        FixedBitSet patched;
+        if (base instanceof FixedBitSet) {
+            patched = ((FixedBitSet) base).clone();
+        } else if (base == DocIdSet.EMPTY_DOCIDSET) {
+            patched = new FixedBitSet(maxDoc);
+        } else {
+            return null;
+        }
+        if (delta.removed != null) {
+            // a doc matching a removed term might still match another term on multi valued fields
+            Terms terms = context.reader().terms(delta.field);
+            if (terms != null) {
+                if (!isSingleValued(terms, delta, coreKey, (SegmentReader) context.reader())) {
+                    return null;
+                }
+                DocIdSetIterator removed = iterator(delta.removed, context);
+                if (removed != null) {
+                    for (int doc = removed.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = removed.nextDoc()) {
+                        patched.clear(doc);
+                    }
+                }
+            }
+        }
+        if (delta.added != null) {
+            DocIdSetIterator added = iterator(delta.added, context);
+            if (added != null) {
+                patched.or(added);
+            }
+        }
+        return patched;
+    }
+
+    /**
+     * Whether each doc has a single term in the field. Numeric fields also index each value at lower precisions, so
+     * only their full precision terms are counted.
+     */
+    private boolean isSingleValued(Terms terms, Delta delta, Object coreKey, SegmentReader reader) throws IOException {
+        Key key = new Key(coreKey, delta.field);
+        Boolean single = singleValued.get(key);
+        if (single == null) {
+            long docCount = terms.getDocCount();
+            long sumDocFreq;
+            if (docCount == -1) {
+                sumDocFreq = -2;
+            } else if (delta.numeric) {
+                TermsEnum termsEnum = terms.iterator(null);
+                BytesRef first = termsEnum.next();
+                if (first != null && first.length > 0 && first.bytes[first.offset] == NumericUtils.SHIFT_START_INT) {
+                    termsEnum = NumericUtils.filterPrefixCodedInts(terms.iterator(null));
+                } else {
+                    termsEnum = NumericUtils.filterPrefixCodedLongs(terms.iterator(null));
+                }
+                sumDocFreq = 0;
+                while (termsEnum.next() != null) {
+                    sumDocFreq += termsEnum.docFreq();
+                }
+            } else {
+                sumDocFreq = terms.getSumDocFreq();
+            }
+            single = sumDocFreq == docCount;
+            if (cores.putIfAbsent(coreKey, Boolean.TRUE) == null) {
+                reader.addCoreClosedListener(this);
+            }
+            singleValued.put(key, single);
+        }
+        return single;
+    }
+
+    private static DocIdSetIterator iterator(Filter filter, AtomicReaderContext context) throws IOException {
+        DocIdSet docIdSet = filter.getDocIdSet(context, null);
+        return docIdSet != null ? docIdSet.iterator() : null;
+    }
+
+    @Override
+    public void onClose(SegmentReader owner) {
+        Object coreKey = owner.getCoreCacheKey();
+        cores.remove(coreKey);
+        for (Iterator<Key> keys = cache.asMap().keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().coreKey == coreKey) {
+                keys.remove();
+            }
+        }
+        for (Iterator<Key> keys = singleValued.keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().coreKey == coreKey) {
+                keys.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Key of a filter on a field matching a term set, based on the key of the terms
+     */
+    public static Object filterKey(String field, CacheKeyFilter.Key termsKey) {
+        return new FilterKey(field, termsKey);
+    }
+
+    /**
+     * Changes of the terms of a filter since the terms of a base filter, as filters on the field matching the added
+     * and the removed terms (null if none)
+     */
+    public static class Delta {
+
+        final Object baseKey;
+        final String field;
+        final boolean numeric;
+        final Filter added;
+        final Filter removed;
+
+        /**
+         * @param numeric whether the field is a trie encoded numeric field
+         */
+        public Delta(Object baseKey, String field, boolean numeric, @Nullable Filter added, @Nullable Filter removed) {
+            this.baseKey = baseKey;
+            this.field = field;
+            this.numeric = numeric;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    static class FilterKey {
+
+        final String field;
+        final CacheKeyFilter.Key termsKey;
+
+        FilterKey(String field, CacheKeyFilter.Key termsKey) {
+            this.field = field;
+            this.termsKey = termsKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FilterKey that = (FilterKey) o;
+            return field.equals(that.field) && termsKey.equals(that.termsKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * field.hashCode() + termsKey.hashCode();
+        }
+    }
+
+    static class Key {
+
+        final Object coreKey;
+        final Object filterKey;
+
+        Key(Object coreKey, Object filterKey) {
+            this.coreKey = coreKey;
+            this.filterKey = filterKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return coreKey == that.coreKey && filterKey.equals(that.filterKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + filterKey.hashCode();
+        }
+    }
+
+    static class DocIdSetWeigher implements Weigher<Key, DocIdSet> {
+
+        @Override
+        public int weigh(Key key, DocIdSet docIdSet) {
+            if (docIdSet instanceof FixedBitSet) {
+                return 64 + ((FixedBitSet) docIdSet).getBits().length * 8;
+            }
+            return 64;
+        }
+    }
+}
@@ -4,38 +4,234 @@ import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.Bits;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.cache.filter.FilterCache;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.mapper.core.NumberFieldMapper;
+import org.elasticsearch.index.mapper.core.StringFieldMapper;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+import org.elasticsearch.index.query.fetch.XFetchedTerms;
+import org.elasticsearch.index.query.fetch.XLongTermsSet;
 import org.elasticsearch.index.query.fetch.XTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsSet;
 
 import java.io.IOException;
-import java.util.List;
 
 public class XTermsFilter extends Filter {
 
+    /**
+     * How the terms are matched against the terms of a segment
+     */
+    public static enum Execution {
+        /**
+         * Picks one of the others per segment, from the number of terms, the number of unique terms of the field in
+         * the segment and the number of documents of the segment
+         */
+        AUTO,
+        /**
+         * Seeks each term of the set, for small sets
+         */
+        SEEK,
+        /**
+         * Walks the set and the terms of the segment together, seeking the next term of the set from the last term
+         * found in the segment, so runs of terms missing from the segment are skipped
+         */
+        MERGE,
+        /**
+         * Iterates all terms of the segment, checking them against the set, for sets about as big as the segment
+         */
+        SCAN,
+        /**
+         * Checks the values of each document against the set, through the field data of the field, for sets bigger
+         * than the segment. Only numeric fields, others fall back to {@link #SCAN}.
+         */
+        FIELDDATA;
+
+        /**
+         * Sets up to this size are always seeked
+         */
+        static final int SEEK_MAX_TERMS = 32;
+
+        /**
+         * Sets having at least one term per this many unique terms of the segment are scanned
+         */
+        static final int SCAN_RATIO = 4;
+
+        public static Execution fromString(String execution) {
+            if ("auto".equals(execution)) {
+                return AUTO;
+            } else if ("seek".equals(execution)) {
+                return SEEK;
+            } else if ("merge".equals(execution)) {
+                return MERGE;
+            } else if ("scan".equals(execution)) {
+                return SCAN;
+            } else if ("fielddata".equals(execution) || "field_data".equals(execution)) {
+                return FIELDDATA;
+            }
+            throw new ElasticSearchIllegalArgumentException("No execution [" + execution + "] for xterms filter");
+        }
+
+        /**
+         * Resolves the execution for a segment
+         *
+         * @param size        number of terms of the set
+         * @param uniqueTerms number of unique terms of the field in the segment, or -1 if unknown
+         * @param maxDoc      number of documents of the segment
+         */
+        Execution forSegment(int size, long uniqueTerms, int maxDoc) {
+            if (this != AUTO) {
+                return this;
+            }
+            if (size <= SEEK_MAX_TERMS) {
+                return SEEK;
+            }
+            if (size > maxDoc) {
+                return FIELDDATA;
+            }
+            if (uniqueTerms >= 0 && size >= uniqueTerms / SCAN_RATIO) {
+                return SCAN;
+            }
+            return MERGE;
+        }
+    }
+
     private final XTermsFetch fetch;
 
-    private Filter filter;
+    private final FilterCache filterCache;
+
+    private final Execution execution;
+
+    private final IndexNumericFieldData fieldData;
 
-    public XTermsFilter(XTermsFetch fetch) {
+    private final XTermsDocIdSetCache docIdSetCache;
+
+    // segments might be evaluated concurrently, the filter is built once by the first one
+    private volatile Filter filter;
+
+    /**
+     * @param fetch       the lookup providing the terms, should have been prefetched already
+     * @param filterCache cache of the index the filter should be cached with using the key of the fetched terms, or
+     *                    null. Since the key depends on the terms, caching is deferred until the terms are resolved on
+     *                    the first segment evaluated.
+     */
+    public XTermsFilter(XTermsFetch fetch, @Nullable FilterCache filterCache) {
+        this(fetch, filterCache, Execution.AUTO, null, null);
+    }
+
+    /**
+     * @param execution     how the terms are matched on each segment, for numeric and string fields
+     * @param fieldData     field data of numeric fields, for the {@link Execution#FIELDDATA} execution
+     * @param docIdSetCache cache of the doc id sets per segment, used when the filter itself isn't cached
+     */
+    public XTermsFilter(XTermsFetch fetch, @Nullable FilterCache filterCache, Execution execution,
+                        @Nullable IndexNumericFieldData fieldData, @Nullable XTermsDocIdSetCache docIdSetCache) {
         this.fetch = fetch;
+        this.filterCache = filterCache;
+        this.execution = execution;
+        this.fieldData = fieldData;
+        this.docIdSetCache = docIdSetCache;
     }
 
     @Override
     public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-        return getFilter().getDocIdSet(context, acceptDocs);
+        long start = System.nanoTime();
+        try {
+            return getFilter().getDocIdSet(context, acceptDocs);
+        } finally {
+            fetch.getFetchService().stats().onFilter(System.nanoTime() - start);
+        }
     }
 
     private Filter getFilter() {
-        if (this.filter == null) {
-            List<Object> terms = fetch.getTerms();
-            if (terms.size() > 0) {
-                this.filter = fetch.getFieldMapper().termsFilter(terms, fetch.getQueryParseContext());
-            } else {
-                this.filter = Queries.MATCH_NO_FILTER;
+        Filter filter = this.filter;
+        if (filter == null) {
+            synchronized (this) {
+                filter = this.filter;
+                if (filter == null) {
+                    filter = buildFilter();
+                    this.filter = filter;
+                }
             }
         }
         return filter;
     }
 
+    private Filter buildFilter() {
+        XTermsSet terms = fetch.getTerms();
+        if (terms.size() == 0) {
+            return Queries.MATCH_NO_FILTER;
+        }
+        FieldMapper fieldMapper = fetch.getFieldMapper();
+        Filter filter = createFilter(terms, fieldMapper, execution);
+        if (filterCache != null) {
+            return filterCache.cache(new CacheKeyFilter.Wrapper(filter, fetch.cacheKey()));
+        } else if (docIdSetCache != null) {
+            // keyed by the content of the terms rather than an explicit key, which wouldn't change along with them
+            XFetchedTerms fetched = fetch.getFetchedTerms();
+            String field = fieldMapper.names().indexName();
+            Object key = XTermsDocIdSetCache.filterKey(field, fetched.cacheKey(fetch.lookupKey()));
+            XTermsDocIdSetCache.Delta delta = null;
+            if (fetched.delta() != null) {
+                XFetchedTerms.Delta changes = fetched.delta();
+                delta = new XTermsDocIdSetCache.Delta(XTermsDocIdSetCache.filterKey(field, changes.base()), field,
+                        fieldMapper instanceof NumberFieldMapper, createDeltaFilter(changes.added(), fieldMapper), createDeltaFilter(changes.removed(), fieldMapper));
+            }
+            return new SegmentCachedFilter(filter, key, delta, docIdSetCache);
+        }
+        return filter;
+    }
+
+    /**
+     * Numeric and string lookups match the sorted terms straight against the terms of each segment, the rest go
+     * through the terms filter of the field
+     */
+    private Filter createFilter(XTermsSet terms, FieldMapper fieldMapper, Execution execution) {
+        if (terms instanceof XLongTermsSet) {
+            return new XLongTermsFilter(fieldMapper.names().indexName(), (XLongTermsSet) terms,
+                    !(fieldMapper instanceof LongFieldMapper), fieldData, execution);
+        } else if (fieldMapper instanceof StringFieldMapper) {
+            return new XBytesTermsFilter(fieldMapper.names().indexName(), (XBytesTermsSet) terms, execution);
+        }
+        return fieldMapper.termsFilter(terms.toList(), fetch.getQueryParseContext());
+    }
+
+    private Filter createDeltaFilter(XTermsSet terms, FieldMapper fieldMapper) {
+        if (terms.size() == 0) {
+            return null;
+        }
+        // changes are usually few, seeking them is cheaper than anything else
+        return createFilter(terms, fieldMapper, Execution.SEEK);
+    }
+
+    /**
+     * Evaluates a filter through the doc id set cache
+     */
+    static class SegmentCachedFilter extends Filter {
+
+        private final Filter filter;
+        private final Object key;
+        private final XTermsDocIdSetCache.Delta delta;
+        private final XTermsDocIdSetCache docIdSetCache;
+
+        SegmentCachedFilter(Filter filter, Object key, @Nullable XTermsDocIdSetCache.Delta delta,
+                            XTermsDocIdSetCache docIdSetCache) {
+            this.filter = filter;
+            this.key = key;
+            this.delta = delta;
+            this.docIdSetCache = docIdSetCache;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            return docIdSetCache.getDocIdSet(filter, key, delta, context, acceptDocs);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -3,6 +3,7 @@ package org.elasticsearch.index.query;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 public class XTermsFilterBuilder extends BaseFilterBuilder {
@@ -11,22 +12,49 @@ public class XTermsFilterBuilder extends BaseFilterBuilder {
     private final String name;
     private String url;
     private Integer timeout;
+    private String refreshInterval;
+    private String maxStale;
+    private String expire;
+    private String maxSize;
+    private Boolean serveStale;
     private Boolean cache;
     private String cacheKey;
     private String filterName;
+    private String execution;
+
+    // combined lookups
+    private String operator;
+    private XTermsFilterBuilder[] operands;
+
+    // resolved terms
+    private String payload;
+
+    // file
+    private String file;
 
     // rest
     private String path;
+    private Integer connectTimeout;
+    private Boolean delta;
 
     // jdbc
     private String query;
     private String driver;
     private String username;
     private String password;
+    private Integer fetchSize;
+    private String partitionColumn;
+    private Integer partitions;
+    private String versionQuery;
+    private String changelogQuery;
 
     // redis
     private String command;
     private List<String> args;
+    private List<String> commands;
+    private List<List<String>> commandsArgs;
+    private Integer scanCount;
+    private Boolean watch;
 
     public XTermsFilterBuilder(String name) {
         this.name = name;
@@ -47,16 +75,126 @@ public class XTermsFilterBuilder extends BaseFilterBuilder {
         return this;
     }
 
+    /**
+     * How terms are matched on each segment: <tt>auto</tt> (default), <tt>seek</tt>, <tt>merge</tt>, <tt>scan</tt>
+     * or <tt>fielddata</tt>
+     */
+    public XTermsFilterBuilder execution(String execution) {
+        this.execution = execution;
+        return this;
+    }
+
     public XTermsFilterBuilder timeout(int timeout) {
         this.timeout = timeout;
         return this;
     }
 
+    /**
+     * Age after which cached terms get refreshed in the background, while still being served (e.g. "10s")
+     */
+    public XTermsFilterBuilder refreshInterval(String refreshInterval) {
+        this.refreshInterval = refreshInterval;
+        return this;
+    }
+
+    /**
+     * Max age of cached terms served while they are being refreshed (e.g. "1m")
+     */
+    public XTermsFilterBuilder maxStale(String maxStale) {
+        this.maxStale = maxStale;
+        return this;
+    }
+
+    /**
+     * Age after which cached terms are fetched again (e.g. "1h"), "-1" keeps them until they are invalidated
+     */
+    public XTermsFilterBuilder expire(String expire) {
+        this.expire = expire;
+        return this;
+    }
+
+    /**
+     * Matches the union of the terms of the given lookups, instead of a single one. Lookups are defined by builders
+     * of their own, whose name and filter options are ignored.
+     */
+    public XTermsFilterBuilder union(XTermsFilterBuilder... lookups) {
+        return combine("union", lookups);
+    }
+
+    /**
+     * Matches the terms common to all the given lookups
+     */
+    public XTermsFilterBuilder intersect(XTermsFilterBuilder... lookups) {
+        return combine("intersect", lookups);
+    }
+
+    /**
+     * Matches the terms of the first lookup not in any of the others
+     */
+    public XTermsFilterBuilder minus(XTermsFilterBuilder... lookups) {
+        return combine("minus", lookups);
+    }
+
+    private XTermsFilterBuilder combine(String operator, XTermsFilterBuilder... lookups) {
+        this.operator = operator;
+        this.operands = lookups;
+        return this;
+    }
+
+    /**
+     * Terms resolved already, as encoded by {@link org.elasticsearch.index.query.fetch.XTermsSet#encode()}, instead
+     * of a lookup
+     */
+    public XTermsFilterBuilder payload(String payload) {
+        this.payload = payload;
+        return this;
+    }
+
+    /**
+     * Terms file of the nodes to look the terms up from, relative to their <tt>xterms.file.dir</tt>, instead of an url
+     */
+    public XTermsFilterBuilder file(String file) {
+        this.file = file;
+        return this;
+    }
+
+    /**
+     * Max size of the fetched terms, fetches of bigger lookups fail (e.g. "10mb")
+     */
+    public XTermsFilterBuilder maxSize(String maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Serve the last fetched terms, if still cached, when fetching them fails
+     */
+    public XTermsFilterBuilder serveStale(boolean serveStale) {
+        this.serveStale = serveStale;
+        return this;
+    }
+
     public XTermsFilterBuilder path(String path) {
         this.path = path;
         return this;
     }
 
+    /**
+     * Connect timeout in ms of rest lookups
+     */
+    public XTermsFilterBuilder connectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Asks rest lookups for the changes since the cached version of their terms, instead of all of them
+     */
+    public XTermsFilterBuilder delta(boolean delta) {
+        this.delta = delta;
+        return this;
+    }
+
     public XTermsFilterBuilder url(String url) {
         this.url = url;
         return this;
@@ -82,6 +220,34 @@ public class XTermsFilterBuilder extends BaseFilterBuilder {
         return this;
     }
 
+    /**
+     * Number of rows fetched per round trip to the database
+     */
+    public XTermsFilterBuilder fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Splits the query in a number of partitions by ranges of the given numeric column, fetched concurrently
+     */
+    public XTermsFilterBuilder partitions(String partitionColumn, int partitions) {
+        this.partitionColumn = partitionColumn;
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * Fetches the changes since the cached version of the terms with the changelog query, instead of all of them.
+     * The version query returns the current version, the changelog query the term, whether it was removed and the
+     * version of each change after the version it is given.
+     */
+    public XTermsFilterBuilder changelog(String versionQuery, String changelogQuery) {
+        this.versionQuery = versionQuery;
+        this.changelogQuery = changelogQuery;
+        return this;
+    }
+
     public XTermsFilterBuilder command(String command) {
         this.command = command;
         return this;
@@ -92,15 +258,88 @@ public class XTermsFilterBuilder extends BaseFilterBuilder {
         return this;
     }
 
+    /**
+     * Number of elements requested per batch by the sscan, zscan and hscan redis commands
+     */
+    public XTermsFilterBuilder scanCount(int scanCount) {
+        this.scanCount = scanCount;
+        return this;
+    }
+
+    /**
+     * Watches the keys of the redis commands, invalidating the cached terms as soon as they change
+     */
+    public XTermsFilterBuilder watch(boolean watch) {
+        this.watch = watch;
+        return this;
+    }
+
+    /**
+     * Adds a redis command, all commands are executed in a single round trip and the union of their replies is used
+     */
+    public XTermsFilterBuilder addCommand(String command, List<String> args) {
+        if (commands == null) {
+            commands = new ArrayList<String>();
+            commandsArgs = new ArrayList<List<String>>();
+        }
+        commands.add(command);
+        commandsArgs.add(args);
+        return this;
+    }
+
     @Override
     public void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(XTermsFilterParser.NAME);
         builder.startObject(name);
-        builder.field("url", url);
+        lookupXContent(builder);
+        builder.endObject();
+        if (filterName != null) {
+            builder.field("_name", filterName);
+        }
+        if (cache != null) {
+            builder.field("_cache", cache);
+        }
+        if (cacheKey != null) {
+            builder.field("_cache_key", cacheKey);
+        }
+        if (execution != null) {
+            builder.field("execution", execution);
+        }
+        builder.endObject();
+    }
+
+    /**
+     * Writes the content of the lookup element
+     */
+    private void lookupXContent(XContentBuilder builder) throws IOException {
+        if (operator != null) {
+            builder.startArray(operator);
+            for (XTermsFilterBuilder operand : operands) {
+                builder.startObject();
+                operand.lookupXContent(builder);
+                builder.endObject();
+            }
+            builder.endArray();
+        }
+        if (url != null) {
+            builder.field("url", url);
+        }
+        if (file != null) {
+            builder.field("file", file);
+        }
+        if (payload != null) {
+            builder.field("payload", payload);
+        }
         // rest
         if (path != null) {
             builder.field("path", path);
         }
+        if (connectTimeout != null) {
+            builder.field("connect_timeout", connectTimeout);
+        }
+        if (delta != null) {
+            builder.field("delta", delta);
+        }
         // jdbc
         if (query != null) {
             builder.field("query", query);
@@ -114,6 +353,19 @@ public class XTermsFilterBuilder extends BaseFilterBuilder {
         if (password != null) {
             builder.field("password", password);
         }
+        if (fetchSize != null) {
+            builder.field("fetch_size", fetchSize);
+        }
+        if (partitionColumn != null) {
+            builder.field("partition_column", partitionColumn);
+            builder.field("partitions", partitions);
+        }
+        if (versionQuery != null) {
+            builder.field("version_query", versionQuery);
+        }
+        if (changelogQuery != null) {
+            builder.field("changelog_query", changelogQuery);
+        }
         // redis
         if (command != null) {
             builder.field("command", command);
@@ -121,20 +373,40 @@ public class XTermsFilterBuilder extends BaseFilterBuilder {
         if (args != null) {
             builder.array("args", args);
         }
+        if (scanCount != null) {
+            builder.field("scan_count", scanCount);
+        }
+        if (watch != null) {
+            builder.field("watch", watch);
+        }
+        if (commands != null) {
+            builder.startArray("commands");
+            for (int i = 0; i < commands.size(); i++) {
+                builder.startObject();
+                builder.field("command", commands.get(i));
+                builder.array("args", commandsArgs.get(i));
+                builder.endObject();
+            }
+            builder.endArray();
+        }
         //common
         if (timeout != null) {
             builder.field("timeout", timeout);
         }
-        builder.endObject();
-        if (filterName != null) {
-            builder.field("_name", filterName);
+        if (refreshInterval != null) {
+            builder.field("refresh_interval", refreshInterval);
         }
-        if (cache != null) {
-            builder.field("_cache", cache);
+        if (maxStale != null) {
+            builder.field("max_stale", maxStale);
         }
-        if (cacheKey != null) {
-            builder.field("_cache_key", cacheKey);
+        if (expire != null) {
+            builder.field("expire", expire);
+        }
+        if (maxSize != null) {
+            builder.field("max_size", maxSize);
+        }
+        if (serveStale != null) {
+            builder.field("serve_stale", serveStale);
         }
-        builder.endObject();
     }
-}
\ No newline at end of file
+}
@@ -1,29 +1,35 @@
 package org.elasticsearch.index.query;
 
 import org.apache.lucene.search.Filter;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.common.lucene.search.XTermsDocIdSetCache;
 import org.elasticsearch.common.lucene.search.XTermsFilter;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.Index;
 import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MapperService;
-import org.elasticsearch.index.query.fetch.XJDBCTermsFetch;
-import org.elasticsearch.index.query.fetch.XRedisTermsFetch;
-import org.elasticsearch.index.query.fetch.XRestTermsFetch;
+import org.elasticsearch.index.query.fetch.XLongTermsSet;
 import org.elasticsearch.index.query.fetch.XTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.index.query.fetch.XTermsLookup;
 
 import java.io.IOException;
-import java.sql.SQLException;
-import java.util.ArrayList;
 
 public class XTermsFilterParser implements FilterParser {
 
     public static final String NAME = "xterms";
 
+    private final XTermsFetchService fetchService;
+
+    private final XTermsDocIdSetCache docIdSetCache;
+
     @Inject
-    public XTermsFilterParser() {
+    public XTermsFilterParser(XTermsFetchService fetchService, XTermsDocIdSetCache docIdSetCache) {
+        this.fetchService = fetchService;
+        this.docIdSetCache = docIdSetCache;
     }
 
     @Override
@@ -39,26 +45,10 @@ public class XTermsFilterParser implements FilterParser {
         String filterName = null;
         String currentFieldName = null;
 
-        // fetch settings
-        // common to all
-        String url = null;
-        Integer timeout = null;
+        XTermsLookup lookup = null;
         CacheKeyFilter.Key cacheKey = null;
         boolean cache = true;
-
-        // rest fetch
-        String path = null;
-
-        // redis fetch
-        String command = null;
-        ArrayList<String> args = new ArrayList<String>();
-
-        // jdbc fetch
-        String query = null;
-        String driver = null;
-        String username = null;
-        String password = null;
-
+        XTermsFilter.Execution execution = XTermsFilter.Execution.AUTO;
 
         XContentParser.Token token;
         String fieldName = null;
@@ -68,48 +58,10 @@ public class XTermsFilterParser implements FilterParser {
             }
             if (token == XContentParser.Token.START_OBJECT) {
                 fieldName = currentFieldName;
-                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
-                    if (token == XContentParser.Token.FIELD_NAME) {
-                        currentFieldName = parser.currentName();
-                    } else if (token.isValue()) {
-                        if ("url".equals(currentFieldName)) {
-                            url = parser.text();
-                        } else if ("timeout".equals(currentFieldName)) {
-                            timeout = parser.intValue();
-                        }
-                        // rest data source
-                        else if ("path".equals(currentFieldName)) {
-                            path = parser.text();
-                        }
-                        // database data source
-                        else if ("query".equals(currentFieldName)) {
-                            query = parser.text();
-                        } else if ("driver".equals(currentFieldName)) {
-                            driver = parser.text();
-                        } else if ("username".equals(currentFieldName)) {
-                            username = parser.text();
-                        } else if ("password".equals(currentFieldName)) {
-                            password = parser.text();
-                        }
-                        // redis datasource
-                        else if ("command".equals(currentFieldName)) {
-                            command = parser.text();
-                        } else {
-                            throw new QueryParsingException(parseContext.index(), "[xterms] filter does not support [" + currentFieldName + "] within lookup element");
-                        }
-                    } else if (token == XContentParser.Token.START_ARRAY) {
-                        if ("args".equals(currentFieldName)) {
-                            while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
-                                String value = parser.text();
-                                if (value == null) {
-                                    throw new QueryParsingException(parseContext.index(), "No arguments specified for redis command");
-                                }
-                                args.add(value);
-                            }
-                        } else {
-                            throw new QueryParsingException(parseContext.index(), "[xterms] filter does not support array for parameter [" + currentFieldName + "]");
-                        }
-                    }
+                try {
+                    lookup = XTermsLookup.parse(parser);
+                } catch (ElasticSearchIllegalArgumentException e) {
+                    throw new QueryParsingException(parseContext.index(), e.getMessage());
                 }
             } else if (token.isValue()) {
                 if ("_name".equals(currentFieldName)) {
@@ -118,6 +70,12 @@ public class XTermsFilterParser implements FilterParser {
                     cache = parser.booleanValue();
                 } else if ("_cache_key".equals(currentFieldName) || "_cacheKey".equals(currentFieldName)) {
                     cacheKey = new CacheKeyFilter.Key(parser.text());
+                } else if ("execution".equals(currentFieldName)) {
+                    try {
+                        execution = XTermsFilter.Execution.fromString(parser.text());
+                    } catch (ElasticSearchIllegalArgumentException e) {
+                        throw new QueryParsingException(parseContext.index(), "[xterms] filter " + e.getMessage());
+                    }
                 } else {
                     throw new QueryParsingException(parseContext.index(), "[xterms] filter does not support [" + currentFieldName + "]");
                 }
@@ -128,9 +86,6 @@ public class XTermsFilterParser implements FilterParser {
         if (fieldName == null) {
             throw new QueryParsingException(parseContext.index(), "[xterms] filter requires a field name and the definition of where the terms should be fetched from");
         }
-        if (url == null) {
-            throw new QueryParsingException(parseContext.index(), "[xterms] filter requires specifying an [url]");
-        }
 
         FieldMapper fieldMapper = null;
         smartNameFieldMappers = parseContext.smartFieldMappers(fieldName);
@@ -146,49 +101,29 @@ public class XTermsFilterParser implements FilterParser {
             return Queries.MATCH_NO_FILTER;
         }
 
-        XTermsFetch termsFetch = null;
-        if (query != null) {
-            validateJDBCFetch(parseContext.index(), url, query, driver, username, password);
-            try {
-                termsFetch = new XJDBCTermsFetch(url, query, driver, username, password, cacheKey, fieldMapper, parseContext);
-            } catch (ClassNotFoundException e) {
-                throw new QueryParsingException(parseContext.index(), "[xterms] driver [" + driver + "] was not found in classpath");
-            } catch (SQLException e) {
-                throw new QueryParsingException(parseContext.index(), "[xterms] error while opening connection with database[" + e.getMessage() + "]");
-            }
-        } else if (command != null) {
-            validateRedisFetch(parseContext.index(), url, command, args);
-            termsFetch = new XRedisTermsFetch(url, command, args, cacheKey, fieldMapper, parseContext);
-        } else {
-            validateRestFetch(parseContext.index(), url, path);
-            termsFetch = new XRestTermsFetch(url, path, timeout, cacheKey, fieldMapper, parseContext);
+        XTermsFetch termsFetch;
+        try {
+            termsFetch = lookup.createFetch(cacheKey, fetchService, fieldMapper, parseContext);
+        } catch (ElasticSearchIllegalArgumentException e) {
+            throw new QueryParsingException(parseContext.index(), e.getMessage());
         }
-        // fetch terms definition
 
-        Filter filter = new XTermsFilter(termsFetch);
-        // cache the whole filter by default, or if explicitly told to
-        if (cache) {
-            filter = parseContext.cacheFilter(filter, termsFetch.cacheKey());
+        // start fetching the terms right away, so the fetch overlaps with the rest of the query parsing
+        termsFetch.prefetch();
+
+        // the filter outlives the parse context, which is reused by the next query parsed on this thread, so what it
+        // needs from the context is resolved now and only the terms are resolved later
+        IndexNumericFieldData fieldData = null;
+        if (XLongTermsSet.supports(fieldMapper)) {
+            fieldData = parseContext.fieldData().getForField(fieldMapper);
         }
+        // cache the whole filter by default, or if explicitly told to, once its terms have been fetched (an explicit
+        // cache key is used as is), otherwise its doc id sets are cached per segment
+        Filter filter = new XTermsFilter(termsFetch, cache ? parseContext.indexCache().filter() : null, execution,
+                fieldData, docIdSetCache);
         if (filterName != null) {
             parseContext.addNamedFilter(filterName, filter);
         }
         return filter;
     }
-
-    private void validateRedisFetch(Index index, String url, String command, ArrayList<String> args) {
-        if (command == null || args.size() == 0) {
-            throw new QueryParsingException(index, "[xterms] filter redis lookup element requires a [command] and an [args] parameter. args must be a non empty array");
-        }
-    }
-
-    private void validateJDBCFetch(Index index, String url, String query, String driver, String username, String password) {
-        if (query == null || driver == null || username == null || password == null) {
-            throw new QueryParsingException(index, "[xterms] filter jdbc lookup element requires all of [url, query, driver, username, password]");
-        }
-    }
-
-    private void validateRestFetch(Index index, String url, String path) {
-        // none so far
-    }
 }
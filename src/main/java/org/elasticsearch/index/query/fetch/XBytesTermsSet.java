@@ -0,0 +1,379 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.BytesRefIterator;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.UnicodeUtil;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Term set of arbitrary terms, held as their UTF-8 bytes sorted in index order and front coded in a single block:
+ * each term is written as the length of the prefix it shares with the previous term, the length of the remaining
+ * suffix and the suffix bytes, lengths being variable length encoded.
+ */
+public class XBytesTermsSet extends XTermsSet {
+
+    private final byte[] block;
+
+    private final int length;
+
+    private final int size;
+
+    XBytesTermsSet(byte[] block, int length, int size) {
+        this.block = block;
+        this.length = length;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an iterator over the terms, in index order. The returned {@link BytesRef} is reused between calls.
+     */
+    public Iterator iterator() {
+        return new Iterator();
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.sizeOf(block);
+    }
+
+    @Override
+    public List<Object> toList() {
+        List<Object> terms = new ArrayList<Object>(size);
+        Iterator iterator = iterator();
+        BytesRef term;
+        while ((term = iterator.next()) != null) {
+            terms.add(term.utf8ToString());
+        }
+        return terms;
+    }
+
+    @Override
+    void digest(MessageDigest digest) {
+        // the block is a deterministic encoding of the sorted terms
+        digest.update(block, 0, length);
+    }
+
+    /**
+     * Writes the number of terms and the front coded block as is
+     */
+    @Override
+    void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(size);
+        out.writeVInt(length);
+        out.writeBytes(block, 0, length);
+    }
+
+    /**
+     * Merges the terms with the sorted terms added and removed, in a single pass over the three of them
+     */
+    @Override
+    public XBytesTermsSet patch(XTermsSet added, XTermsSet removed) {
+        Iterator terms = iterator();
+        Iterator adds = ((XBytesTermsSet) added).iterator();
+        Iterator removes = ((XBytesTermsSet) removed).iterator();
+        BlockWriter writer = new BlockWriter();
+        BytesRef term = terms.next();
+        BytesRef add = adds.next();
+        BytesRef remove = removes.next();
+        while (term != null || add != null) {
+            int cmp = term == null ? 1 : add == null ? -1 : term.compareTo(add);
+            if (cmp > 0) {
+                writer.add(add);
+                add = adds.next();
+                continue;
+            }
+            if (cmp == 0) {
+                // added again, it stays whether it was removed or not
+                add = adds.next();
+            } else {
+                while (remove != null && remove.compareTo(term) < 0) {
+                    remove = removes.next();
+                }
+                if (remove != null && remove.equals(term)) {
+                    term = terms.next();
+                    continue;
+                }
+            }
+            writer.add(term);
+            term = terms.next();
+        }
+        return writer.build();
+    }
+
+    /**
+     * Intersects the terms with the sorted terms of the other set, in a single pass over both of them
+     */
+    @Override
+    public XBytesTermsSet intersect(XTermsSet other) {
+        Iterator terms = iterator();
+        Iterator others = ((XBytesTermsSet) other).iterator();
+        BlockWriter writer = new BlockWriter();
+        BytesRef term = terms.next();
+        BytesRef otherTerm = others.next();
+        while (term != null && otherTerm != null) {
+            int cmp = term.compareTo(otherTerm);
+            if (cmp < 0) {
+                term = terms.next();
+            } else if (cmp > 0) {
+                otherTerm = others.next();
+            } else {
+                writer.add(term);
+                term = terms.next();
+                otherTerm = others.next();
+            }
+        }
+        return writer.build();
+    }
+
+    /**
+     * @param remaining bytes left in the input
+     * @param limits    builder the memory of the terms is reserved from
+     */
+    static XBytesTermsSet readFrom(StreamInput in, int remaining, XTermsSet.Builder limits) throws IOException {
+        int size = in.readVInt();
+        int length = in.readVInt();
+        // each term takes at least the two bytes of its prefix and suffix lengths
+        if (length < 0 || length > remaining || size < 0 || size > length / 2) {
+            throw new IOException("Terms payload announces [" + size + "] terms in [" + length + "] bytes but holds ["
+                    + remaining + "] bytes");
+        }
+        limits.reserve(length);
+        byte[] block = new byte[length];
+        in.readBytes(block, 0, length);
+        // the iterator and the merges rely on a well formed block
+        new BlockChecker(block, length).check(size);
+        return new XBytesTermsSet(block, length, size);
+    }
+
+    public class Iterator implements BytesRefIterator {
+
+        private final BytesRef term = new BytesRef();
+
+        private int position;
+
+        @Override
+        public BytesRef next() {
+            if (position >= length) {
+                return null;
+            }
+            int prefix = readVInt();
+            int suffix = readVInt();
+            term.grow(prefix + suffix);
+            System.arraycopy(block, position, term.bytes, prefix, suffix);
+            term.length = prefix + suffix;
+            position += suffix;
+            return term;
+        }
+
+        @Override
+        public Comparator<BytesRef> getComparator() {
+            return BytesRef.getUTF8SortedAsUnicodeComparator();
+        }
+
+        private int readVInt() {
+            byte b = block[position++];
+            int value = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = block[position++];
+                value |= (b & 0x7F) << shift;
+            }
+            return value;
+        }
+    }
+
+    public static class Builder extends XTermsSet.Builder {
+
+        private final BytesRefHash hash = new BytesRefHash();
+
+        private final BytesRef scratch = new BytesRef();
+
+        private long bytes;
+
+        @Override
+        public void add(Object term) {
+            if (term == null) {
+                return;
+            }
+            if (term instanceof BytesRef) {
+                add((BytesRef) term);
+            } else {
+                String value = term.toString();
+                UnicodeUtil.UTF16toUTF8(value, 0, value.length(), scratch);
+                add(scratch);
+            }
+        }
+
+        @Override
+        public void add(BytesRef term) {
+            // new term: its bytes, its length and its entry in the hash
+            long size = bytes + term.length + 2 + RamUsageEstimator.NUM_BYTES_INT * 2;
+            checkSize(size);
+            if (hash.add(term) >= 0) {
+                bytes = size;
+            }
+        }
+
+        @Override
+        public void add(long term) {
+            add(Long.toString(term));
+        }
+
+        @Override
+        public void addAll(XTermsSet terms) {
+            if (terms instanceof XBytesTermsSet) {
+                Iterator iterator = ((XBytesTermsSet) terms).iterator();
+                BytesRef term;
+                while ((term = iterator.next()) != null) {
+                    add(term);
+                }
+            } else {
+                XLongTermsSet set = (XLongTermsSet) terms;
+                for (int i = 0; i < set.size(); i++) {
+                    add(set.get(i));
+                }
+            }
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return bytes;
+        }
+
+        @Override
+        public XBytesTermsSet build() {
+            int size = hash.size();
+            int[] ids = hash.sort(BytesRef.getUTF8SortedAsUnicodeComparator());
+            BlockWriter writer = new BlockWriter();
+            BytesRef term = new BytesRef();
+            for (int i = 0; i < size; i++) {
+                hash.get(ids[i], term);
+                writer.add(term);
+            }
+            hash.close();
+            return writer.build();
+        }
+    }
+
+    /**
+     * Checks that a block read from a payload front codes the given number of terms in strictly ascending order
+     */
+    static class BlockChecker {
+
+        private final byte[] block;
+
+        private final int length;
+
+        private int position;
+
+        BlockChecker(byte[] block, int length) {
+            this.block = block;
+            this.length = length;
+        }
+
+        void check(int size) throws IOException {
+            BytesRef previous = new BytesRef();
+            BytesRef term = new BytesRef();
+            int count = 0;
+            while (position < length) {
+                int prefix = readVInt();
+                int suffix = readVInt();
+                if (prefix > previous.length || suffix > length - position) {
+                    throw new IOException("Corrupted terms payload, term [" + count + "] is out of the bounds of the block");
+                }
+                term.grow(prefix + suffix);
+                System.arraycopy(previous.bytes, 0, term.bytes, 0, prefix);
+                System.arraycopy(block, position, term.bytes, prefix, suffix);
+                term.length = prefix + suffix;
+                position += suffix;
+                if (count > 0 && term.compareTo(previous) <= 0) {
+                    throw new IOException("Corrupted terms payload, term [" + count + "] is not greater than the previous one");
+                }
+                BytesRef swap = previous;
+                previous = term;
+                term = swap;
+                count++;
+            }
+            if (count != size) {
+                throw new IOException("Terms payload announces [" + size + "] terms but holds [" + count + "]");
+            }
+        }
+
+        private int readVInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= length) {
+                    break;
+                }
+                byte b = block[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Corrupted terms payload, malformed length at [" + position + "]");
+        }
+    }
+
+    /**
+     * Front codes terms added in index order into a block
+     */
+    static class BlockWriter {
+
+        private byte[] block = new byte[16];
+
+        private int length;
+
+        private int size;
+
+        private final BytesRef previous = new BytesRef();
+
+        void add(BytesRef term) {
+            int prefix = StringHelper.bytesDifference(previous, term);
+            int suffix = term.length - prefix;
+            block = ArrayUtil.grow(block, length + 10 + suffix);
+            length = writeVInt(block, length, prefix);
+            length = writeVInt(block, length, suffix);
+            System.arraycopy(term.bytes, term.offset + prefix, block, length, suffix);
+            length += suffix;
+            previous.copyBytes(term);
+            size++;
+        }
+
+        XBytesTermsSet build() {
+            if (block.length != length) {
+                byte[] trimmed = new byte[length];
+                System.arraycopy(block, 0, trimmed, 0, length);
+                block = trimmed;
+            }
+            return new XBytesTermsSet(block, length, size);
+        }
+
+        private static int writeVInt(byte[] block, int position, int value) {
+            while ((value & ~0x7F) != 0) {
+                block[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            block[position++] = (byte) value;
+            return position;
+        }
+    }
+}
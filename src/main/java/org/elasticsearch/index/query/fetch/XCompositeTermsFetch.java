@@ -0,0 +1,134 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.QueryParseContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Combines the terms of several lookups with a set operator, so only the combined terms are matched against the
+ * segments: <tt>union</tt>, <tt>intersect</tt>, or <tt>minus</tt> (the terms of the first lookup not in any of the
+ * others). The lookups are fetched in parallel, each one cached on its own, and their sorted sets are combined by
+ * linear merges.
+ * <p/>
+ * Combined terms are keyed by the terms of the lookups, so they are shared until one of the lookups changes and
+ * don't expire otherwise. They count towards the max size of the composite lookup and the breaker of the node like
+ * fetched terms, each merge reserving the most its result can take before allocating it.
+ */
+public class XCompositeTermsFetch extends XTermsFetch {
+
+    private static final TimeValue NEVER = TimeValue.timeValueMillis(-1);
+
+    public static enum Operator {
+        UNION, INTERSECT, MINUS;
+
+        public static Operator fromString(String operator) {
+            if ("union".equals(operator)) {
+                return UNION;
+            } else if ("intersect".equals(operator)) {
+                return INTERSECT;
+            } else if ("minus".equals(operator)) {
+                return MINUS;
+            }
+            throw new ElasticSearchIllegalArgumentException("No operator [" + operator + "] for xterms lookups");
+        }
+    }
+
+    private final Operator operator;
+
+    private final List<XTermsFetch> operands;
+
+    private String sourceKey;
+
+    public XCompositeTermsFetch(Operator operator, List<XTermsFetch> operands, CacheKeyFilter.Key key,
+                                XTermsFetchService fetchService, @Nullable FieldMapper fieldMapper,
+                                @Nullable QueryParseContext queryParseContext) {
+        super(operator.name(), key, fetchService, fieldMapper, queryParseContext);
+        this.operator = operator;
+        this.operands = operands;
+    }
+
+    /**
+     * Starts fetching all lookups, the combined terms are keyed by their terms so they can't be looked up yet
+     */
+    @Override
+    public void prefetch() {
+        for (XTermsFetch operand : operands) {
+            operand.prefetch();
+        }
+    }
+
+    /**
+     * Resolves the terms of the lookups, on first call
+     */
+    @Override
+    protected synchronized String sourceKey() {
+        if (sourceKey == null) {
+            StringBuilder key = new StringBuilder("composite|").append(url);
+            for (XTermsFetch operand : operands) {
+                key.append('|');
+                for (byte b : operand.cacheKey().bytes()) {
+                    key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+            }
+            sourceKey = key.toString();
+        }
+        return sourceKey;
+    }
+
+    @Override
+    public TimeValue expire() {
+        return super.expire() != null ? super.expire() : NEVER;
+    }
+
+    @Override
+    protected boolean guarded() {
+        return false;
+    }
+
+    @Override
+    protected XFetchedTerms fetchTerms() {
+        List<XTermsSet> sets = new ArrayList<XTermsSet>(operands.size());
+        for (XTermsFetch operand : operands) {
+            sets.add(operand.getTerms());
+        }
+        // combined sets are held by the cache like fetched ones, so they are limited the same way
+        XTermsSet.Builder limits = newTermsBuilder();
+        XTermsSet terms = sets.get(0);
+        if (operator == Operator.INTERSECT) {
+            // smallest first, the intersection only gets smaller
+            Collections.sort(sets, new Comparator<XTermsSet>() {
+                @Override
+                public int compare(XTermsSet o1, XTermsSet o2) {
+                    return o1.size() < o2.size() ? -1 : (o1.size() == o2.size() ? 0 : 1);
+                }
+            });
+            terms = sets.get(0);
+            for (int i = 1; i < sets.size() && terms.size() > 0; i++) {
+                limits.reserve(terms.sizeInBytes());
+                terms = terms.intersect(sets.get(i));
+            }
+        } else {
+            XTermsSet empty = XTermsSet.builder(getFieldMapper()).build();
+            for (int i = 1; i < sets.size(); i++) {
+                if (operator == Operator.UNION) {
+                    limits.reserve(terms.sizeInBytes() + sets.get(i).sizeInBytes());
+                    terms = terms.patch(sets.get(i), empty);
+                } else {
+                    limits.reserve(terms.sizeInBytes());
+                    terms = terms.patch(empty, sets.get(i));
+                }
+            }
+        }
+        // the estimates don't bound the front coding of merged terms
+        limits.reserve(terms.sizeInBytes());
+        return new XFetchedTerms(terms, null);
+    }
+}
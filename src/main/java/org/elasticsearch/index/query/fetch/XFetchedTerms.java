@@ -0,0 +1,171 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The terms fetched for a lookup, along with the version the source reported for them, if any
+ */
+public class XFetchedTerms {
+
+    private final XTermsSet terms;
+
+    private final String version;
+
+    private final long sizeInBytes;
+
+    private final long timestamp;
+
+    private volatile CacheKeyFilter.Key key;
+
+    private final Delta delta;
+
+    private volatile boolean invalidated;
+
+    public XFetchedTerms(XTermsSet terms, @Nullable String version) {
+        this(terms, version, terms.sizeInBytes(), null, null);
+    }
+
+    private XFetchedTerms(XTermsSet terms, String version, long sizeInBytes, CacheKeyFilter.Key key, Delta delta) {
+        this.terms = terms;
+        this.version = version;
+        this.sizeInBytes = sizeInBytes;
+        this.timestamp = System.currentTimeMillis();
+        this.key = key;
+        this.delta = delta;
+    }
+
+    /**
+     * Returns the same terms fetched now, for when the source confirmed they didn't change
+     */
+    public XFetchedTerms revalidate() {
+        return new XFetchedTerms(terms, version, sizeInBytes, key, delta);
+    }
+
+    /**
+     * Returns these terms patched with the changes the source reported since their version
+     *
+     * @param version   version of the terms once patched
+     * @param lookupKey key of the lookup, the key of these terms is derived from
+     */
+    public XFetchedTerms patch(XTermsSet added, XTermsSet removed, String version, String lookupKey) {
+        XTermsSet patched = terms.patch(added, removed);
+        return new XFetchedTerms(patched, version, patched.sizeInBytes(), null, new Delta(cacheKey(lookupKey), added, removed));
+    }
+
+    /**
+     * Marks these terms as changed at the source, they are fetched again on next use. They are still around to be
+     * revalidated or patched, and served meanwhile by lookups refreshed ahead.
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    /**
+     * Changes these terms were patched with, or null if they were fetched as a whole
+     */
+    @Nullable
+    public Delta delta() {
+        return delta;
+    }
+
+    public XTermsSet terms() {
+        return terms;
+    }
+
+    /**
+     * Version of the terms as reported by the source (e.g. an ETag), or null if the source doesn't support it
+     */
+    @Nullable
+    public String version() {
+        return version;
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Time at which the terms were fetched
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns a fixed size key identifying these terms. If the source reported a version, the key is derived from
+     * the lookup definition and the version, otherwise it is a 128 bit digest over the content of the terms.
+     */
+    public CacheKeyFilter.Key cacheKey(String lookupKey) {
+        if (key == null) {
+            MessageDigest digest = newDigest();
+            if (version != null) {
+                BytesRef bytes = new BytesRef();
+                update(digest, lookupKey, bytes);
+                update(digest, version, bytes);
+            } else {
+                terms.digest(digest);
+            }
+            key = new CacheKeyFilter.Key(digest.digest());
+        }
+        return key;
+    }
+
+    private static void update(MessageDigest digest, String value, BytesRef bytes) {
+        UnicodeUtil.UTF16toUTF8(value, 0, value.length(), bytes);
+        // length prefixed, so the boundaries between terms are part of the digest
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 digest not available", e);
+        }
+    }
+
+    /**
+     * Terms added to and removed from the terms identified by a base key, so whatever was computed for the base terms
+     * can be updated rather than computed again
+     */
+    public static class Delta {
+
+        private final CacheKeyFilter.Key base;
+
+        private final XTermsSet added;
+
+        private final XTermsSet removed;
+
+        Delta(CacheKeyFilter.Key base, XTermsSet added, XTermsSet removed) {
+            this.base = base;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public CacheKeyFilter.Key base() {
+            return base;
+        }
+
+        public XTermsSet added() {
+            return added;
+        }
+
+        public XTermsSet removed() {
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.QueryParseContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Fetches terms from a precompiled term file on the local disk of the node, e.g. produced by a batch job. Files of
+ * numbers are memory mapped, so their values stay off heap and are shared by all lookups on the file, whatever the
+ * number of shards. Files of other terms are read into a term set on the heap, as terms fetched from any other
+ * source, so they are limited by the max size of the lookup and the breaker of the node. The state of the files is
+ * held by the {@link XTermsFetchService} of the node, which drops it once closed.
+ * <p/>
+ * A file is looked up again once its modification time or size changes, and its terms are only reloaded if its
+ * checksum changed too, which is also the version of its terms. Files are expected to be replaced atomically (written
+ * aside, then renamed), rather than overwritten in place, since mapped files are read as they are.
+ * <p/>
+ * Files are big endian, starting with a header of 16 bytes: the magic <tt>XTRM</tt>, a format version (1), the
+ * type of the terms (0 for numbers, 1 for others), two reserved bytes and the number of terms as a long. Numbers
+ * follow as longs, sorted ascending and unique. Other terms follow in the <tt>application/x-xterms-terms</tt> format
+ * of {@link XTermsPayload}. {@link #write(XTermsSet, File)} writes such a file.
+ * <p/>
+ * Paths are resolved within the directory of term files of the node:
+ * <ul>
+ * <li><tt>xterms.file.dir</tt>: directory of term files (defaults to the <tt>xterms</tt> directory of the config
+ * directory)</li>
+ * </ul>
+ */
+public class XFileTermsFetch extends XTermsFetch {
+
+    private static final int MAGIC = ('X' << 24) | ('T' << 16) | ('R' << 8) | 'M';
+    private static final byte VERSION = 1;
+    private static final byte TYPE_LONGS = 0;
+    private static final byte TYPE_TERMS = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final File file;
+
+    public XFileTermsFetch(String path, CacheKeyFilter.Key key, XTermsFetchService fetchService, FieldMapper fieldMapper,
+                           @Nullable QueryParseContext queryParseContext) {
+        super(path, key, fetchService, fieldMapper, queryParseContext);
+        this.file = resolve(path, fetchService.termsFileDir());
+    }
+
+    private static File resolve(String path, File root) {
+        try {
+            File file = new File(root, path).getCanonicalFile();
+            if (!file.getPath().startsWith(root.getCanonicalPath() + File.separator)) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] file [" + path + "] is not within [" + root + "]");
+            }
+            return file;
+        } catch (IOException e) {
+            throw new ElasticSearchIllegalArgumentException("[xterms] invalid file [" + path + "]", e);
+        }
+    }
+
+    @Override
+    protected String sourceKey() {
+        return "file|" + file.getPath();
+    }
+
+    @Override
+    protected XFetchedTerms fetchTerms() {
+        TermsFile termsFile = termsFile();
+        XFetchedTerms previous = fetchService.getPreviousTerms(this);
+        if (previous != null && termsFile.checksum.equals(previous.version())) {
+            return previous.revalidate();
+        }
+        XTermsSet terms;
+        if (termsFile.longs != null && XLongTermsSet.supports(getFieldMapper())) {
+            terms = termsFile.longs;
+        } else {
+            XTermsSet.Builder builder = newTermsBuilder();
+            if (termsFile.longs != null) {
+                builder.addAll(termsFile.longs);
+            } else {
+                readTerms(builder);
+            }
+            terms = builder.build();
+        }
+        return new XFetchedTerms(terms, termsFile.checksum);
+    }
+
+    /**
+     * Returns the current state of the file, checking it again if it was modified since it was last looked up
+     */
+    private TermsFile termsFile() {
+        String key = file.getPath();
+        TermsFile current = fetchService.termsFiles().get(key);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (current != null && current.lastModified == lastModified && current.length == length) {
+            return current;
+        }
+        if (lastModified == 0) {
+            throw new RuntimeException("Terms file [" + file + "] not found");
+        }
+        TermsFile loaded;
+        try {
+            loaded = load(lastModified, length);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading terms file [" + file + "]", e);
+        }
+        if (current != null && current.checksum.equals(loaded.checksum)) {
+            // touched but not changed, keep the mapping already shared
+            loaded = new TermsFile(lastModified, length, current.checksum, current.longs);
+        }
+        fetchService.termsFiles().put(key, loaded);
+        return loaded;
+    }
+
+    private TermsFile load(long lastModified, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid once the file is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+                throw new IOException("Not a terms file of version [" + VERSION + "]");
+            }
+            long count = buffer.getLong(8);
+            String checksum = checksum(buffer);
+            if (buffer.get(5) != TYPE_LONGS) {
+                return new TermsFile(lastModified, length, checksum, null);
+            }
+            if (count > Integer.MAX_VALUE || HEADER_SIZE + count * 8 != buffer.capacity()) {
+                throw new IOException("Terms file holds [" + (buffer.capacity() - HEADER_SIZE) + "] bytes of values instead of ["
+                        + count + "] longs");
+            }
+            buffer.position(HEADER_SIZE);
+            LongBuffer values = buffer.slice().asLongBuffer();
+            for (int i = 1; i < values.limit(); i++) {
+                if (values.get(i) <= values.get(i - 1)) {
+                    throw new IOException("Values of terms file are not sorted and unique at position [" + i + "]");
+                }
+            }
+            return new TermsFile(lastModified, length, checksum, new XLongTermsSet(values));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.clear();
+        byte[] chunk = new byte[64 * 1024];
+        while (bytes.hasRemaining()) {
+            int length = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return Long.toHexString(crc.getValue()) + "-" + buffer.capacity();
+    }
+
+    private void readTerms(XTermsSet.Builder builder) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            // the file might have been truncated since it was checked
+            try {
+                new DataInputStream(in).readFully(new byte[HEADER_SIZE]);
+            } catch (EOFException e) {
+                throw new IOException("Truncated terms file, shorter than its header");
+            }
+            XTermsPayload.readTerms(in, builder);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading terms file [" + file + "]", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to be done
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the given terms as a terms file
+     */
+    public static void write(XTermsSet terms, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            data.writeByte(terms instanceof XLongTermsSet ? TYPE_LONGS : TYPE_TERMS);
+            data.writeShort(0);
+            data.writeLong(terms.size());
+            if (terms instanceof XLongTermsSet) {
+                XLongTermsSet longs = (XLongTermsSet) terms;
+                for (int i = 0; i < longs.size(); i++) {
+                    data.writeLong(longs.get(i));
+                }
+            } else {
+                XTermsPayload.writeTerms((XBytesTermsSet) terms, data);
+            }
+            data.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    static class TermsFile {
+
+        final long lastModified;
+        final long length;
+        final String checksum;
+        // mapped values of a file of numbers, null for other terms
+        final XLongTermsSet longs;
+
+        TermsFile(long lastModified, long length, String checksum, @Nullable XLongTermsSet longs) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checksum = checksum;
+            this.longs = longs;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.elasticsearch.index.query.fetch;
+
+import com.jolbox.bonecp.BoneCP;
+import com.jolbox.bonecp.BoneCPConfig;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Connection pools of the jdbc lookups of a node, one per url, driver and user, held until they are closed along with
+ * the node. Pools are configured by the node settings, as documented by {@link XJDBCTermsFetch}.
+ */
+public class XJDBCPools {
+
+    private final Settings settings;
+
+    // pools by url, driver and user
+    private final ConcurrentMap<String, BoneCP> pools = ConcurrentCollections.newConcurrentMap();
+
+    private volatile boolean closed;
+
+    public XJDBCPools(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Returns the pool of connections to the given database as the given user, creating it on first use. Lookups of
+     * the same user are expected to share its password, the pool keeps the one it was created with.
+     */
+    public BoneCP pool(String driver, String url, String username, String password) throws ClassNotFoundException, SQLException {
+        String key = url.toLowerCase() + "|" + driver.toLowerCase() + "|" + username;
+        BoneCP pool = pools.get(key);
+        if (pool == null) {
+            synchronized (pools) {
+                if (closed) {
+                    throw new RuntimeException("JDBC connection pools are closed");
+                }
+                pool = pools.get(key);
+                if (pool == null) {
+                    Class.forName(driver);
+                    BoneCPConfig config = new BoneCPConfig();
+                    config.setJdbcUrl(url);
+                    config.setUsername(username);
+                    config.setPassword(password);
+                    config.setPartitionCount(settings.getAsInt("xterms.jdbc.pool.partitions", 1));
+                    config.setMinConnectionsPerPartition(settings.getAsInt("xterms.jdbc.pool.min_connections_per_partition", 1));
+                    config.setMaxConnectionsPerPartition(settings.getAsInt("xterms.jdbc.pool.max_connections_per_partition", 20));
+                    config.setStatementsCacheSize(settings.getAsInt("xterms.jdbc.pool.statements_cache_size", 10));
+                    config.setConnectionTimeoutInMs(settings.getAsTime("xterms.jdbc.pool.max_wait", TimeValue.timeValueSeconds(1)).millis());
+                    pool = new BoneCP(config);
+                    pools.put(key, pool);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Number of pools currently open
+     */
+    int size() {
+        return pools.size();
+    }
+
+    /**
+     * Closes the connections of all pools, pools can't be created anymore afterwards
+     */
+    public void close() {
+        synchronized (pools) {
+            closed = true;
+            for (BoneCP pool : pools.values()) {
+                pool.shutdown();
+            }
+            pools.clear();
+        }
+    }
+}
@@ -1,9 +1,8 @@
 package org.elasticsearch.index.query.fetch;
 
 import com.jolbox.bonecp.BoneCP;
-import com.jolbox.bonecp.BoneCPConfig;
 import org.elasticsearch.common.Nullable;
-import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
@@ -13,36 +12,304 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Fetches terms from the first column of the rows returned by a sql query. Rows are streamed through a forward only,
+ * read only cursor, fetching <tt>fetch_size</tt> rows per round trip, so drivers don't buffer the whole result set.
+ * Drivers differ on when they actually stream rows, Postgres does it within a transaction (the query runs with auto
+ * commit disabled) and MySQL requires <tt>useCursorFetch=true</tt> in the url.
+ * <p/>
+ * Big lookups can be split by a numeric <tt>partition_column</tt> in a number of <tt>partitions</tt>, fetched
+ * concurrently on the fetch thread pool, each on its own pooled connection. The bounds of the partitions are taken
+ * from the min and max values of the column in the results of the query, rows with a null partition column are
+ * fetched with the first partition. Lookups whose partition column holds no numbers are fetched by a single query.
+ * <p/>
+ * Lookups defining a <tt>changelog_query</tt> are patched with the changes since the version of their cached terms,
+ * instead of being fetched as a whole. The <tt>version_query</tt> returns the current version in the first column of
+ * its first row, and is run before the query fetching all terms. The changelog query gets the version of the cached
+ * terms as parameter, and returns the changed term, whether it was removed (a boolean) and the version of the change
+ * in the first three columns, ordered by version (changes without version are applied, but leave the version of the
+ * terms as is), e.g.
+ * <tt>SELECT user_id, deleted, id FROM users_changelog WHERE id > ? ORDER BY id</tt>.
+ * <p/>
+ * Connection pools are shared per url, driver and user by the {@link XJDBCPools} of the node, configured by the node
+ * settings:
+ * <ul>
+ * <li><tt>xterms.jdbc.pool.partitions</tt>: number of partitions of the pool (defaults to 1)</li>
+ * <li><tt>xterms.jdbc.pool.min_connections_per_partition</tt>: defaults to 1</li>
+ * <li><tt>xterms.jdbc.pool.max_connections_per_partition</tt>: defaults to 20</li>
+ * <li><tt>xterms.jdbc.pool.statements_cache_size</tt>: prepared statements cached per connection (defaults to 10)</li>
+ * <li><tt>xterms.jdbc.pool.max_wait</tt>: max time waiting for a pooled connection (defaults to 1s)</li>
+ * <li><tt>xterms.jdbc.fetch_size</tt>: default number of rows fetched per round trip (defaults to 1000)</li>
+ * <li><tt>xterms.jdbc.timeout</tt>: default query timeout (defaults to 30s)</li>
+ * </ul>
+ */
 public class XJDBCTermsFetch extends XTermsFetch {
 
-    private static final Map<String, BoneCP> pools = new HashMap<String, BoneCP>();
-    private final String poolKey;
+    private final BoneCP pool;
     private final String query;
+    private final String username;
+    private final int timeout;
+    private final int fetchSize;
+    private final String partitionColumn;
+    private final int partitions;
+    private String versionQuery;
+    private String changelogQuery;
 
-    @Inject
-    public XJDBCTermsFetch(String url, String query, String driver, String username, String password, CacheKeyFilter.Key key,
-                           FieldMapper fieldMapper, @Nullable QueryParseContext queryParseContext) throws ClassNotFoundException, SQLException {
-        super(url, key, fieldMapper, queryParseContext);
-        this.poolKey = createPoolKey(url, driver);
+    public XJDBCTermsFetch(String url, String query, String driver, String username, String password, Integer timeout,
+                           Integer fetchSize, String partitionColumn, Integer partitions, CacheKeyFilter.Key key,
+                           XTermsFetchService fetchService, FieldMapper fieldMapper, @Nullable QueryParseContext queryParseContext)
+            throws ClassNotFoundException, SQLException {
+        super(url, key, fetchService, fieldMapper, queryParseContext);
         this.query = query;
-        initializePool(driver, url, username, password);
+        this.username = username;
+        this.timeout = timeout != null ? timeout :
+                (int) fetchService.nodeSettings().getAsTime("xterms.jdbc.timeout", TimeValue.timeValueSeconds(30)).millis();
+        this.fetchSize = fetchSize != null ? fetchSize : fetchService.nodeSettings().getAsInt("xterms.jdbc.fetch_size", 1000);
+        this.partitionColumn = partitionColumn;
+        this.partitions = partitions != null ? partitions : 1;
+        this.pool = fetchService.jdbcPools().pool(driver, url, username, password);
     }
 
     @Override
-    protected List<Object> fetchTerms() {
-        List<Object> terms = new ArrayList<Object>();
+    protected String sourceKey() {
+        // rows visible to the query might depend on the user
+        return "jdbc|" + url + "|" + username + "|" + query + (changelogQuery != null ? "|" + changelogQuery : "");
+    }
+
+    /**
+     * Queries returning the current version and the changes since a version, to patch cached terms with
+     */
+    public XJDBCTermsFetch changelog(String versionQuery, String changelogQuery) {
+        this.versionQuery = versionQuery;
+        this.changelogQuery = changelogQuery;
+        return this;
+    }
+
+    @Override
+    protected XFetchedTerms fetchTerms() {
+        if (changelogQuery != null) {
+            XFetchedTerms previous = fetchService.getPreviousTerms(this);
+            if (previous != null && previous.version() != null) {
+                return fetchChanges(previous);
+            }
+        }
+        // taken before the terms, changes in between are applied again, which is harmless
+        String version = versionQuery != null ? fetchVersion() : null;
+        XTermsSet.Builder terms = newTermsBuilder();
+        if (partitionColumn == null || partitions <= 1) {
+            fetchRows(query, null, terms);
+        } else {
+            fetchPartitions(terms);
+        }
+        return new XFetchedTerms(terms.build(), version);
+    }
+
+    private String fetchVersion() {
+        final Object[] version = new Object[1];
+        execute(versionQuery, null, new RowHandler() {
+            @Override
+            public void onRow(ResultSet rs) throws SQLException {
+                if (version[0] == null) {
+                    version[0] = rs.getObject(1);
+                }
+            }
+        });
+        return version[0] != null ? version[0].toString() : null;
+    }
+
+    /**
+     * Patches the previous terms with the changes since their version, the last change of a term winning
+     */
+    private XFetchedTerms fetchChanges(XFetchedTerms previous) {
+        final Map<Object, Boolean> changes = new LinkedHashMap<Object, Boolean>();
+        final String[] version = new String[]{previous.version()};
+        execute(changelogQuery, new Object[]{versionParameter(previous.version())}, new RowHandler() {
+            @Override
+            public void onRow(ResultSet rs) throws SQLException {
+                Object term = rs.getObject(1);
+                if (term != null) {
+                    changes.put(term, rs.getBoolean(2));
+                }
+                Object changeVersion = rs.getObject(3);
+                if (changeVersion != null) {
+                    version[0] = changeVersion.toString();
+                }
+            }
+        });
+        if (changes.isEmpty()) {
+            return previous.revalidate();
+        }
+        XTermsSet.Builder added = newTermsBuilder();
+        XTermsSet.Builder removed = newTermsBuilder();
+        for (Map.Entry<Object, Boolean> change : changes.entrySet()) {
+            (change.getValue() ? removed : added).add(change.getKey());
+        }
+        return previous.patch(added.build(), removed.build(), version[0], lookupKey());
+    }
+
+    /**
+     * Versions are kept as strings, but most likely compared to numbers
+     */
+    private static Object versionParameter(String version) {
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            return version;
+        }
+    }
+
+    private void fetchPartitions(XTermsSet.Builder terms) {
+        Object[] bounds = fetchBounds();
+        if (!(bounds[0] instanceof Number) || !(bounds[1] instanceof Number)) {
+            // no rows, only nulls, or not a numeric column
+            fetchRows(query, null, terms);
+            return;
+        }
+        long min = ((Number) bounds[0]).longValue();
+        long max = ((Number) bounds[1]).longValue();
+        long step = (max - min) / partitions + 1;
+        if (max - min < 0 || step <= 0) {
+            // range overflowing a long
+            fetchRows(query, null, terms);
+            return;
+        }
+        String partitionQuery = "SELECT * FROM (" + query + ") xterms_partition WHERE ";
+
+        // set once a partition failed, so the ones not started yet don't bother
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<FutureTask<XTermsSet>> tasks = new ArrayList<FutureTask<XTermsSet>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            long from = min + i * step;
+            final boolean first = i == 0;
+            final boolean last = from > max - step;
+            if (first && last) {
+                // a single partition
+                fetchRows(query, null, terms);
+                return;
+            }
+            // the first and last partitions are open, so no row is missed by rounding the bounds to longs, and the
+            // first one takes the rows with a null partition column
+            final String sql;
+            final Object[] range;
+            if (first) {
+                sql = partitionQuery + "(" + partitionColumn + " < ? OR " + partitionColumn + " IS NULL)";
+                range = new Object[]{from + step};
+            } else if (last) {
+                sql = partitionQuery + partitionColumn + " >= ?";
+                range = new Object[]{from};
+            } else {
+                sql = partitionQuery + partitionColumn + " >= ? AND " + partitionColumn + " < ?";
+                range = new Object[]{from, from + step};
+            }
+            FutureTask<XTermsSet> task = new FutureTask<XTermsSet>(new Callable<XTermsSet>() {
+                @Override
+                public XTermsSet call() throws Exception {
+                    if (failed.get()) {
+                        return null;
+                    }
+                    XTermsSet.Builder partitionTerms = newTermsBuilder();
+                    fetchRows(sql, range, partitionTerms);
+                    return partitionTerms.build();
+                }
+            });
+            tasks.add(task);
+            try {
+                fetchService.executor().execute(task);
+            } catch (RejectedExecutionException e) {
+                // will run on this thread
+            }
+            if (last) {
+                break;
+            }
+        }
+        try {
+            for (FutureTask<XTermsSet> task : tasks) {
+                // partitions not picked by the pool yet run here, so we never wait on a queue we might be blocking
+                task.run();
+                terms.addAll(fetchService.waitFor(lookupKey(), task));
+            }
+        } catch (RuntimeException e) {
+            failed.set(true);
+            awaitPartitions(tasks);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the partitions still running, which hold pooled connections and the builders of this fetch
+     */
+    private void awaitPartitions(List<FutureTask<XTermsSet>> tasks) {
+        for (FutureTask<XTermsSet> task : tasks) {
+            // skips the partitions not started yet
+            task.run();
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // failed as well
+            }
+        }
+    }
+
+    private Object[] fetchBounds() {
+        final Object[] bounds = new Object[2];
+        execute("SELECT MIN(" + partitionColumn + "), MAX(" + partitionColumn + ") FROM (" + query + ") xterms_bounds",
+                null, new RowHandler() {
+            @Override
+            public void onRow(ResultSet rs) throws SQLException {
+                bounds[0] = rs.getObject(1);
+                bounds[1] = rs.getObject(2);
+            }
+        });
+        return bounds;
+    }
+
+    private void fetchRows(String sql, @Nullable Object[] params, final XTermsSet.Builder terms) {
+        execute(sql, params, new RowHandler() {
+            @Override
+            public void onRow(ResultSet rs) throws SQLException {
+                terms.add(rs.getObject(1));
+            }
+        });
+    }
+
+    private interface RowHandler {
+        void onRow(ResultSet rs) throws SQLException;
+    }
+
+    private void execute(String sql, @Nullable Object[] params, RowHandler handler) {
         Connection conn = null;
         PreparedStatement stmt = null;
+        boolean autoCommit = false;
         try {
-            conn = pools.get(this.poolKey).getConnection();
-            stmt = conn.prepareStatement(query);
+            conn = pool.getConnection();
+            autoCommit = conn.getAutoCommit();
+            if (autoCommit) {
+                // some drivers only use cursors within a transaction
+                conn.setAutoCommit(false);
+            }
+            stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(fetchSize);
+            stmt.setQueryTimeout(Math.max(1, (timeout + 999) / 1000)); // ms to s
+            if (params != null) {
+                for (int i = 0; i < params.length; i++) {
+                    stmt.setObject(i + 1, params[i]);
+                }
+            }
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                terms.add(rs.getObject(1));
+                handler.onRow(rs);
             }
             rs.close();
         } catch (SQLException e) {
@@ -55,33 +322,16 @@ public class XJDBCTermsFetch extends XTermsFetch {
                 // nothing to do
             }
             try {
-                if (conn != null)
+                if (conn != null) {
+                    if (autoCommit) {
+                        conn.rollback();
+                        conn.setAutoCommit(true);
+                    }
                     conn.close();
+                }
             } catch (SQLException se) {
                 // nothing to do
             }
         }
-        return terms;
-    }
-
-    // TODO: think about implications...
-    private String createPoolKey(String url, String driver) {
-        return (url.toLowerCase() + driver.toLowerCase());
-    }
-
-    private void initializePool(String driver, String url, String username, String password) throws ClassNotFoundException, SQLException {
-        if (!pools.containsKey(this.poolKey)) {
-            synchronized (pools) {
-                if (!pools.containsKey(this.poolKey)) {
-                    Class.forName(driver);
-                    BoneCPConfig config = new BoneCPConfig();
-                    config.setJdbcUrl(url);
-                    config.setUsername(username);
-                    config.setPassword(password);
-                    config.setMaxConnectionsPerPartition(20); // TODO: bring to config
-                    pools.put(this.poolKey, new BoneCP(config));
-                }
-            }
-        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,352 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.core.ByteFieldMapper;
+import org.elasticsearch.index.mapper.core.IntegerFieldMapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.mapper.core.ShortFieldMapper;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.security.MessageDigest;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Term set of integral numbers, held as a sorted array of unique longs, either on heap or in a memory mapped file
+ */
+public class XLongTermsSet extends XTermsSet {
+
+    private final long[] values;
+
+    // values of a mapped file, when not on heap
+    private final LongBuffer mapped;
+
+    private final int size;
+
+    XLongTermsSet(long[] values, int size) {
+        this.values = values;
+        this.mapped = null;
+        this.size = size;
+    }
+
+    /**
+     * Set over sorted unique values of a buffer, which must stay unchanged for the life of the set
+     */
+    XLongTermsSet(LongBuffer mapped) {
+        this.values = null;
+        this.mapped = mapped;
+        this.size = mapped.limit();
+    }
+
+    /**
+     * Returns true if terms of the given field are integral numbers
+     */
+    public static boolean supports(FieldMapper fieldMapper) {
+        return fieldMapper instanceof LongFieldMapper || fieldMapper instanceof IntegerFieldMapper
+                || fieldMapper instanceof ShortFieldMapper || fieldMapper instanceof ByteFieldMapper;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value at the given position, values are sorted ascending
+     */
+    public long get(int index) {
+        return values != null ? values[index] : mapped.get(index);
+    }
+
+    public boolean contains(long value) {
+        if (values != null) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midValue = mapped.get(mid);
+            if (midValue < value) {
+                low = mid + 1;
+            } else if (midValue > value) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Heap held by the set, mapped values don't count
+     */
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + (values != null ? RamUsageEstimator.sizeOf(values) : 64);
+    }
+
+    @Override
+    public List<Object> toList() {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                return XLongTermsSet.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    void digest(MessageDigest digest) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < size; i++) {
+            long value = get(i);
+            for (int j = 0; j < 8; j++) {
+                bytes[j] = (byte) (value >>> (56 - j * 8));
+            }
+            digest.update(bytes);
+        }
+    }
+
+    /**
+     * Writes the size, then the first value zig-zag encoded and the rest as deltas to the previous one
+     */
+    @Override
+    void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(size);
+        if (size > 0) {
+            long previous = get(0);
+            out.writeVLong((previous << 1) ^ (previous >> 63));
+            for (int i = 1; i < size; i++) {
+                long value = get(i);
+                out.writeVLong(value - previous);
+                previous = value;
+            }
+        }
+    }
+
+    /**
+     * Merges the values with the sorted values added and removed, in a single pass over the three of them
+     */
+    @Override
+    public XLongTermsSet patch(XTermsSet added, XTermsSet removed) {
+        XLongTermsSet adds = (XLongTermsSet) added;
+        XLongTermsSet removes = (XLongTermsSet) removed;
+        long[] patched = new long[size + adds.size];
+        int count = 0;
+        int i = 0, a = 0, r = 0;
+        while (i < size || a < adds.size) {
+            long value;
+            if (a == adds.size || (i < size && get(i) < adds.get(a))) {
+                value = get(i++);
+                while (r < removes.size && removes.get(r) < value) {
+                    r++;
+                }
+                if (r < removes.size && removes.get(r) == value) {
+                    continue;
+                }
+            } else {
+                value = adds.get(a++);
+                if (i < size && get(i) == value) {
+                    i++;
+                }
+            }
+            patched[count++] = value;
+        }
+        return new XLongTermsSet(count == patched.length ? patched : Arrays.copyOf(patched, count), count);
+    }
+
+    /**
+     * Intersects the values with the sorted values of the other set, in a single pass over both of them
+     */
+    @Override
+    public XLongTermsSet intersect(XTermsSet other) {
+        XLongTermsSet others = (XLongTermsSet) other;
+        long[] intersection = new long[Math.min(size, others.size)];
+        int count = 0;
+        int i = 0, o = 0;
+        while (i < size && o < others.size) {
+            long value = get(i);
+            long otherValue = others.get(o);
+            if (value < otherValue) {
+                i++;
+            } else if (value > otherValue) {
+                o++;
+            } else {
+                intersection[count++] = value;
+                i++;
+                o++;
+            }
+        }
+        return new XLongTermsSet(count == intersection.length ? intersection : Arrays.copyOf(intersection, count), count);
+    }
+
+    /**
+     * @param remaining bytes left in the input, each value taking at least one
+     * @param limits    builder the memory of the values is reserved from
+     */
+    static XLongTermsSet readFrom(StreamInput in, int remaining, XTermsSet.Builder limits) throws IOException {
+        int size = in.readVInt();
+        if (size < 0 || size > remaining) {
+            throw new IOException("Terms payload announces [" + size + "] values but holds [" + remaining + "] bytes");
+        }
+        limits.reserve(size * 8L);
+        long[] values = new long[size];
+        if (size > 0) {
+            long zigZag = readVLong(in);
+            values[0] = (zigZag >>> 1) ^ -(zigZag & 1);
+            for (int i = 1; i < size; i++) {
+                values[i] = values[i - 1] + readVLong(in);
+                // deltas are positive, a value not above the previous one is a duplicate or wrapped around
+                if (values[i] <= values[i - 1]) {
+                    throw new IOException("Corrupted terms payload, value [" + i + "] is not greater than the previous one");
+                }
+            }
+        }
+        return new XLongTermsSet(values, size);
+    }
+
+    /**
+     * Reads a long written by {@link StreamOutput#writeVLong(long)}, which takes 10 bytes for the deltas of values
+     * more than {@link Long#MAX_VALUE} apart and for the zig-zag encoding of the biggest values, unlike
+     * {@link StreamInput#readVLong()} that reads at most 9 bytes
+     */
+    private static long readVLong(StreamInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7FL) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length long in terms payload");
+    }
+
+    public static class Builder extends XTermsSet.Builder {
+
+        private long[] values = new long[16];
+
+        private int size;
+
+        @Override
+        public void add(Object term) {
+            if (term == null) {
+                return;
+            }
+            if (term instanceof Number) {
+                add(((Number) term).longValue());
+            } else if (term instanceof BytesRef) {
+                add((BytesRef) term);
+            } else {
+                add(Long.parseLong(term.toString()));
+            }
+        }
+
+        @Override
+        public void add(BytesRef term) {
+            add(parseLong(term));
+        }
+
+        @Override
+        public void add(long term) {
+            if (size == values.length) {
+                grow(size + 1);
+            }
+            values[size++] = term;
+        }
+
+        private void grow(int minSize) {
+            int newLength = ArrayUtil.oversize(minSize, RamUsageEstimator.NUM_BYTES_LONG);
+            // checked before allocating, the old and the new array are both held while copying
+            checkSize(RamUsageEstimator.sizeOf(values) + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) newLength * RamUsageEstimator.NUM_BYTES_LONG);
+            values = Arrays.copyOf(values, newLength);
+        }
+
+        @Override
+        public void addAll(XTermsSet terms) {
+            if (terms instanceof XLongTermsSet) {
+                XLongTermsSet set = (XLongTermsSet) terms;
+                if (size + set.size > values.length) {
+                    grow(size + set.size);
+                }
+                if (set.values != null) {
+                    System.arraycopy(set.values, 0, values, size, set.size);
+                } else {
+                    set.mapped.duplicate().get(values, size, set.size);
+                }
+                size += set.size;
+            } else {
+                XBytesTermsSet.Iterator iterator = ((XBytesTermsSet) terms).iterator();
+                BytesRef term;
+                while ((term = iterator.next()) != null) {
+                    add(term);
+                }
+            }
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.sizeOf(values);
+        }
+
+        @Override
+        public XLongTermsSet build() {
+            Arrays.sort(values, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || values[i] != values[unique - 1]) {
+                    values[unique++] = values[i];
+                }
+            }
+            long[] sorted = unique == values.length ? values : Arrays.copyOf(values, unique);
+            values = null;
+            return new XLongTermsSet(sorted, unique);
+        }
+
+        /**
+         * Parses the decimal digits of the given bytes, without going through a string
+         */
+        private static long parseLong(BytesRef term) {
+            if (term.length == 0) {
+                throw new NumberFormatException("Empty term can't be parsed as a number");
+            }
+            int i = term.offset;
+            int end = term.offset + term.length;
+            boolean negative = term.bytes[i] == '-';
+            if (negative || term.bytes[i] == '+') {
+                i++;
+            }
+            if (i == end || end - i > 19) {
+                return Long.parseLong(term.utf8ToString()); // let it fail, or handle the edge cases
+            }
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = term.bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Term [" + term.utf8ToString() + "] is not a number");
+                }
+                value = value * 10 - digit; // accumulate negatively, so Long.MIN_VALUE fits
+                if (value > 0) {
+                    return Long.parseLong(term.utf8ToString());
+                }
+            }
+            if (!negative && value == Long.MIN_VALUE) {
+                return Long.parseLong(term.utf8ToString());
+            }
+            return negative ? value : -value;
+        }
+    }
+}
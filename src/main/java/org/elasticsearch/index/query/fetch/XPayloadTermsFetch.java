@@ -0,0 +1,53 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.QueryParseContext;
+
+import java.io.IOException;
+
+/**
+ * Terms resolved by the coordinating node and shipped along with the filter as an encoded {@link XTermsSet}, so
+ * shards don't have to reach the source at all. The set is converted if it was built for another type of field.
+ * <p/>
+ * Payloads are untrusted input, so the set they hold is subject to the max size of the lookup and the breaker of the
+ * node like any fetched set.
+ */
+public class XPayloadTermsFetch extends XTermsFetch {
+
+    public XPayloadTermsFetch(String payload, @Nullable ByteSizeValue maxSize, CacheKeyFilter.Key key,
+                              XTermsFetchService fetchService, @Nullable FieldMapper fieldMapper,
+                              @Nullable QueryParseContext queryParseContext) {
+        super("payload", key, fetchService, fieldMapper, queryParseContext);
+        maxSize(maxSize);
+        XTermsSet set;
+        try {
+            set = XTermsSet.decode(payload, newTermsBuilder());
+            if ((set instanceof XLongTermsSet) != XLongTermsSet.supports(fieldMapper)) {
+                XTermsSet.Builder builder = newTermsBuilder();
+                builder.addAll(set);
+                set = builder.build();
+            }
+        } catch (IOException e) {
+            throw new ElasticSearchIllegalArgumentException("[xterms] filter has a malformed [payload]", e);
+        } finally {
+            // the set is only held for the request, its memory was checked against the limits while it was read
+            releaseBuilders();
+        }
+        // the terms are here already, they don't go through the fetch service
+        this.terms = new XFetchedTerms(set, null);
+    }
+
+    @Override
+    protected String sourceKey() {
+        return "payload";
+    }
+
+    @Override
+    protected XFetchedTerms fetchTerms() {
+        return terms;
+    }
+}
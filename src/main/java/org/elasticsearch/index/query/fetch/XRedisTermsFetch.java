@@ -4,25 +4,76 @@ import org.elasticsearch.common.Nullable;
 import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
-import redis.clients.jedis.JedisAdaptor;
+import redis.clients.jedis.JedisKeyspaceWatcher;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * Fetches terms from redis, running one or more commands in a single pipelined round trip and taking the union of
+ * their replies. Scan commands walk the cursor of big collections in batches of scanCount elements.
+ * <p/>
+ * Lookups watching their keys are invalidated as soon as one of them changes, through the keyspace notifications of
+ * redis (see {@link JedisKeyspaceWatcher}), so they can be cached for long.
+ */
 public class XRedisTermsFetch extends XTermsFetch {
 
-    private final String cmd;
-    private final ArrayList<String> args;
+    private static final int DEFAULT_SCAN_COUNT = 1000;
 
-    public XRedisTermsFetch(String url, String cmd, ArrayList<String> args, CacheKeyFilter.Key key, FieldMapper fieldMapper, @Nullable QueryParseContext queryParseContext) {
-        super(url, key, fieldMapper, queryParseContext);
-        this.cmd = cmd.toLowerCase();
-        this.args = args;
+    private final List<String> cmds;
+    private final List<String[]> args;
+    private final int scanCount;
+    private boolean watch;
+
+    public XRedisTermsFetch(String url, List<String> cmds, List<List<String>> args, Integer scanCount, CacheKeyFilter.Key key,
+                            XTermsFetchService fetchService, FieldMapper fieldMapper, @Nullable QueryParseContext queryParseContext) {
+        super(url, key, fetchService, fieldMapper, queryParseContext);
+        this.scanCount = scanCount != null ? scanCount : DEFAULT_SCAN_COUNT;
+        this.cmds = new ArrayList<String>(cmds.size());
+        for (String cmd : cmds) {
+            this.cmds.add(cmd.toLowerCase());
+        }
+        this.args = new ArrayList<String[]>(args.size());
+        for (List<String> cmdArgs : args) {
+            this.args.add(cmdArgs.toArray(new String[cmdArgs.size()]));
+        }
+    }
+
+    @Override
+    protected String sourceKey() {
+        StringBuilder key = new StringBuilder("redis|").append(url);
+        for (int i = 0; i < cmds.size(); i++) {
+            key.append('|').append(cmds.get(i));
+            for (String arg : args.get(i)) {
+                key.append(' ').append(arg);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Whether the keys of the commands are watched for changes, invalidating the cached terms
+     */
+    public XRedisTermsFetch watch(boolean watch) {
+        this.watch = watch;
+        return this;
     }
 
     @Override
-    protected List<Object> fetchTerms() {
-        return JedisAdaptor.execute(url, cmd, args.toArray(new String[args.size()]));
+    protected XFetchedTerms fetchTerms() {
+        if (watch) {
+            // the key is the first argument of all supported commands
+            Set<String> keys = new LinkedHashSet<String>();
+            for (String[] cmdArgs : args) {
+                keys.add(cmdArgs[0]);
+            }
+            fetchService.keyspaceWatcher().watch(url, keys, lookupKey());
+        }
+        XTermsSet.Builder terms = newTermsBuilder();
+        fetchService.jedisAdaptor().execute(url, cmds, args, scanCount, terms);
+        return new XFetchedTerms(terms.build(), null);
     }
 
-}
\ No newline at end of file
+}
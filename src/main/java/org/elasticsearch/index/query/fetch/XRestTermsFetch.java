@@ -1,68 +1,143 @@
 package org.elasticsearch.index.query.fetch;
 
 import org.elasticsearch.common.Nullable;
-import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
-import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
 import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.core.NumberFieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.net.URLEncoder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+/**
+ * Fetches terms from a http resource, either a JSON array or the values found under a <tt>path</tt> of a JSON
+ * document. Sources may also answer with one of the binary formats of {@link XTermsPayload}, which are decoded
+ * without building a string per term.
+ * <p/>
+ * Responses may be compressed with gzip or deflate, and the ETag of the response is kept as version of the terms, so
+ * once they are cached they are revalidated with a conditional request, costing just a 304 if they did not change.
+ * Connections are reused through the keep-alive cache of the JVM (see the <tt>http.keepAlive</tt> and
+ * <tt>http.maxConnections</tt> system properties), for which responses are always read to the end.
+ * <p/>
+ * Lookups with <tt>delta</tt> enabled ask for the changes since the version of their cached terms, passing it as the
+ * <tt>since</tt> parameter. Sources may answer with the whole terms as usual, or with just the changes as an object
+ * <tt>{"version": ..., "added": [...], "removed": [...]}</tt> of content type
+ * <tt>application/x-xterms-delta+json</tt>, which then patch the cached terms.
+ * <ul>
+ * <li><tt>xterms.rest.connect_timeout</tt>: default connect timeout (defaults to 1s)</li>
+ * </ul>
+ */
 public class XRestTermsFetch extends XTermsFetch {
 
+    public static final String DELTA_CONTENT_TYPE = "application/x-xterms-delta+json";
+
     private static final int DEFAULT_TIMEOUT = 300; // ms
 
     private final URL url;
     private final String path;
+    private final String[] pathElements;
     private final int timeout;
+    private final int connectTimeout;
+    private boolean delta;
 
-    public XRestTermsFetch(String url, String path, Integer timeout, CacheKeyFilter.Key key, FieldMapper fieldMapper,
+    public XRestTermsFetch(String url, String path, Integer timeout, Integer connectTimeout, CacheKeyFilter.Key key,
+                           XTermsFetchService fetchService, FieldMapper fieldMapper,
                            @Nullable QueryParseContext queryParseContext) throws MalformedURLException {
-        super(url, key, fieldMapper, queryParseContext);
+        super(url, key, fetchService, fieldMapper, queryParseContext);
         this.url = new URL(url);
         this.path = path;
+        this.pathElements = path != null ? Strings.splitStringToArray(path, '.') : null;
         this.timeout = timeout != null ? timeout : DEFAULT_TIMEOUT;
+        this.connectTimeout = connectTimeout != null ? connectTimeout :
+                (int) fetchService.nodeSettings().getAsTime("xterms.rest.connect_timeout", TimeValue.timeValueSeconds(1)).millis();
+    }
+
+    @Override
+    protected String sourceKey() {
+        return "rest|" + url.toExternalForm() + "|" + path;
+    }
+
+    /**
+     * Whether changes since the cached terms are asked for, rather than the whole terms
+     */
+    public XRestTermsFetch delta(boolean delta) {
+        this.delta = delta;
+        return this;
     }
 
     @Override
-    protected List<Object> fetchTerms() {
-        long start = System.currentTimeMillis();
-        List<Object> terms = new ArrayList<Object>();
+    protected XFetchedTerms fetchTerms() {
+        XFetchedTerms previous = fetchService.getPreviousTerms(this);
+        XTermsSet.Builder terms = newTermsBuilder();
+        String version;
+        URLConnection urlConnection = null;
         InputStream is = null;
         try {
-            URLConnection urlConnection = url.openConnection();
-            urlConnection.setReadTimeout(timeout);
-            urlConnection.setRequestProperty("Accept", "application/json");
-            is = urlConnection.getInputStream();
-            if (path == null) {
+            boolean conditional = previous != null && previous.version() != null;
+            boolean since = delta && conditional;
+            urlConnection = openConnection(since ? sinceUrl(previous.version()) : url, since, conditional ? previous.version() : null);
+            if (isNotModified(urlConnection)) {
+                drain(urlConnection.getInputStream());
+                if (conditional) {
+                    return previous.revalidate();
+                }
+                // not asked for, there are no terms to revalidate so fetch them again without conditions
+                since = false;
+                urlConnection = openConnection(url, false, null);
+                if (isNotModified(urlConnection)) {
+                    drain(urlConnection.getInputStream());
+                    throw new IOException("Unexpected [304 Not Modified] response to an unconditional request");
+                }
+            }
+            is = decode(urlConnection.getInputStream(), urlConnection.getContentEncoding());
+            version = urlConnection.getHeaderField("ETag");
+            String contentType = urlConnection.getContentType();
+            if (since && contentType != null && contentType.startsWith(DELTA_CONTENT_TYPE)) {
+                XFetchedTerms patched = readDelta(JsonXContent.jsonXContent.createParser(is), previous, version);
+                drain(is);
+                return patched;
+            } else if (XTermsPayload.isPayload(contentType)) {
+                is = new BufferedInputStream(is);
+                XTermsPayload.read(contentType, is, terms);
+            } else if (path == null) {
                 XContentParser parser = JsonXContent.jsonXContent.createParser(is);
                 if (parser.nextToken() != XContentParser.Token.START_ARRAY) {
                     throw new IllegalStateException("Error reading terms. Path doesnt contain a JSON array");
                 }
-                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
-                    terms.add(parser.text());
+                XContentParser.Token token;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    terms.add(value(parser, token));
                 }
             } else {
-                byte[] content = toByteArray(is);
-                Map<String, Object> source = XContentHelper.convertToMap(content, false).v2();
-                terms = XContentMapValues.extractRawValues(path, source);
+                XContentParser parser = JsonXContent.jsonXContent.createParser(is);
+                XContentParser.Token token = parser.nextToken();
+                if (token == XContentParser.Token.START_OBJECT) {
+                    extractObject(parser, pathElements, 0, terms);
+                } else if (token == XContentParser.Token.START_ARRAY) {
+                    extractArray(parser, pathElements, 0, terms);
+                }
             }
-            is.close();
+            // read until the end, so the connection can be reused
+            drain(is);
         } catch (SocketTimeoutException ste) {
             throw new RuntimeException("Timeout of [" + timeout + "] reached when getting data from [" + url.toExternalForm() + "]");
         } catch (IOException e) {
+            if (urlConnection instanceof HttpURLConnection) {
+                drain(((HttpURLConnection) urlConnection).getErrorStream());
+            }
             throw new RuntimeException("Error reading terms from [" + url.toExternalForm() + "]", e);
         } finally {
             if (is != null) {
@@ -73,17 +148,166 @@ public class XRestTermsFetch extends XTermsFetch {
                 }
             }
         }
-        return terms;
+        return new XFetchedTerms(terms.build(), version);
+    }
+
+    private URLConnection openConnection(URL target, boolean since, @Nullable String ifNoneMatch) throws IOException {
+        URLConnection urlConnection = target.openConnection();
+        urlConnection.setConnectTimeout(connectTimeout);
+        urlConnection.setReadTimeout(timeout);
+        urlConnection.setRequestProperty("Accept", (since ? DELTA_CONTENT_TYPE + ", " : "") + XTermsPayload.LONGS_CONTENT_TYPE
+                + ", " + XTermsPayload.TERMS_CONTENT_TYPE + ", application/json;q=0.5");
+        urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        if (ifNoneMatch != null) {
+            urlConnection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        return urlConnection;
+    }
+
+    private static boolean isNotModified(URLConnection urlConnection) throws IOException {
+        return urlConnection instanceof HttpURLConnection
+                && ((HttpURLConnection) urlConnection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    private URL sinceUrl(String version) throws IOException {
+        String external = url.toExternalForm();
+        return new URL(external + (external.indexOf('?') >= 0 ? '&' : '?') + "since=" + URLEncoder.encode(version, "UTF-8"));
+    }
+
+    /**
+     * Reads the changes since the previous terms and patches them, the version of the response defaults to its ETag
+     */
+    private XFetchedTerms readDelta(XContentParser parser, XFetchedTerms previous, @Nullable String version) throws IOException {
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            throw new IllegalStateException("Error reading terms. Delta is not a JSON object");
+        }
+        XTermsSet.Builder added = newTermsBuilder();
+        XTermsSet.Builder removed = newTermsBuilder();
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY && ("added".equals(currentFieldName) || "removed".equals(currentFieldName))) {
+                XTermsSet.Builder terms = "added".equals(currentFieldName) ? added : removed;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    terms.add(value(parser, token));
+                }
+            } else if (token.isValue() && "version".equals(currentFieldName)) {
+                version = parser.text();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (version == null) {
+            throw new IllegalStateException("Error reading terms. Delta has no version");
+        }
+        return previous.patch(added.build(), removed.build(), version, lookupKey());
+    }
+
+    private static InputStream decode(InputStream is, @Nullable String contentEncoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(is);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(is);
+        }
+        return is;
+    }
+
+    private static void drain(@Nullable InputStream is) {
+        if (is == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[1024 * 4];
+            while (is.read(buffer) != -1) {
+                // discard
+            }
+            is.close();
+        } catch (IOException e) {
+            // connection won't be reused
+        }
+    }
+
+    /**
+     * Streaming equivalent of {@link org.elasticsearch.common.xcontent.support.XContentMapValues#extractRawValues},
+     * skipping the subtrees that don't match the path instead of materializing the whole document. The parser must be
+     * positioned on the start of the object.
+     */
+    void extractObject(XContentParser parser, String[] path, int index, XTermsSet.Builder terms) throws IOException {
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                continue;
+            }
+            int next = matchPath(parser.currentName(), path, index);
+            token = parser.nextToken();
+            if (next < 0) {
+                parser.skipChildren();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                if (next < path.length) {
+                    extractObject(parser, path, next, terms);
+                } else {
+                    parser.skipChildren();
+                }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                extractArray(parser, path, next, terms);
+            } else {
+                terms.add(value(parser, token));
+            }
+        }
+    }
+
+    void extractArray(XContentParser parser, String[] path, int index, XTermsSet.Builder terms) throws IOException {
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token == XContentParser.Token.START_OBJECT) {
+                if (index < path.length) {
+                    extractObject(parser, path, index, terms);
+                } else {
+                    parser.skipChildren();
+                }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                extractArray(parser, path, index, terms);
+            } else {
+                terms.add(value(parser, token));
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the path element following the ones matched by the field name, which might contain dots
+     * itself, or -1 if it doesn't match
+     */
+    private static int matchPath(String name, String[] path, int index) {
+        if (index >= path.length || !name.startsWith(path[index])) {
+            return -1;
+        }
+        int length = path[index].length();
+        int next = index + 1;
+        while (length < name.length() && next < path.length) {
+            if (name.charAt(length) != '.' || !name.startsWith(path[next], length + 1)) {
+                return -1;
+            }
+            length += path[next].length() + 1;
+            next++;
+        }
+        return length == name.length() ? next : -1;
     }
 
-    private byte[] toByteArray(InputStream input) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024 * 4];
-        int n;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
+    /**
+     * Returns the value the parser is positioned on, or null for null values, which the builder ignores. Numbers are
+     * only parsed for numeric fields, other fields get them as written (e.g. <tt>1e3</tt> or big integers).
+     */
+    private Object value(XContentParser parser, XContentParser.Token token) throws IOException {
+        if (token == XContentParser.Token.VALUE_NULL) {
+            return null;
+        } else if (token == XContentParser.Token.VALUE_NUMBER && getFieldMapper() instanceof NumberFieldMapper) {
+            return parser.numberValue();
+        } else if (token == XContentParser.Token.VALUE_BOOLEAN) {
+            return parser.booleanValue();
         }
-        return output.toByteArray();
+        return parser.text();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a slow or failing source from taking the node down with it. Fetches of a source are limited to a number of
+ * concurrent ones (a bulkhead), and once a number of them fail within a time window the source is considered down
+ * (the circuit is open): fetches fail right away, without reaching the source, until the open time is over. A single
+ * trial fetch is then let through, closing the circuit if it succeeds and opening it again otherwise.
+ */
+public class XSourceGuard {
+
+    private final String source;
+
+    private final Semaphore permits;
+
+    private final long maxWait;
+
+    private final int maxFailures;
+
+    private final long window;
+
+    private final long openTime;
+
+    // times of the failures within the window
+    private final LinkedList<Long> failures = new LinkedList<Long>();
+
+    // time the circuit is open until, 0 when closed
+    private long openUntil;
+
+    private boolean trial;
+
+    public XSourceGuard(String source, int maxConcurrent, TimeValue maxWait, int maxFailures, TimeValue window, TimeValue openTime) {
+        this.source = source;
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxWait = maxWait.millis();
+        this.maxFailures = maxFailures;
+        this.window = window.millis();
+        this.openTime = openTime.millis();
+    }
+
+    /**
+     * Acquires the right to fetch from the source, which must be given back with either {@link #onSuccess()},
+     * {@link #onFailure()} or {@link #release()}. Fails if the circuit is open or too many fetches of the source are running already.
+     */
+    public void acquire() {
+        synchronized (this) {
+            if (openUntil != 0) {
+                if (trial || System.currentTimeMillis() < openUntil) {
+                    throw new RuntimeException("Source [" + source + "] is unavailable after [" + failures.size()
+                            + "] recent failures, not fetching from it for [" + TimeValue.timeValueMillis(openTime) + "]");
+                }
+                trial = true;
+            }
+        }
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            synchronized (this) {
+                trial = false;
+            }
+            throw new RuntimeException("Too many concurrent fetches from source [" + source + "], rejected after waiting ["
+                    + TimeValue.timeValueMillis(maxWait) + "]");
+        }
+    }
+
+    public void onSuccess() {
+        permits.release();
+        synchronized (this) {
+            failures.clear();
+            openUntil = 0;
+            trial = false;
+        }
+    }
+
+    public void onFailure() {
+        permits.release();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            failures.add(now);
+            while (failures.getFirst() < now - window) {
+                failures.removeFirst();
+            }
+            if (trial || (maxFailures > 0 && failures.size() >= maxFailures)) {
+                openUntil = now + openTime;
+            }
+            trial = false;
+        }
+    }
+
+    /**
+     * Gives back the right to fetch without counting the outcome of the fetch either way, for fetches that failed
+     * for reasons of their own rather than of the source
+     */
+    public void release() {
+        permits.release();
+        synchronized (this) {
+            trial = false;
+        }
+    }
+
+    /**
+     * Returns true if fetches of the source are currently failing without reaching it
+     */
+    public synchronized boolean isOpen() {
+        return openUntil != 0 && (trial || System.currentTimeMillis() < openUntil);
+    }
+}
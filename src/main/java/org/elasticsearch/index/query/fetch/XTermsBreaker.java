@@ -0,0 +1,54 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node wide accounting of the memory held by term sets, both cached and still being fetched. Fetches reserve memory
+ * as their terms stream in, and fail as soon as the reservation would take the total over the limit.
+ */
+public class XTermsBreaker {
+
+    private final long limit;
+
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * @param limit max bytes held by term sets, or a non positive value for no limit
+     */
+    public XTermsBreaker(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Reserves the given bytes for the given lookup, failing if they don't fit
+     */
+    public void addEstimateAndMaybeBreak(long bytes, String lookup) {
+        long newUsed = used.addAndGet(bytes);
+        if (limit > 0 && newUsed > limit) {
+            used.addAndGet(-bytes);
+            throw new XTermsTooLargeException("Terms of [" + lookup + "] would take the memory held by xterms lookups to ["
+                    + new ByteSizeValue(newUsed) + "], over the limit of [" + new ByteSizeValue(limit) + "]");
+        }
+    }
+
+    /**
+     * Accounts for bytes held already, which can't be refused
+     */
+    public void addWithoutBreaking(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    public long used() {
+        return used.get();
+    }
+
+    public long limit() {
+        return limit;
+    }
+}
@@ -1,61 +1,242 @@
 package org.elasticsearch.index.query.fetch;
 
+import org.elasticsearch.ElasticSearchIllegalStateException;
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 public abstract class XTermsFetch {
 
+    protected final XTermsFetchService fetchService;
+
     private final FieldMapper fieldMapper;
 
     private final QueryParseContext queryParseContext;
 
     protected CacheKeyFilter.Key key;
 
-    protected List<Object> terms;
+    protected XFetchedTerms terms;
+
+    private Future<XFetchedTerms> pending;
 
     protected final String url;
 
-    public XTermsFetch(String url, CacheKeyFilter.Key key, FieldMapper fieldMapper, @Nullable QueryParseContext queryParseContext) {
+    private TimeValue refreshInterval;
+
+    private TimeValue maxStale;
+
+    private TimeValue expire;
+
+    private ByteSizeValue maxSize;
+
+    private boolean serveStale;
+
+    // builders of the fetch in progress, holding memory reserved from the breaker
+    private final List<XTermsSet.Builder> builders = new ArrayList<XTermsSet.Builder>();
+
+    // whether the builders were released, guarded by builders
+    private boolean released;
+
+    public XTermsFetch(String url, CacheKeyFilter.Key key, XTermsFetchService fetchService, FieldMapper fieldMapper,
+                       @Nullable QueryParseContext queryParseContext) {
         this.url = url.toLowerCase(); // in case might be used as a key
         this.key = key;
+        this.fetchService = fetchService;
         this.fieldMapper = fieldMapper;
         this.queryParseContext = queryParseContext;
     }
 
-    public List<Object> getTerms() {
+    public XTermsSet getTerms() {
+        return getFetchedTerms().terms();
+    }
+
+    public XFetchedTerms getFetchedTerms() {
         if (terms == null) {
-            terms = fetchTerms();
+            if (pending != null) {
+                terms = fetchService.waitFor(lookupKey(), pending);
+                pending = null;
+            } else {
+                terms = fetchService.getTerms(this);
+            }
         }
         return terms;
     }
 
+    /**
+     * Starts resolving the terms in the background, unless they are cached already, so that the fetch overlaps
+     * with whatever happens until the terms are needed
+     */
+    public void prefetch() {
+        if (terms == null && pending == null) {
+            terms = fetchService.getCachedTerms(this);
+            if (terms == null) {
+                pending = fetchService.fetchAsync(this);
+            }
+        }
+    }
+
+    /**
+     * Returns a key identifying the definition of where the terms are fetched from, so lookups with the same
+     * definition can share the fetched terms
+     *
+     * @return
+     */
+    protected abstract String sourceKey();
+
+    /**
+     * Returns the type of the source, the first part of the source key (e.g. <tt>jdbc</tt>)
+     */
+    public String sourceType() {
+        String sourceKey = sourceKey();
+        int index = sourceKey.indexOf('|');
+        return index < 0 ? sourceKey : sourceKey.substring(0, index);
+    }
+
+    /**
+     * Returns the key the fetched terms are shared by, the source key qualified by the representation of the terms,
+     * since the same source might be looked up on fields of different types
+     */
+    public final String lookupKey() {
+        return sourceKey() + (XLongTermsSet.supports(fieldMapper) ? "|long" : "|bytes");
+    }
+
+    /**
+     * Returns a builder for the terms of this lookup, sources add the terms they fetch to it. The builder fails as
+     * soon as the terms get over the max size of the lookup or the limit of the node.
+     */
+    protected XTermsSet.Builder newTermsBuilder() {
+        XTermsSet.Builder builder = XTermsSet.builder(fieldMapper);
+        builder.limit(fetchService.breaker(), (maxSize != null ? maxSize : fetchService.maxSize()).bytes(), lookupKey());
+        synchronized (builders) {
+            if (released) {
+                // a part of a fetch that is over already, its memory would never be released
+                throw new ElasticSearchIllegalStateException("Terms of [" + lookupKey() + "] are not being fetched anymore");
+            }
+            builders.add(builder);
+        }
+        return builder;
+    }
+
+    /**
+     * Allows new builders, for a fetch about to start
+     */
+    void acquireBuilders() {
+        synchronized (builders) {
+            released = false;
+        }
+    }
+
+    /**
+     * Releases the memory reserved by the builders of this fetch, once it is done, rejecting new builders until the
+     * next fetch
+     */
+    void releaseBuilders() {
+        synchronized (builders) {
+            released = true;
+            for (XTermsSet.Builder builder : builders) {
+                builder.release();
+            }
+            builders.clear();
+        }
+    }
+
     /**
      * Fetches terms from the underlying source
      *
      * @return
      */
-    protected abstract List<Object> fetchTerms();
+    protected abstract XFetchedTerms fetchTerms();
 
     /**
-     * Returns cache key that is generated based on the content of the terms fetched
+     * Whether fetches go through the guard of the source, true for all lookups reaching an external source
+     */
+    protected boolean guarded() {
+        return true;
+    }
+
+    /**
+     * Returns cache key that is generated based on the version or the content of the terms fetched
      *
      * @return
      */
     public final CacheKeyFilter.Key cacheKey() {
         if (key == null) {
-            List<Object> terms = getTerms();
-            StringBuilder builder = new StringBuilder();
-            for (Object term : terms)
-                builder.append(term + ",");
-            key = new CacheKeyFilter.Key(builder.toString());
+            key = getFetchedTerms().cacheKey(lookupKey());
         }
         return key;
     }
 
+    /**
+     * Age after which cached terms of this lookup get refreshed in the background, while still being served
+     */
+    public XTermsFetch refreshInterval(@Nullable TimeValue refreshInterval) {
+        this.refreshInterval = refreshInterval;
+        return this;
+    }
+
+    @Nullable
+    public TimeValue refreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Max age of cached terms served while they are being refreshed, defaults to the expire time of the cache
+     */
+    public XTermsFetch maxStale(@Nullable TimeValue maxStale) {
+        this.maxStale = maxStale;
+        return this;
+    }
+
+    @Nullable
+    public TimeValue maxStale() {
+        return maxStale;
+    }
+
+    /**
+     * Age after which cached terms of this lookup are fetched again, defaults to the expire time of the cache. A
+     * negative value keeps them until they are invalidated (or evicted).
+     */
+    public XTermsFetch expire(@Nullable TimeValue expire) {
+        this.expire = expire;
+        return this;
+    }
+
+    @Nullable
+    public TimeValue expire() {
+        return expire;
+    }
+
+    /**
+     * Max size of the terms of this lookup, defaults to <tt>xterms.fetch.max_size</tt>
+     */
+    public XTermsFetch maxSize(@Nullable ByteSizeValue maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Whether the last terms of this lookup still cached are served when fetching them fails, or its source is down
+     */
+    public XTermsFetch serveStale(boolean serveStale) {
+        this.serveStale = serveStale;
+        return this;
+    }
+
+    public boolean serveStale() {
+        return serveStale;
+    }
+
+    public XTermsFetchService getFetchService() {
+        return fetchService;
+    }
+
     public FieldMapper getFieldMapper() {
         return fieldMapper;
     }
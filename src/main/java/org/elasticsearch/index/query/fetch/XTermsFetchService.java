@@ -0,0 +1,595 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalCause;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.monitor.jvm.JvmInfo;
+import redis.clients.jedis.JedisAdaptor;
+import redis.clients.jedis.JedisKeyspaceWatcher;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node level service all {@link XTermsFetch} lookups go through. Fetched terms are kept in a cache keyed by the
+ * definition of the lookup, so a lookup is fetched once per node and shared by every shard and query until it
+ * expires or gets evicted. Concurrent requests for a lookup that is not cached yet are coalesced, the first one
+ * fetches the terms and the others wait for its result.
+ * <p/>
+ * Lookups can be resolved asynchronously on a bounded fetch thread pool, so the fetch overlaps with query parsing
+ * and only blocks once the terms are actually needed.
+ * <p/>
+ * Lookups defining a refresh interval are refreshed ahead: once their terms are older than the interval they are
+ * fetched again in the background, while the previous terms keep being served until the new ones are ready or they
+ * get older than the max staleness of the lookup.
+ * <p/>
+ * The cache is bounded by the estimated size of the fetched terms, evicting least recently used lookups first:
+ * <ul>
+ * <li><tt>xterms.cache.expire</tt>: time after which fetched terms are fetched again, unless their lookup defines
+ * its own <tt>expire</tt>, and after which unused ones are dropped (defaults to 1m)</li>
+ * <li><tt>xterms.cache.size</tt>: max size of the terms held by the cache (defaults to 100mb)</li>
+ * <li><tt>xterms.fetch.size</tt>: number of threads fetching terms asynchronously (defaults to 10)</li>
+ * <li><tt>xterms.fetch.queue_size</tt>: max pending fetches, beyond it fetches run on the caller (defaults to 1000)</li>
+ * </ul>
+ * <p/>
+ * Term sets are accounted as they are built, each fetch failing as soon as its terms get over the max size of the
+ * lookup, or the terms held by all cached and in progress lookups get over the limit of the node:
+ * <ul>
+ * <li><tt>xterms.fetch.max_size</tt>: default max size of the terms of a lookup (defaults to 50mb)</li>
+ * <li><tt>xterms.breaker.limit</tt>: max size of the terms held by the node, in bytes or as a percentage of the
+ * heap (defaults to 20%)</li>
+ * </ul>
+ * <p/>
+ * Each source (as identified by its url) is guarded by a {@link XSourceGuard}, so a slow or failing source only
+ * fails the lookups on it, quickly, instead of tying up the threads of the node. Failed fetches are remembered for a
+ * short while, failing lookups on them without trying again, and lookups can ask for their last terms still in the
+ * cache to be served instead of failing. Fetches whose terms are over the max size or the limit of the node are not
+ * failures of the source, and are neither counted by its guard nor remembered:
+ * <ul>
+ * <li><tt>xterms.source.max_concurrent</tt>: max concurrent fetches per source (defaults to 5)</li>
+ * <li><tt>xterms.source.max_wait</tt>: max time a fetch waits for one of the others on the source to finish
+ * before being rejected (defaults to 1s)</li>
+ * <li><tt>xterms.source.breaker.failures</tt>: failures within the window opening the circuit of the source
+ * (defaults to 5, 0 disables it)</li>
+ * <li><tt>xterms.source.breaker.window</tt>: defaults to 1m</li>
+ * <li><tt>xterms.source.breaker.open_time</tt>: time the circuit stays open before a trial fetch (defaults to 30s)</li>
+ * <li><tt>xterms.source.failure_cache.expire</tt>: time failed fetches are remembered (defaults to 5s, 0 disables
+ * it)</li>
+ * </ul>
+ * <p/>
+ * Cached terms can be invalidated once they change at the source, by lookup or by source, with
+ * {@link #invalidate(String, String)} (broadcast to all nodes by the <tt>_xterms/invalidate</tt> endpoint) or by
+ * redis keyspace notifications for redis lookups watching their keys. Invalidated terms are fetched again on next
+ * use, conditionally or as a delta if the source supports it, so lookups that rarely change can be cached without
+ * expiring at all.
+ * <p/>
+ * Fetches and the cache are recorded in the {@link XTermsStats} of the node, tracking up to
+ * <tt>xterms.stats.max_lookups</tt> lookups individually (defaults to 100).
+ */
+public class XTermsFetchService extends AbstractLifecycleComponent<XTermsFetchService> {
+
+    private final TimeValue expire;
+
+    private final ByteSizeValue size;
+
+    private final Cache<String, XFetchedTerms> cache;
+
+    private final ConcurrentMap<String, FetchTask> inflight = ConcurrentCollections.newConcurrentMap();
+
+    private final ThreadPoolExecutor executor;
+
+    private final JedisAdaptor jedisAdaptor;
+
+    private final XJDBCPools jdbcPools;
+
+    private final ByteSizeValue maxSize;
+
+    private final XTermsBreaker breaker;
+
+    private final XTermsStats stats;
+
+    private final ConcurrentMap<String, XSourceGuard> guards = ConcurrentCollections.newConcurrentMap();
+
+    private final int sourceMaxConcurrent;
+
+    private final TimeValue sourceMaxWait;
+
+    private final int sourceMaxFailures;
+
+    private final TimeValue sourceWindow;
+
+    private final TimeValue sourceOpenTime;
+
+    // recent failures per lookup
+    private final Cache<String, RuntimeException> failures;
+
+    private final JedisKeyspaceWatcher keyspaceWatcher;
+
+    private final File termsFileDir;
+
+    // state of the term files looked up on this node, by canonical path
+    private final ConcurrentMap<String, XFileTermsFetch.TermsFile> termsFiles = ConcurrentCollections.newConcurrentMap();
+
+    public XTermsFetchService(Settings settings) {
+        this(settings, new Environment(settings));
+    }
+
+    @Inject
+    public XTermsFetchService(Settings settings, Environment environment) {
+        super(settings);
+        this.expire = settings.getAsTime("xterms.cache.expire", TimeValue.timeValueMinutes(1));
+        this.size = settings.getAsBytesSize("xterms.cache.size", new ByteSizeValue(100, ByteSizeUnit.MB));
+        int fetchSize = settings.getAsInt("xterms.fetch.size", 10);
+        int fetchQueueSize = settings.getAsInt("xterms.fetch.queue_size", 1000);
+        this.maxSize = settings.getAsBytesSize("xterms.fetch.max_size", new ByteSizeValue(50, ByteSizeUnit.MB));
+        this.stats = new XTermsStats(settings.getAsInt("xterms.stats.max_lookups", 100));
+        this.breaker = new XTermsBreaker(parseLimit(settings.get("xterms.breaker.limit", "20%")));
+        this.sourceMaxConcurrent = settings.getAsInt("xterms.source.max_concurrent", 5);
+        this.sourceMaxWait = settings.getAsTime("xterms.source.max_wait", TimeValue.timeValueSeconds(1));
+        this.sourceMaxFailures = settings.getAsInt("xterms.source.breaker.failures", 5);
+        this.sourceWindow = settings.getAsTime("xterms.source.breaker.window", TimeValue.timeValueMinutes(1));
+        this.sourceOpenTime = settings.getAsTime("xterms.source.breaker.open_time", TimeValue.timeValueSeconds(30));
+        TimeValue failureExpire = settings.getAsTime("xterms.source.failure_cache.expire", TimeValue.timeValueSeconds(5));
+
+        logger.debug("using xterms cache with expire [{}], size [{}], fetch pool size [{}], queue_size [{}]",
+                expire, size, fetchSize, fetchQueueSize);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(size.bytes())
+                .weigher(new TermsWeigher())
+                .expireAfterAccess(expire.millis(), TimeUnit.MILLISECONDS)
+                .removalListener(new RemovalListener<String, XFetchedTerms>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, XFetchedTerms> notification) {
+                        breaker.release(notification.getValue().sizeInBytes());
+                        if (notification.wasEvicted()) {
+                            stats.onCacheEviction();
+                        }
+                        // keys stay watched while the lookup is cached or being fetched again
+                        if (notification.getCause() != RemovalCause.REPLACED && !inflight.containsKey(notification.getKey())) {
+                            keyspaceWatcher.unwatch(notification.getKey());
+                        }
+                    }
+                })
+                .build();
+        this.executor = new ThreadPoolExecutor(fetchSize, fetchSize, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(fetchQueueSize), EsExecutors.daemonThreadFactory(settings, "xterms_fetch"));
+        this.jedisAdaptor = new JedisAdaptor(settings);
+        this.jdbcPools = new XJDBCPools(settings);
+        if (failureExpire.millis() > 0) {
+            this.failures = CacheBuilder.newBuilder()
+                    .maximumSize(1000)
+                    .expireAfterWrite(failureExpire.millis(), TimeUnit.MILLISECONDS)
+                    .build();
+        } else {
+            this.failures = null;
+        }
+        this.keyspaceWatcher = new JedisKeyspaceWatcher(settings, this);
+        String fileDir = settings.get("xterms.file.dir");
+        this.termsFileDir = fileDir != null ? new File(fileDir) : new File(environment.configFile(), "xterms");
+    }
+
+    private static long parseLimit(String limit) {
+        if (limit.endsWith("%")) {
+            double ratio = Double.parseDouble(limit.substring(0, limit.length() - 1)) / 100;
+            return (long) (JvmInfo.jvmInfo().mem().heapMax().bytes() * ratio);
+        }
+        return ByteSizeValue.parseBytesSizeValue(limit).bytes();
+    }
+
+    @Override
+    protected void doStart() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doClose() throws ElasticSearchException {
+        executor.shutdownNow();
+        keyspaceWatcher.close();
+        jedisAdaptor.close();
+        jdbcPools.close();
+        // mapped files are unmapped once their terms are collected
+        termsFiles.clear();
+    }
+
+    /**
+     * Returns the terms of the given lookup, fetching them from the underlying source only if they are not cached yet
+     */
+    public XFetchedTerms getTerms(XTermsFetch fetch) {
+        String key = fetch.lookupKey();
+        XFetchedTerms terms = getCachedTerms(fetch);
+        if (terms != null) {
+            return terms;
+        }
+        FetchTask task = new FetchTask(key, fetch);
+        FetchTask existing = inflight.putIfAbsent(key, task);
+        if (existing == null) {
+            // we are the first ones asking for this lookup, fetch it on the calling thread
+            task.run();
+        } else {
+            task = existing;
+        }
+        return waitFor(key, task);
+    }
+
+    /**
+     * Returns the terms of the given lookup if they are cached and fresh enough to be used, or null otherwise. Terms
+     * older than the refresh interval of the lookup are still returned, but get refreshed in the background.
+     */
+    public XFetchedTerms getCachedTerms(XTermsFetch fetch) {
+        XFetchedTerms terms = cache.getIfPresent(fetch.lookupKey());
+        if (terms == null) {
+            stats.onCacheMiss();
+            return null;
+        }
+        long age = System.currentTimeMillis() - terms.timestamp();
+        TimeValue refreshInterval = fetch.refreshInterval();
+        if (refreshInterval != null && (terms.isInvalidated() || age >= refreshInterval.millis())) {
+            TimeValue maxStale = fetch.maxStale() != null ? fetch.maxStale() : expire;
+            if (age > maxStale.millis()) {
+                stats.onCacheMiss();
+                return null;
+            }
+            stats.onCacheHit();
+            refreshAsync(fetch, terms);
+            return terms;
+        }
+        long expire = (fetch.expire() != null ? fetch.expire() : this.expire).millis();
+        if (!terms.isInvalidated() && (expire < 0 || age < expire)) {
+            stats.onCacheHit();
+            return terms;
+        }
+        stats.onCacheMiss();
+        return null;
+    }
+
+    /**
+     * Returns the terms of the given lookup if they are cached, no matter how old they are, so sources can check
+     * whether they are still valid instead of fetching them again
+     */
+    public XFetchedTerms getPreviousTerms(XTermsFetch fetch) {
+        return cache.getIfPresent(fetch.lookupKey());
+    }
+
+    /**
+     * Starts fetching the terms of the given lookup on the fetch thread pool, unless they are already being fetched.
+     * The terms are needed, so they are fetched on the calling thread if the pool rejects the fetch.
+     *
+     * @return the future result of the fetch, to be passed to {@link #waitFor(String, java.util.concurrent.Future)}
+     */
+    public Future<XFetchedTerms> fetchAsync(XTermsFetch fetch) {
+        String key = fetch.lookupKey();
+        FetchTask task = new FetchTask(key, fetch);
+        FetchTask existing = inflight.putIfAbsent(key, task);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // pool saturated or closed, the terms are needed and others might be waiting on the task already so just
+            // run it here
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * Starts refreshing the given cached terms on the fetch thread pool, unless they are already being fetched. The
+     * refresh is dropped if the pool is saturated or closed, the cached terms being served until the next attempt.
+     */
+    private void refreshAsync(XTermsFetch fetch, XFetchedTerms stale) {
+        String key = fetch.lookupKey();
+        FetchTask task = new FetchTask(key, fetch);
+        if (inflight.putIfAbsent(key, task) != null) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug("dropped refresh of [{}], the fetch pool is saturated", key);
+            // requests that joined the refresh meanwhile get the cached terms as well
+            task.skip(stale);
+        }
+    }
+
+    /**
+     * Waits for the result of a fetch of the lookup identified by the given key
+     */
+    public <T> T waitFor(String key, Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for terms of [" + key + "]", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error fetching terms of [" + key + "]", e.getCause());
+        }
+    }
+
+    /**
+     * Fetch thread pool, for sources splitting a fetch in concurrent parts. Since the pool is bounded, callers
+     * waiting for the parts should run the ones not started yet themselves.
+     */
+    public Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Node settings, used by sources to configure their connection pools
+     */
+    public Settings nodeSettings() {
+        return settings;
+    }
+
+    /**
+     * Executes redis commands on connection pools owned by the node
+     */
+    public JedisAdaptor jedisAdaptor() {
+        return jedisAdaptor;
+    }
+
+    /**
+     * Connection pools of jdbc lookups, owned by the node
+     */
+    public XJDBCPools jdbcPools() {
+        return jdbcPools;
+    }
+
+    /**
+     * Accounting of the memory held by term sets of this node
+     */
+    public XTermsBreaker breaker() {
+        return breaker;
+    }
+
+    /**
+     * Metrics of the lookups of this node
+     */
+    public XTermsStats stats() {
+        return stats;
+    }
+
+    /**
+     * Max size of the terms of lookups not defining one
+     */
+    public ByteSizeValue maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the guard of the given source, creating it on first use
+     */
+    public XSourceGuard guard(String source) {
+        XSourceGuard guard = guards.get(source);
+        if (guard == null) {
+            guard = new XSourceGuard(source, sourceMaxConcurrent, sourceMaxWait, sourceMaxFailures, sourceWindow, sourceOpenTime);
+            XSourceGuard existing = guards.putIfAbsent(source, guard);
+            if (existing != null) {
+                guard = existing;
+            }
+        }
+        return guard;
+    }
+
+    /**
+     * Directory term files are resolved within
+     */
+    public File termsFileDir() {
+        return termsFileDir;
+    }
+
+    /**
+     * State of the term files looked up on this node, by canonical path
+     */
+    ConcurrentMap<String, XFileTermsFetch.TermsFile> termsFiles() {
+        return termsFiles;
+    }
+
+    /**
+     * Watches redis keys for changes, invalidating lookups on them
+     */
+    public JedisKeyspaceWatcher keyspaceWatcher() {
+        return keyspaceWatcher;
+    }
+
+    /**
+     * Invalidates the cached terms of the given lookup, or else of all lookups on the given source, or else of all
+     * lookups. Terms being fetched are invalidated as soon as they are cached, since they might predate the change.
+     *
+     * @param source url of the source (the path of the file for file lookups)
+     * @param lookup key of the lookup, as reported by the stats
+     * @return the number of cached lookups invalidated
+     */
+    public int invalidate(@Nullable String source, @Nullable String lookup) {
+        int count = 0;
+        for (Map.Entry<String, XFetchedTerms> entry : cache.asMap().entrySet()) {
+            if (matches(entry.getKey(), source, lookup)) {
+                entry.getValue().invalidate();
+                count++;
+            }
+        }
+        for (Map.Entry<String, FetchTask> entry : inflight.entrySet()) {
+            if (matches(entry.getKey(), source, lookup)) {
+                entry.getValue().invalidated = true;
+            }
+        }
+        if (failures != null) {
+            for (Iterator<String> keys = failures.asMap().keySet().iterator(); keys.hasNext(); ) {
+                if (matches(keys.next(), source, lookup)) {
+                    keys.remove();
+                }
+            }
+        }
+        stats.onInvalidation(count);
+        logger.debug("invalidated [{}] lookups for source [{}], lookup [{}]", count, source, lookup);
+        return count;
+    }
+
+    private static boolean matches(String key, @Nullable String source, @Nullable String lookup) {
+        if (lookup != null) {
+            return key.equals(lookup);
+        }
+        if (source == null) {
+            return true;
+        }
+        // keys are the type of the source, its url and the rest of its definition, separated by pipes
+        int start = key.indexOf('|') + 1;
+        int end = key.indexOf('|', start);
+        return key.substring(start, end < 0 ? key.length() : end).equalsIgnoreCase(source);
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+        if (failures != null) {
+            failures.invalidateAll();
+        }
+    }
+
+    /**
+     * Fetches the terms of a lookup from its source, through the guard of the source, and caches them
+     */
+    private XFetchedTerms fetch(String key, XTermsFetch fetch) {
+        RuntimeException failure = failures != null ? failures.getIfPresent(key) : null;
+        if (failure != null) {
+            throw new RuntimeException("Fetching terms of [" + key + "] failed recently: " + failure.getMessage(), failure);
+        }
+        // rejections of the guard are neither remembered nor counted as failures, the source wasn't reached
+        XSourceGuard guard = fetch.guarded() ? guard(fetch.url) : null;
+        if (guard != null) {
+            guard.acquire();
+        }
+        long start = System.nanoTime();
+        XFetchedTerms terms;
+        boolean released = guard == null;
+        fetch.acquireBuilders();
+        try {
+            terms = fetch.fetchTerms();
+            if (guard != null) {
+                guard.onSuccess();
+                released = true;
+            }
+        } catch (RuntimeException e) {
+            stats.onFailure(fetch.sourceType(), key, System.nanoTime() - start);
+            // terms over the max size or the breaker limit are not the fault of the source
+            if (!isTooLarge(e)) {
+                if (guard != null) {
+                    guard.onFailure();
+                    released = true;
+                }
+                if (failures != null) {
+                    failures.put(key, e);
+                }
+            }
+            throw e;
+        } finally {
+            // whether it was built or not, the memory is now held by the set, if any
+            fetch.releaseBuilders();
+            // the fetch failed with an error or its terms didn't fit
+            if (!released) {
+                guard.release();
+            }
+        }
+        stats.onFetch(fetch.sourceType(), key, System.nanoTime() - start, terms);
+        breaker.addWithoutBreaking(terms.sizeInBytes());
+        cache.put(key, terms);
+        // checked once cached, invalidations from now on find the terms in the cache
+        FetchTask task = inflight.get(key);
+        if (task != null && task.invalidated) {
+            terms.invalidate();
+        }
+        return terms;
+    }
+
+    private static boolean isTooLarge(Throwable e) {
+        // sources may wrap the failure of their builders
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof XTermsTooLargeException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fetches the terms of a lookup, caching them before the task is removed from the inflight ones so concurrent
+     * requests always find the terms either in the cache or in the inflight tasks
+     */
+    class FetchTask extends FutureTask<XFetchedTerms> {
+
+        private final String key;
+
+        // set when the lookup is invalidated while being fetched
+        volatile boolean invalidated;
+
+        FetchTask(final String key, final XTermsFetch fetch) {
+            super(new Callable<XFetchedTerms>() {
+                @Override
+                public XFetchedTerms call() throws Exception {
+                    try {
+                        return fetch(key, fetch);
+                    } catch (RuntimeException e) {
+                        XFetchedTerms previous = fetch.serveStale() ? cache.getIfPresent(key) : null;
+                        if (previous == null) {
+                            throw e;
+                        }
+                        logger.debug("serving last terms of [{}] after failing to fetch them: {}", key, e.getMessage());
+                        return previous;
+                    }
+                }
+            });
+            this.key = key;
+        }
+
+        /**
+         * Completes the task with the given terms without fetching them
+         */
+        void skip(XFetchedTerms terms) {
+            set(terms);
+        }
+
+        @Override
+        protected void done() {
+            inflight.remove(key, this);
+        }
+    }
+
+    static class TermsWeigher implements Weigher<String, XFetchedTerms> {
+
+        @Override
+        public int weigh(String key, XFetchedTerms terms) {
+            long size = key.length() * 2 + terms.sizeInBytes();
+            return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.QueryParseContext;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Definition of where the terms of a xterms filter are fetched from, as given in the lookup element of the filter.
+ * Parsed by the filter parser on shards, and by the coordinating node when it resolves lookups itself.
+ * <p/>
+ * Invalid definitions fail with an {@link ElasticSearchIllegalArgumentException}.
+ */
+public class XTermsLookup {
+
+    // common to all
+    private String url;
+    private Integer timeout;
+    private TimeValue refreshInterval;
+    private TimeValue maxStale;
+    private TimeValue expire;
+    private ByteSizeValue maxSize;
+    private boolean serveStale;
+
+    // lookups combined by a set operator, instead of a source
+    private XCompositeTermsFetch.Operator operator;
+    private List<XTermsLookup> operands = new ArrayList<XTermsLookup>();
+
+    // terms resolved already, see XTermsSet#encode
+    private String payload;
+
+    // file fetch, a path within the terms file directory of the node
+    private String file;
+
+    // rest fetch
+    private String path;
+    private Integer connectTimeout;
+    private boolean delta;
+
+    // redis fetch
+    private String command;
+    private List<String> args = new ArrayList<String>();
+    private List<String> commands = new ArrayList<String>();
+    private List<List<String>> commandsArgs = new ArrayList<List<String>>();
+    private Integer scanCount;
+    private boolean watch;
+
+    // jdbc fetch
+    private String query;
+    private String driver;
+    private String username;
+    private String password;
+    private Integer fetchSize;
+    private String partitionColumn;
+    private Integer partitions;
+    private String versionQuery;
+    private String changelogQuery;
+
+    /**
+     * Parses a lookup element, the parser must be positioned on its start
+     */
+    public static XTermsLookup parse(XContentParser parser) throws IOException {
+        XTermsLookup lookup = new XTermsLookup();
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if ("url".equals(currentFieldName)) {
+                    lookup.url = parser.text();
+                } else if ("timeout".equals(currentFieldName)) {
+                    lookup.timeout = parser.intValue();
+                } else if ("refresh_interval".equals(currentFieldName) || "refreshInterval".equals(currentFieldName)) {
+                    lookup.refreshInterval = TimeValue.parseTimeValue(parser.text(), null);
+                } else if ("max_stale".equals(currentFieldName) || "maxStale".equals(currentFieldName)) {
+                    lookup.maxStale = TimeValue.parseTimeValue(parser.text(), null);
+                } else if ("expire".equals(currentFieldName)) {
+                    lookup.expire = TimeValue.parseTimeValue(parser.text(), null);
+                } else if ("max_size".equals(currentFieldName) || "maxSize".equals(currentFieldName)) {
+                    lookup.maxSize = ByteSizeValue.parseBytesSizeValue(parser.text());
+                } else if ("serve_stale".equals(currentFieldName) || "serveStale".equals(currentFieldName)) {
+                    lookup.serveStale = parser.booleanValue();
+                } else if ("payload".equals(currentFieldName)) {
+                    lookup.payload = parser.text();
+                }
+                // file data source
+                else if ("file".equals(currentFieldName)) {
+                    lookup.file = parser.text();
+                }
+                // rest data source
+                else if ("path".equals(currentFieldName)) {
+                    lookup.path = parser.text();
+                } else if ("connect_timeout".equals(currentFieldName) || "connectTimeout".equals(currentFieldName)) {
+                    lookup.connectTimeout = parser.intValue();
+                } else if ("delta".equals(currentFieldName)) {
+                    lookup.delta = parser.booleanValue();
+                }
+                // database data source
+                else if ("query".equals(currentFieldName)) {
+                    lookup.query = parser.text();
+                } else if ("driver".equals(currentFieldName)) {
+                    lookup.driver = parser.text();
+                } else if ("username".equals(currentFieldName)) {
+                    lookup.username = parser.text();
+                } else if ("password".equals(currentFieldName)) {
+                    lookup.password = parser.text();
+                } else if ("fetch_size".equals(currentFieldName) || "fetchSize".equals(currentFieldName)) {
+                    lookup.fetchSize = parser.intValue();
+                } else if ("partition_column".equals(currentFieldName) || "partitionColumn".equals(currentFieldName)) {
+                    lookup.partitionColumn = parser.text();
+                } else if ("partitions".equals(currentFieldName)) {
+                    lookup.partitions = parser.intValue();
+                } else if ("version_query".equals(currentFieldName) || "versionQuery".equals(currentFieldName)) {
+                    lookup.versionQuery = parser.text();
+                } else if ("changelog_query".equals(currentFieldName) || "changelogQuery".equals(currentFieldName)) {
+                    lookup.changelogQuery = parser.text();
+                }
+                // redis datasource
+                else if ("command".equals(currentFieldName)) {
+                    lookup.command = parser.text();
+                } else if ("scan_count".equals(currentFieldName) || "scanCount".equals(currentFieldName)) {
+                    lookup.scanCount = parser.intValue();
+                } else if ("watch".equals(currentFieldName)) {
+                    lookup.watch = parser.booleanValue();
+                } else {
+                    throw new ElasticSearchIllegalArgumentException("[xterms] filter does not support [" + currentFieldName + "] within lookup element");
+                }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                if ("args".equals(currentFieldName)) {
+                    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                        String value = parser.text();
+                        if (value == null) {
+                            throw new ElasticSearchIllegalArgumentException("No arguments specified for redis command");
+                        }
+                        lookup.args.add(value);
+                    }
+                } else if ("union".equals(currentFieldName) || "intersect".equals(currentFieldName) || "minus".equals(currentFieldName)) {
+                    if (lookup.operator != null) {
+                        throw new ElasticSearchIllegalArgumentException("[xterms] filter lookup element supports a single one of [union, intersect, minus]");
+                    }
+                    lookup.operator = XCompositeTermsFetch.Operator.fromString(currentFieldName);
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        if (token != XContentParser.Token.START_OBJECT) {
+                            throw new ElasticSearchIllegalArgumentException("[xterms] filter [" + currentFieldName + "] must be an array of lookup elements");
+                        }
+                        lookup.operands.add(parse(parser));
+                    }
+                } else if ("commands".equals(currentFieldName)) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        if (token != XContentParser.Token.START_OBJECT) {
+                            throw new ElasticSearchIllegalArgumentException("[xterms] filter [commands] must be an array of objects with a [command] and [args]");
+                        }
+                        lookup.parseRedisCommand(parser);
+                    }
+                } else {
+                    throw new ElasticSearchIllegalArgumentException("[xterms] filter does not support array for parameter [" + currentFieldName + "]");
+                }
+            }
+        }
+        lookup.validate();
+        return lookup;
+    }
+
+    private void parseRedisCommand(XContentParser parser) throws IOException {
+        String command = null;
+        List<String> args = new ArrayList<String>();
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue() && "command".equals(currentFieldName)) {
+                command = parser.text();
+            } else if (token == XContentParser.Token.START_ARRAY && "args".equals(currentFieldName)) {
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    String value = parser.text();
+                    if (value == null) {
+                        throw new ElasticSearchIllegalArgumentException("No arguments specified for redis command");
+                    }
+                    args.add(value);
+                }
+            } else {
+                throw new ElasticSearchIllegalArgumentException("[xterms] filter does not support [" + currentFieldName + "] within redis command");
+            }
+        }
+        commands.add(command);
+        commandsArgs.add(args);
+    }
+
+    private void validate() {
+        if (operator != null) {
+            if (operands.size() < 2) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] filter [" + operator.name().toLowerCase() + "] requires at least two lookup elements");
+            }
+            return;
+        }
+        if (payload != null || file != null) {
+            return;
+        }
+        if (url == null) {
+            throw new ElasticSearchIllegalArgumentException("[xterms] filter requires specifying an [url] or a [file]");
+        }
+        if (query != null) {
+            if (driver == null || username == null || password == null) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] filter jdbc lookup element requires all of [url, query, driver, username, password]");
+            }
+            if (partitions != null && partitions > 1 && partitionColumn == null) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] filter jdbc lookup element requires a [partition_column] to split the query in [partitions]");
+            }
+            if (changelogQuery != null && versionQuery == null) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] filter jdbc lookup element requires a [version_query] along with its [changelog_query]");
+            }
+        } else if (command != null || !commands.isEmpty()) {
+            if (command != null) {
+                commands.add(0, command);
+                commandsArgs.add(0, args);
+                command = null;
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                if (commands.get(i) == null || commandsArgs.get(i).size() == 0) {
+                    throw new ElasticSearchIllegalArgumentException("[xterms] filter redis lookup element requires a [command] and an [args] parameter. args must be a non empty array");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the terms were resolved already, by the coordinating node
+     */
+    public boolean isPayload() {
+        return payload != null;
+    }
+
+    /**
+     * Creates the fetch of the terms of this lookup
+     *
+     * @param fieldMapper       field the terms are looked up on, or null if unknown (e.g. on the coordinating node)
+     * @param queryParseContext context of the filter, or null when the terms aren't used by a filter
+     */
+    public XTermsFetch createFetch(@Nullable CacheKeyFilter.Key key, XTermsFetchService fetchService,
+                                   @Nullable FieldMapper fieldMapper, @Nullable QueryParseContext queryParseContext) {
+        XTermsFetch termsFetch;
+        if (operator != null) {
+            List<XTermsFetch> fetches = new ArrayList<XTermsFetch>(operands.size());
+            for (XTermsLookup operand : operands) {
+                fetches.add(operand.createFetch(null, fetchService, fieldMapper, queryParseContext));
+            }
+            termsFetch = new XCompositeTermsFetch(operator, fetches, key, fetchService, fieldMapper, queryParseContext);
+        } else if (payload != null) {
+            termsFetch = new XPayloadTermsFetch(payload, maxSize, key, fetchService, fieldMapper, queryParseContext);
+        } else if (file != null) {
+            termsFetch = new XFileTermsFetch(file, key, fetchService, fieldMapper, queryParseContext);
+        } else if (query != null) {
+            try {
+                termsFetch = new XJDBCTermsFetch(url, query, driver, username, password, timeout, fetchSize, partitionColumn, partitions, key, fetchService, fieldMapper, queryParseContext)
+                        .changelog(versionQuery, changelogQuery);
+            } catch (ClassNotFoundException e) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] driver [" + driver + "] was not found in classpath");
+            } catch (SQLException e) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] error while opening connection with database[" + e.getMessage() + "]");
+            }
+        } else if (!commands.isEmpty()) {
+            termsFetch = new XRedisTermsFetch(url, commands, commandsArgs, scanCount, key, fetchService, fieldMapper, queryParseContext)
+                    .watch(watch);
+        } else {
+            try {
+                termsFetch = new XRestTermsFetch(url, path, timeout, connectTimeout, key, fetchService, fieldMapper, queryParseContext)
+                        .delta(delta);
+            } catch (MalformedURLException e) {
+                throw new ElasticSearchIllegalArgumentException("[xterms] malformed url [" + url + "]");
+            }
+        }
+        return termsFetch.refreshInterval(refreshInterval).maxStale(maxStale).expire(expire).maxSize(maxSize)
+                .serveStale(serveStale);
+    }
+}
@@ -0,0 +1,120 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary formats for term lists, decoded straight into a term set without going through strings:
+ * <ul>
+ * <li><tt>application/x-xterms-longs</tt>: ascending longs, the first one zig-zag encoded and the rest as deltas to
+ * the previous one, all of them as variable length longs (7 bits per byte, high bit set on all but the last byte)</li>
+ * <li><tt>application/x-xterms-terms</tt>: terms as their variable length encoded length followed by their bytes</li>
+ * </ul>
+ */
+public class XTermsPayload {
+
+    public static final String LONGS_CONTENT_TYPE = "application/x-xterms-longs";
+
+    public static final String TERMS_CONTENT_TYPE = "application/x-xterms-terms";
+
+    /**
+     * Returns true if the given content type is one of the binary formats
+     */
+    public static boolean isPayload(String contentType) {
+        return contentType != null && (contentType.startsWith(LONGS_CONTENT_TYPE) || contentType.startsWith(TERMS_CONTENT_TYPE));
+    }
+
+    /**
+     * Reads all terms of the given stream, in the format of the given content type
+     */
+    public static void read(String contentType, InputStream in, XTermsSet.Builder terms) throws IOException {
+        if (contentType.startsWith(LONGS_CONTENT_TYPE)) {
+            readLongs(in, terms);
+        } else {
+            readTerms(in, terms);
+        }
+    }
+
+    public static void readLongs(InputStream in, XTermsSet.Builder terms) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            return;
+        }
+        long zigZag = readVLong(in, b);
+        long value = (zigZag >>> 1) ^ -(zigZag & 1);
+        terms.add(value);
+        while ((b = in.read()) != -1) {
+            value += readVLong(in, b);
+            terms.add(value);
+        }
+    }
+
+    /**
+     * Reads terms until the end of the stream. Lengths come from the source, so the memory of a term is reserved from
+     * the builder before it is read, and only allocated as its bytes actually arrive.
+     */
+    public static void readTerms(InputStream in, XTermsSet.Builder terms) throws IOException {
+        BytesRef term = new BytesRef(); // reused, the builder copies what it keeps
+        int b;
+        while ((b = in.read()) != -1) {
+            long announced = readVLong(in, b);
+            if (announced < 0 || announced > Integer.MAX_VALUE) {
+                throw new IOException("Invalid term length [" + announced + "]");
+            }
+            int length = (int) announced;
+            terms.reserve(terms.sizeInBytes() + length);
+            int read = 0;
+            while (read < length) {
+                if (read == term.bytes.length) {
+                    term.grow(Math.min(length, Math.max(2 * read, 1024)));
+                }
+                int n = in.read(term.bytes, read, Math.min(length, term.bytes.length) - read);
+                if (n == -1) {
+                    throw new EOFException("Truncated term, expected [" + length + "] bytes but got [" + read + "]");
+                }
+                read += n;
+            }
+            term.length = length;
+            terms.add(term);
+        }
+    }
+
+    /**
+     * Writes all terms of the given set in the <tt>application/x-xterms-terms</tt> format
+     */
+    public static void writeTerms(XBytesTermsSet terms, OutputStream out) throws IOException {
+        XBytesTermsSet.Iterator iterator = terms.iterator();
+        BytesRef term;
+        while ((term = iterator.next()) != null) {
+            int length = term.length;
+            while ((length & ~0x7F) != 0) {
+                out.write((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            out.write(length);
+            out.write(term.bytes, term.offset, term.length);
+        }
+    }
+
+    private static long readVLong(InputStream in, int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63) {
+                throw new IOException("Malformed variable length long");
+            }
+            b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated variable length long");
+            }
+            value |= (b & 0x7FL) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,217 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.compress.Compressor;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.mapper.FieldMapper;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Deduplicated and sorted set of fetched terms, held in a compact representation specialized by the type of the field
+ * the terms are looked up on: {@link XLongTermsSet} for integral numeric fields and {@link XBytesTermsSet} for the
+ * rest. Term sets are immutable and shared by every shard and query using the same lookup.
+ */
+public abstract class XTermsSet {
+
+    // types of encoded sets
+    private static final byte LONGS = 0;
+    private static final byte BYTES = 1;
+
+    /**
+     * Returns a builder for a term set suitable for the given field
+     */
+    public static Builder builder(@Nullable FieldMapper fieldMapper) {
+        return XLongTermsSet.supports(fieldMapper) ? new XLongTermsSet.Builder() : new XBytesTermsSet.Builder();
+    }
+
+    /**
+     * Number of (unique) terms of the set
+     */
+    public abstract int size();
+
+    /**
+     * Estimation of the heap used by the set
+     */
+    public abstract long sizeInBytes();
+
+    /**
+     * Boxed terms of the set, for fields without a specialized representation
+     */
+    public abstract List<Object> toList();
+
+    /**
+     * Returns a new set with the given terms added and removed, both sets being of the type of this one. Terms both
+     * added and removed are kept.
+     */
+    public abstract XTermsSet patch(XTermsSet added, XTermsSet removed);
+
+    /**
+     * Returns a new set of the terms both in this set and the given one, of the type of this one
+     */
+    public abstract XTermsSet intersect(XTermsSet other);
+
+    /**
+     * Feeds all terms, in order, to the given digest
+     */
+    abstract void digest(MessageDigest digest);
+
+    abstract void writeTo(StreamOutput out) throws IOException;
+
+    /**
+     * Returns the set serialized, compressed and base64 encoded, for shipping it in a filter
+     */
+    public String encode() throws IOException {
+        BytesStreamOutput bytes = new BytesStreamOutput();
+        StreamOutput out = CompressorFactory.defaultCompressor().streamOutput(bytes);
+        out.writeByte(this instanceof XLongTermsSet ? LONGS : BYTES);
+        writeTo(out);
+        out.close();
+        return Base64.encodeBytes(bytes.bytes().toBytes());
+    }
+
+    /**
+     * Reads a set returned by {@link #encode()}. Payloads come with search requests, so their sizes are checked
+     * against the bytes actually there, and the memory of the set is reserved from the given builder (held to the
+     * max size of the lookup and the breaker of the node) before it is allocated.
+     */
+    public static XTermsSet decode(String payload, Builder limits) throws IOException {
+        byte[] bytes = uncompress(Base64.decode(payload), limits.maxSize);
+        StreamInput in = new BytesStreamInput(bytes, false);
+        byte type = in.readByte();
+        if (type == LONGS) {
+            return XLongTermsSet.readFrom(in, bytes.length - 1, limits);
+        } else if (type == BYTES) {
+            return XBytesTermsSet.readFrom(in, bytes.length - 1, limits);
+        }
+        throw new IOException("Unknown type [" + type + "] of terms payload");
+    }
+
+    /**
+     * Uncompresses the payload, failing as soon as it gets much bigger than the set it might hold
+     */
+    private static byte[] uncompress(byte[] bytes, long maxSize) throws IOException {
+        Compressor compressor = CompressorFactory.compressor(bytes);
+        if (compressor == null) {
+            return bytes;
+        }
+        // values take up to 10 bytes encoded, but mostly fewer than the 8 they take once decoded
+        long maxLength = maxSize > 0 ? 2 * maxSize + 16 : Long.MAX_VALUE;
+        StreamInput in = compressor.streamInput(new BytesStreamInput(bytes, false));
+        BytesStreamOutput out = new BytesStreamOutput();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk, 0, chunk.length)) > 0) {
+            if (out.size() + read > maxLength) {
+                throw new IOException("Terms payload is over [" + new ByteSizeValue(maxLength) + "] uncompressed");
+            }
+            out.writeBytes(chunk, 0, read);
+        }
+        in.close();
+        return out.bytes().toBytes();
+    }
+
+    /**
+     * Collects terms as they are fetched, in any order and with duplicates, and builds the term set from them.
+     * Builders account for the memory they take as they grow, failing once they get over their limits.
+     */
+    public static abstract class Builder {
+
+        // memory is reserved from the breaker in chunks, so it isn't updated on every term
+        private static final long CHUNK = 64 * 1024;
+
+        private XTermsBreaker breaker;
+
+        private long maxSize = -1;
+
+        private String lookup;
+
+        private long reserved;
+
+        /**
+         * Limits the memory taken by the builder to the given max size, and by all term sets of the node to the
+         * limit of the given breaker
+         *
+         * @param lookup key of the lookup, for error messages
+         */
+        public Builder limit(@Nullable XTermsBreaker breaker, long maxSize, String lookup) {
+            this.breaker = breaker;
+            this.maxSize = maxSize;
+            this.lookup = lookup;
+            return this;
+        }
+
+        /**
+         * Checks that the builder can take the given size, which subclasses call before growing
+         */
+        protected final void checkSize(long size) {
+            if (size <= reserved) {
+                return;
+            }
+            if (maxSize > 0 && size > maxSize) {
+                throw new XTermsTooLargeException("Terms of [" + lookup + "] are over the max size of [" + new ByteSizeValue(maxSize)
+                        + "], either restrict the lookup or raise its [max_size]");
+            }
+            long reserve = Math.max(size - reserved, CHUNK);
+            if (maxSize > 0) {
+                // never reserved past the max size, so sizes over it are always checked
+                reserve = Math.min(reserve, maxSize - reserved);
+            }
+            if (breaker != null) {
+                breaker.addEstimateAndMaybeBreak(reserve, lookup);
+            }
+            reserved += reserve;
+        }
+
+        /**
+         * Reserves memory for a set built by other means, as if the builder had grown to the given size
+         */
+        void reserve(long size) {
+            checkSize(size);
+        }
+
+        /**
+         * Releases the memory reserved by the builder
+         */
+        public void release() {
+            if (breaker != null) {
+                breaker.release(reserved);
+            }
+            reserved = 0;
+        }
+
+        /**
+         * Adds a term given as a {@link Number}, a {@link BytesRef} or any object whose string representation is the
+         * term. Null terms are ignored.
+         */
+        public abstract void add(Object term);
+
+        /**
+         * Adds a term given as its UTF-8 bytes, which might be reused by the caller once the method returns
+         */
+        public abstract void add(BytesRef term);
+
+        public abstract void add(long term);
+
+        /**
+         * Adds all terms of a set, converting them if the set is of another type
+         */
+        public abstract void addAll(XTermsSet terms);
+
+        /**
+         * Estimation of the heap used by the terms collected so far
+         */
+        public abstract long sizeInBytes();
+
+        public abstract XTermsSet build();
+    }
+}
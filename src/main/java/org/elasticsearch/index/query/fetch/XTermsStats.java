@@ -0,0 +1,318 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of the xterms lookups and filters of a node: fetches per source type (<tt>jdbc</tt>, <tt>redis</tt>,
+ * <tt>rest</tt>) and per lookup, the cache of the fetched terms, and the time spent evaluating filters on segments.
+ * Recording only updates counters, so it is cheap enough for the search path.
+ * <p/>
+ * Stats are read into a new instance on each node, and shipped to the node asking for them.
+ */
+public class XTermsStats implements Streamable, ToXContent {
+
+    private final int maxLookups;
+
+    private final CounterMetric cacheHits = new CounterMetric();
+
+    private final CounterMetric cacheMisses = new CounterMetric();
+
+    private final CounterMetric cacheEvictions = new CounterMetric();
+
+    private final CounterMetric cacheInvalidations = new CounterMetric();
+
+    private final Histogram filterTime = new Histogram();
+
+    private final ConcurrentMap<String, FetchStats> sources = ConcurrentCollections.newConcurrentMap();
+
+    private final ConcurrentMap<String, FetchStats> lookups = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * @param maxLookups max number of lookups tracked individually, the others are only counted by their source type
+     */
+    public XTermsStats(int maxLookups) {
+        this.maxLookups = maxLookups;
+    }
+
+    XTermsStats() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public static XTermsStats readStats(StreamInput in) throws IOException {
+        XTermsStats stats = new XTermsStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public void onCacheHit() {
+        cacheHits.inc();
+    }
+
+    public void onCacheMiss() {
+        cacheMisses.inc();
+    }
+
+    public void onCacheEviction() {
+        cacheEvictions.inc();
+    }
+
+    public void onInvalidation(int count) {
+        cacheInvalidations.inc(count);
+    }
+
+    public void onFilter(long nanos) {
+        filterTime.record(nanos);
+    }
+
+    public void onFetch(String sourceType, String lookup, long nanos, XFetchedTerms terms) {
+        forSource(sourceType).onFetch(nanos, terms);
+        FetchStats lookupStats = forLookup(lookup);
+        if (lookupStats != null) {
+            lookupStats.onFetch(nanos, terms);
+        }
+    }
+
+    public void onFailure(String sourceType, String lookup, long nanos) {
+        forSource(sourceType).onFailure(nanos);
+        FetchStats lookupStats = forLookup(lookup);
+        if (lookupStats != null) {
+            lookupStats.onFailure(nanos);
+        }
+    }
+
+    private FetchStats forSource(String sourceType) {
+        return stats(sources, sourceType);
+    }
+
+    private FetchStats forLookup(String lookup) {
+        if (!lookups.containsKey(lookup) && lookups.size() >= maxLookups) {
+            return null;
+        }
+        return stats(lookups, lookup);
+    }
+
+    private static FetchStats stats(ConcurrentMap<String, FetchStats> map, String key) {
+        FetchStats stats = map.get(key);
+        if (stats == null) {
+            stats = new FetchStats();
+            FetchStats existing = map.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        cacheHits.inc(in.readVLong());
+        cacheMisses.inc(in.readVLong());
+        cacheEvictions.inc(in.readVLong());
+        cacheInvalidations.inc(in.readVLong());
+        filterTime.readFrom(in);
+        readMap(in, sources);
+        readMap(in, lookups);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(cacheHits.count());
+        out.writeVLong(cacheMisses.count());
+        out.writeVLong(cacheEvictions.count());
+        out.writeVLong(cacheInvalidations.count());
+        filterTime.writeTo(out);
+        writeMap(out, sources);
+        writeMap(out, lookups);
+    }
+
+    private static void readMap(StreamInput in, ConcurrentMap<String, FetchStats> map) throws IOException {
+        int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            FetchStats stats = new FetchStats();
+            map.put(in.readString(), stats);
+            stats.readFrom(in);
+        }
+    }
+
+    private static void writeMap(StreamOutput out, ConcurrentMap<String, FetchStats> map) throws IOException {
+        // entries might be added concurrently, write the ones seen
+        List<Map.Entry<String, FetchStats>> entries = new ArrayList<Map.Entry<String, FetchStats>>(map.entrySet());
+        out.writeVInt(entries.size());
+        for (Map.Entry<String, FetchStats> entry : entries) {
+            out.writeString(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("cache");
+        builder.field("hits", cacheHits.count());
+        builder.field("misses", cacheMisses.count());
+        builder.field("evictions", cacheEvictions.count());
+        builder.field("invalidations", cacheInvalidations.count());
+        builder.endObject();
+        builder.startObject("filter");
+        filterTime.toXContent(builder, params);
+        builder.endObject();
+        builder.startObject("sources");
+        for (Map.Entry<String, FetchStats> entry : sources.entrySet()) {
+            builder.startObject(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.startObject("lookups");
+        for (Map.Entry<String, FetchStats> entry : lookups.entrySet()) {
+            builder.startObject(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Fetches of a source type or a lookup
+     */
+    static class FetchStats implements Streamable, ToXContent {
+
+        final CounterMetric failures = new CounterMetric();
+
+        final CounterMetric terms = new CounterMetric();
+
+        final CounterMetric bytes = new CounterMetric();
+
+        final Histogram latency = new Histogram();
+
+        void onFetch(long nanos, XFetchedTerms fetched) {
+            latency.record(nanos);
+            terms.inc(fetched.terms().size());
+            bytes.inc(fetched.sizeInBytes());
+        }
+
+        void onFailure(long nanos) {
+            latency.record(nanos);
+            failures.inc();
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            failures.inc(in.readVLong());
+            terms.inc(in.readVLong());
+            bytes.inc(in.readVLong());
+            latency.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(failures.count());
+            out.writeVLong(terms.count());
+            out.writeVLong(bytes.count());
+            latency.writeTo(out);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("fetches", latency.count());
+            builder.field("failures", failures.count());
+            builder.field("terms", terms.count());
+            builder.field("size", new ByteSizeValue(bytes.count()).toString());
+            builder.field("size_in_bytes", bytes.count());
+            builder.startObject("latency");
+            latency.toXContent(builder, params);
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Histogram of durations, in buckets of powers of two of microseconds, so percentiles are reported within a
+     * factor of two
+     */
+    static class Histogram implements Streamable, ToXContent {
+
+        private static final int BUCKETS = 40;
+
+        // bucket i counts durations in [2^(i-1), 2^i) micros, the first one those below 1 micro
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final CounterMetric totalNanos = new CounterMetric();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            totalNanos.inc(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Upper bound of the given percentile, in millis
+         */
+        double percentile(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return (1L << i) / 1000.0;
+                }
+            }
+            return (1L << (BUCKETS - 1)) / 1000.0;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, in.readVLong());
+            }
+            totalNanos.inc(in.readVLong());
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            for (int i = 0; i < BUCKETS; i++) {
+                out.writeVLong(buckets.get(i));
+            }
+            out.writeVLong(totalNanos.count());
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            long count = count();
+            builder.field("count", count);
+            builder.field("total_time_in_millis", totalNanos.count() / 1000000);
+            builder.field("avg_time_in_millis", count == 0 ? 0 : totalNanos.count() / count / 1000000.0);
+            builder.field("p50_in_millis", percentile(50));
+            builder.field("p90_in_millis", percentile(90));
+            builder.field("p99_in_millis", percentile(99));
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.elasticsearch.index.query.fetch;
+
+/**
+ * Thrown when the terms of a lookup don't fit, either in the max size of the lookup or in the memory the node lets
+ * all lookups hold. The source did answer, so this is not a failure of the source.
+ */
+public class XTermsTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public XTermsTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package org.elasticsearch.plugin.xtermsfilter;
+
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.common.lucene.search.XTermsDocIdSetCache;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+
+public class XTermsFilterModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(XTermsFetchService.class).asEagerSingleton();
+        bind(XTermsDocIdSetCache.class).asEagerSingleton();
+    }
+}
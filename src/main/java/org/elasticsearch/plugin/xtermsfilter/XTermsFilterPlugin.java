@@ -1,8 +1,23 @@
 package org.elasticsearch.plugin.xtermsfilter;
 
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.action.xterms.invalidate.TransportXTermsInvalidateAction;
+import org.elasticsearch.action.xterms.invalidate.XTermsInvalidateAction;
+import org.elasticsearch.action.xterms.stats.TransportXTermsStatsAction;
+import org.elasticsearch.action.xterms.stats.XTermsStatsAction;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.index.query.IndexQueryParserModule;
 import org.elasticsearch.index.query.XTermsFilterParser;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.rest.action.xterms.RestXTermsInvalidateAction;
+import org.elasticsearch.rest.action.xterms.RestXTermsSearchAction;
+import org.elasticsearch.rest.action.xterms.RestXTermsStatsAction;
+
+import java.util.Collection;
 
 public class XTermsFilterPlugin extends AbstractPlugin {
 
@@ -16,7 +31,32 @@ public class XTermsFilterPlugin extends AbstractPlugin {
         return "a filter plugin for ElasticSearch that fetches values for a terms filter from an external data sourcesource";
     }
 
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        Collection<Class<? extends Module>> modules = Lists.newArrayList();
+        modules.add(XTermsFilterModule.class);
+        return modules;
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        Collection<Class<? extends LifecycleComponent>> services = Lists.newArrayList();
+        services.add(XTermsFetchService.class);
+        return services;
+    }
+
     public void onModule(IndexQueryParserModule module) {
         module.addFilterParser(XTermsFilterParser.NAME, XTermsFilterParser.class);
     }
+
+    public void onModule(RestModule module) {
+        module.addRestAction(RestXTermsSearchAction.class);
+        module.addRestAction(RestXTermsStatsAction.class);
+        module.addRestAction(RestXTermsInvalidateAction.class);
+    }
+
+    public void onModule(ActionModule module) {
+        module.registerAction(XTermsStatsAction.INSTANCE, TransportXTermsStatsAction.class);
+        module.registerAction(XTermsInvalidateAction.INSTANCE, TransportXTermsInvalidateAction.class);
+    }
 }
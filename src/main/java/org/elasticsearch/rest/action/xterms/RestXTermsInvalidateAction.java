@@ -0,0 +1,70 @@
+package org.elasticsearch.rest.action.xterms;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.xterms.invalidate.XTermsInvalidateAction;
+import org.elasticsearch.action.xterms.invalidate.XTermsInvalidateRequest;
+import org.elasticsearch.action.xterms.invalidate.XTermsInvalidateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestStatus.OK;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+/**
+ * Invalidates cached lookups on the nodes of the cluster, once their terms changed at the source: the lookup given by
+ * the <tt>lookup</tt> parameter (its key, as reported by the stats), or else all lookups on the source given by the
+ * <tt>source</tt> parameter (its url), or else all lookups. Invalidated lookups are fetched again on next use. Nodes
+ * can be restricted with the <tt>nodeId</tt> part of the path.
+ */
+public class RestXTermsInvalidateAction extends BaseRestHandler {
+
+    @Inject
+    public RestXTermsInvalidateAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(POST, "/_xterms/invalidate", this);
+        controller.registerHandler(POST, "/_xterms/invalidate/{nodeId}", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel) {
+        XTermsInvalidateRequest invalidateRequest = new XTermsInvalidateRequest(Strings.splitStringByCommaToArray(request.param("nodeId")))
+                .source(request.param("source"))
+                .lookup(request.param("lookup"));
+        invalidateRequest.listenerThreaded(false);
+        client.admin().cluster().execute(XTermsInvalidateAction.INSTANCE, invalidateRequest, new ActionListener<XTermsInvalidateResponse>() {
+            @Override
+            public void onResponse(XTermsInvalidateResponse response) {
+                try {
+                    XContentBuilder builder = restContentBuilder(request);
+                    builder.startObject();
+                    response.toXContent(builder, request);
+                    builder.endObject();
+                    channel.sendResponse(new XContentRestResponse(request, OK, builder));
+                } catch (Throwable e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                try {
+                    channel.sendResponse(new XContentThrowableRestResponse(request, e));
+                } catch (IOException e1) {
+                    logger.error("Failed to send failure response", e1);
+                }
+            }
+        });
+    }
+}
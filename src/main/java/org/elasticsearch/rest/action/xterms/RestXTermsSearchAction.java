@@ -0,0 +1,236 @@
+package org.elasticsearch.rest.action.xterms;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.query.XTermsFilterParser;
+import org.elasticsearch.index.query.fetch.XTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.index.query.fetch.XTermsLookup;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+/**
+ * Search endpoint resolving the lookups of all xterms filters of the search on the coordinating node, once, and
+ * replacing them with the encoded terms (a <tt>payload</tt> lookup) before the search is sent to the shards. Shards
+ * then neither fetch the terms themselves nor need access to the sources. Lookups on fields mapped as integral numbers
+ * in all searched indices are fetched and shipped as longs, the others as bytes.
+ * <p/>
+ * Accepts the body of a regular search, and the <tt>routing</tt>, <tt>preference</tt> and <tt>search_type</tt>
+ * parameters.
+ */
+public class RestXTermsSearchAction extends BaseRestHandler {
+
+    private final XTermsFetchService fetchService;
+
+    private final ThreadPool threadPool;
+
+    private final ClusterService clusterService;
+
+    @Inject
+    public RestXTermsSearchAction(Settings settings, Client client, RestController controller,
+                                  XTermsFetchService fetchService, ThreadPool threadPool, ClusterService clusterService) {
+        super(settings, client);
+        this.fetchService = fetchService;
+        this.threadPool = threadPool;
+        this.clusterService = clusterService;
+        controller.registerHandler(GET, "/_xterms/search", this);
+        controller.registerHandler(POST, "/_xterms/search", this);
+        controller.registerHandler(GET, "/{index}/_xterms/search", this);
+        controller.registerHandler(POST, "/{index}/_xterms/search", this);
+        controller.registerHandler(GET, "/{index}/{type}/_xterms/search", this);
+        controller.registerHandler(POST, "/{index}/{type}/_xterms/search", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel) {
+        // fetching blocks on the sources, keep it off the network and search threads
+        threadPool.executor(ThreadPool.Names.GENERIC).execute(new Runnable() {
+            @Override
+            public void run() {
+                SearchRequest searchRequest;
+                try {
+                    searchRequest = parseSearchRequest(request);
+                } catch (Throwable e) {
+                    sendFailure(request, channel, e);
+                    return;
+                }
+                client.search(searchRequest, new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse response) {
+                        try {
+                            XContentBuilder builder = restContentBuilder(request);
+                            builder.startObject();
+                            response.toXContent(builder, request);
+                            builder.endObject();
+                            channel.sendResponse(new XContentRestResponse(request, response.status(), builder));
+                        } catch (Throwable e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        sendFailure(request, channel, e);
+                    }
+                });
+            }
+        });
+    }
+
+    private void sendFailure(RestRequest request, RestChannel channel, Throwable e) {
+        try {
+            channel.sendResponse(new XContentThrowableRestResponse(request, e));
+        } catch (IOException e1) {
+            logger.error("Failed to send failure response", e1);
+        }
+    }
+
+    private SearchRequest parseSearchRequest(RestRequest request) throws IOException {
+        SearchRequest searchRequest = new SearchRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        searchRequest.types(Strings.splitStringByCommaToArray(request.param("type")));
+        searchRequest.routing(request.param("routing"));
+        searchRequest.preference(request.param("preference"));
+        if (request.param("search_type") != null) {
+            searchRequest.searchType(SearchType.fromString(request.param("search_type")));
+        }
+        searchRequest.listenerThreaded(false);
+        if (request.hasContent()) {
+            Map<String, Object> source = XContentHelper.convertToMap(request.content(), true).v2();
+            resolveLookups(source, searchRequest.indices(), searchRequest.types());
+            searchRequest.source(source);
+        }
+        return searchRequest;
+    }
+
+    /**
+     * Replaces the lookups of all xterms filters of the source with their encoded terms
+     */
+    void resolveLookups(Map<String, Object> source, String[] indices, String[] types) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        List<Map<String, Object>> lookups = new ArrayList<Map<String, Object>>();
+        collectLookups(source, fields, lookups);
+        // start all fetches before waiting for any, so they run concurrently
+        List<XTermsFetch> fetches = new ArrayList<XTermsFetch>(lookups.size());
+        for (int i = 0; i < lookups.size(); i++) {
+            XContentParser parser = JsonXContent.jsonXContent.createParser(XContentFactory.jsonBuilder().map(lookups.get(i)).bytes());
+            parser.nextToken();
+            FieldMapper fieldMapper = numericFieldMapper(fields.get(i), indices, types);
+            XTermsFetch fetch = XTermsLookup.parse(parser).createFetch(null, fetchService, fieldMapper, null);
+            fetch.prefetch();
+            fetches.add(fetch);
+        }
+        for (int i = 0; i < lookups.size(); i++) {
+            String payload = fetches.get(i).getTerms().encode();
+            lookups.get(i).clear();
+            lookups.get(i).put("payload", payload);
+        }
+    }
+
+    /**
+     * Returns a long mapper for the given field if it is mapped as an integral number in all the searched indices and
+     * types that map it, or null to fetch its terms as bytes, which shards convert if needed
+     */
+    @Nullable
+    FieldMapper numericFieldMapper(String field, String[] indices, String[] types) throws IOException {
+        MetaData metaData = clusterService.state().metaData();
+        boolean numeric = false;
+        for (String index : metaData.concreteIndicesIgnoreMissing(indices)) {
+            IndexMetaData indexMetaData = metaData.index(index);
+            if (indexMetaData == null) {
+                continue;
+            }
+            for (MappingMetaData mapping : indexMetaData.mappings().values()) {
+                if (types.length > 0 && !Arrays.asList(types).contains(mapping.type())) {
+                    continue;
+                }
+                String type = fieldType(mapping.sourceAsMap(), field);
+                if (type == null) {
+                    continue;
+                }
+                if (!"long".equals(type) && !"integer".equals(type) && !"short".equals(type) && !"byte".equals(type)) {
+                    return null;
+                }
+                numeric = true;
+            }
+        }
+        return numeric ? new LongFieldMapper.Builder(field).build(new Mapper.BuilderContext(settings, new ContentPath())) : null;
+    }
+
+    /**
+     * Returns the type of the field, given by its full path, in the given mapping, or null if it isn't mapped
+     */
+    @SuppressWarnings("unchecked")
+    private static String fieldType(Map<String, Object> mapping, String field) {
+        Object node = mapping;
+        for (String name : Strings.splitStringToArray(field, '.')) {
+            Object properties = node instanceof Map ? ((Map<String, Object>) node).get("properties") : null;
+            if (!(properties instanceof Map)) {
+                return null;
+            }
+            node = ((Map<String, Object>) properties).get(name);
+        }
+        Object type = node instanceof Map ? ((Map<String, Object>) node).get("type") : null;
+        return type != null ? type.toString() : null;
+    }
+
+    /**
+     * Collects the lookups of all xterms filters, along with the fields they filter
+     */
+    @SuppressWarnings("unchecked")
+    private static void collectLookups(Object node, List<String> fields, List<Map<String, Object>> lookups) {
+        if (node instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) node).entrySet()) {
+                if ((XTermsFilterParser.NAME.equals(entry.getKey()) || "in".equals(entry.getKey())) && entry.getValue() instanceof Map) {
+                    for (Map.Entry<String, Object> filterEntry : ((Map<String, Object>) entry.getValue()).entrySet()) {
+                        Object value = filterEntry.getValue();
+                        if (value instanceof Map && !((Map) value).containsKey("payload")) {
+                            fields.add(filterEntry.getKey());
+                            lookups.add((Map<String, Object>) value);
+                        }
+                    }
+                } else {
+                    collectLookups(entry.getValue(), fields, lookups);
+                }
+            }
+        } else if (node instanceof List) {
+            for (Object value : (List) node) {
+                collectLookups(value, fields, lookups);
+            }
+        }
+    }
+}
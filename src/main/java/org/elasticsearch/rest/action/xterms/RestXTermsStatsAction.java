@@ -0,0 +1,67 @@
+package org.elasticsearch.rest.action.xterms;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.xterms.stats.XTermsStatsAction;
+import org.elasticsearch.action.xterms.stats.XTermsStatsRequest;
+import org.elasticsearch.action.xterms.stats.XTermsStatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestStatus.OK;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+/**
+ * Returns the xterms stats of the nodes of the cluster: fetches per source type and per lookup, the cache of the
+ * fetched terms, the time spent in filters and the memory held by term sets. Nodes can be restricted with the
+ * <tt>nodeId</tt> part of the path.
+ */
+public class RestXTermsStatsAction extends BaseRestHandler {
+
+    @Inject
+    public RestXTermsStatsAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(GET, "/_xterms/stats", this);
+        controller.registerHandler(GET, "/_xterms/stats/{nodeId}", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel) {
+        XTermsStatsRequest statsRequest = new XTermsStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.listenerThreaded(false);
+        client.admin().cluster().execute(XTermsStatsAction.INSTANCE, statsRequest, new ActionListener<XTermsStatsResponse>() {
+            @Override
+            public void onResponse(XTermsStatsResponse response) {
+                try {
+                    XContentBuilder builder = restContentBuilder(request);
+                    builder.startObject();
+                    response.toXContent(builder, request);
+                    builder.endObject();
+                    channel.sendResponse(new XContentRestResponse(request, OK, builder));
+                } catch (Throwable e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                try {
+                    channel.sendResponse(new XContentThrowableRestResponse(request, e));
+                } catch (IOException e1) {
+                    logger.error("Failed to send failure response", e1);
+                }
+            }
+        });
+    }
+}
@@ -1,11 +1,31 @@
 package redis.clients.jedis;
 
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.query.fetch.XTermsSet;
+import redis.clients.util.SafeEncoder;
+
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Just an adaptor for Jedis that allows the generic way of executing a Command
+ * <p/>
+ * Besides the commands returning a whole collection at once, <tt>sscan</tt>, <tt>zscan</tt> and <tt>hscan</tt> walk
+ * the cursor of big sets, sorted sets (members) and hashes (fields) in batches, so redis stays responsive and only a
+ * batch of the reply is held at a time. Their args are the key, optionally followed by a <tt>MATCH pattern</tt>.
+ * <p/>
+ * Connections are taken from a pool per redis instance (host:port/db), held until the adaptor is closed along with
+ * the node, configured by the node settings:
+ * <ul>
+ * <li><tt>xterms.redis.pool.size</tt>: max connections per redis instance (defaults to 8)</li>
+ * <li><tt>xterms.redis.pool.max_wait</tt>: max time waiting for a pooled connection (defaults to 1s)</li>
+ * <li><tt>xterms.redis.timeout</tt>: connect and read timeout (defaults to 2s)</li>
+ * </ul>
  */
 public class JedisAdaptor {
 
@@ -15,13 +35,135 @@ public class JedisAdaptor {
         put("smembers", Protocol.Command.SMEMBERS);
         put("zrange", Protocol.Command.ZRANGE);
         put("zrangebyscore", Protocol.Command.ZRANGEBYSCORE);
+        put("sscan", Protocol.Command.SSCAN);
+        put("zscan", Protocol.Command.ZSCAN);
+        put("hscan", Protocol.Command.HSCAN);
     }};
 
-    public static List<Object> execute(String url, String command, String[] args) {
-        Jedis jedis = new Jedis(url);
-        Protocol.Command cmd = parseCommand(command);
-        Connection conn = jedis.client.sendCommand(cmd, args);
-        return (List) conn.getMultiBulkReply();
+    private final static String SCAN_START = "0";
+
+    private final Settings settings;
+
+    // pools by redis instance
+    private final ConcurrentMap<String, JedisPool> pools = ConcurrentCollections.newConcurrentMap();
+
+    private volatile boolean closed;
+
+    public JedisAdaptor(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Executes all commands pipelined in a single round trip, adding the elements of their replies to the given
+     * builder, which takes care of the elements returned by several commands. Scan commands are executed afterwards,
+     * walking their cursor in batches of scanCount elements.
+     */
+    public void execute(String url, List<String> commands, List<String[]> args, int scanCount, XTermsSet.Builder terms) {
+        Protocol.Command[] cmds = new Protocol.Command[commands.size()];
+        for (int i = 0; i < cmds.length; i++) {
+            cmds[i] = parseCommand(commands.get(i));
+        }
+        JedisPool pool = pool(url);
+        Jedis jedis = pool.getResource();
+        try {
+            Client client = jedis.getClient();
+            for (int i = 0; i < cmds.length; i++) {
+                if (!isScan(cmds[i])) {
+                    client.sendCommand(cmds[i], args.get(i));
+                }
+            }
+            BytesRef term = new BytesRef();
+            for (int i = 0; i < cmds.length; i++) {
+                if (!isScan(cmds[i])) {
+                    addAll(client.getBinaryMultiBulkReply(), 1, term, terms);
+                }
+            }
+            for (int i = 0; i < cmds.length; i++) {
+                if (isScan(cmds[i])) {
+                    scan(client, cmds[i], args.get(i), scanCount, term, terms);
+                }
+            }
+            pool.returnResource(jedis);
+        } catch (RuntimeException e) {
+            // replies of the remaining commands might still be pending, don't reuse the connection
+            pool.returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    private static void scan(Client client, Protocol.Command cmd, String[] args, int count, BytesRef term,
+                             XTermsSet.Builder terms) {
+        // zscan and hscan replies interleave members with scores and fields with values, only the former are terms
+        int step = cmd == Protocol.Command.SSCAN ? 1 : 2;
+        String[] scanArgs = new String[args.length + 3];
+        scanArgs[0] = args[0];
+        System.arraycopy(args, 1, scanArgs, 2, args.length - 1);
+        scanArgs[scanArgs.length - 2] = "COUNT";
+        scanArgs[scanArgs.length - 1] = String.valueOf(count);
+        String cursor = SCAN_START;
+        do {
+            scanArgs[1] = cursor;
+            client.sendCommand(cmd, scanArgs);
+            List<Object> reply = client.getObjectMultiBulkReply();
+            cursor = SafeEncoder.encode((byte[]) reply.get(0));
+            addAll((List<byte[]>) reply.get(1), step, term, terms);
+        } while (!SCAN_START.equals(cursor));
+    }
+
+    /**
+     * Adds the raw bytes of every step-th element of the reply, the builder copies or parses what it keeps
+     */
+    private static void addAll(List<byte[]> elements, int step, BytesRef term, XTermsSet.Builder terms) {
+        for (int i = 0; i < elements.size(); i += step) {
+            byte[] element = elements.get(i);
+            term.bytes = element;
+            term.offset = 0;
+            term.length = element.length;
+            terms.add(term);
+        }
+    }
+
+    private static boolean isScan(Protocol.Command cmd) {
+        return cmd == Protocol.Command.SSCAN || cmd == Protocol.Command.ZSCAN || cmd == Protocol.Command.HSCAN;
+    }
+
+    /**
+     * Destroys the pools, closing all their connections
+     */
+    public void close() {
+        synchronized (pools) {
+            closed = true;
+            for (JedisPool pool : pools.values()) {
+                try {
+                    pool.destroy();
+                } catch (RuntimeException e) {
+                    // closing anyway
+                }
+            }
+            pools.clear();
+        }
+    }
+
+    private JedisPool pool(String url) {
+        RedisAddress address = new RedisAddress(url);
+        JedisPool pool = pools.get(address.key());
+        if (pool == null) {
+            synchronized (pools) {
+                if (closed) {
+                    throw new RuntimeException("Redis connection pools are closed");
+                }
+                pool = pools.get(address.key());
+                if (pool == null) {
+                    JedisPoolConfig config = new JedisPoolConfig();
+                    config.setMaxTotal(settings.getAsInt("xterms.redis.pool.size", 8));
+                    config.setMaxWaitMillis(settings.getAsTime("xterms.redis.pool.max_wait", TimeValue.timeValueSeconds(1)).millis());
+                    int timeout = (int) settings.getAsTime("xterms.redis.timeout", TimeValue.timeValueSeconds(2)).millis();
+                    pool = new JedisPool(config, address.host, address.port, timeout, null, address.db);
+                    pools.put(address.key(), pool);
+                }
+            }
+        }
+        return pool;
     }
 
     private static Protocol.Command parseCommand(String command) {
@@ -31,4 +173,39 @@ public class JedisAdaptor {
         return cmd;
     }
 
+    /**
+     * Address of a redis instance, given as <tt>host</tt>, <tt>host:port</tt> or <tt>host:port/db</tt>, optionally
+     * prefixed by <tt>redis://</tt>
+     */
+    static class RedisAddress {
+
+        final String host;
+        final int port;
+        final int db;
+
+        RedisAddress(String url) {
+            String address = url.startsWith("redis://") ? url.substring("redis://".length()) : url;
+            int dbIndex = address.indexOf('/');
+            if (dbIndex >= 0) {
+                String db = address.substring(dbIndex + 1);
+                this.db = db.length() > 0 ? Integer.parseInt(db) : 0;
+                address = address.substring(0, dbIndex);
+            } else {
+                this.db = 0;
+            }
+            int portIndex = address.indexOf(':');
+            if (portIndex >= 0) {
+                this.host = address.substring(0, portIndex);
+                this.port = Integer.parseInt(address.substring(portIndex + 1));
+            } else {
+                this.host = address;
+                this.port = Protocol.DEFAULT_PORT;
+            }
+        }
+
+        String key() {
+            return host + ":" + port + "/" + db;
+        }
+    }
+
 }
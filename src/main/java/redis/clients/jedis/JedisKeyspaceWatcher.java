@@ -0,0 +1,313 @@
+package redis.clients.jedis;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Invalidates the lookups of redis keys as soon as the keys change, through the keyspace notifications of redis
+ * (<tt>__keyspace@db__:key</tt> channels), which must be enabled on the redis instance (e.g.
+ * <tt>notify-keyspace-events KA</tt>). Each redis instance with watched keys gets a dedicated connection subscribed
+ * to the channels of the keys, and a thread reading the notifications. Should the connection be lost, all its
+ * lookups are invalidated, since changes might have been missed meanwhile, and it is opened again. Keys are watched
+ * until their lookups leave the cache, the connection being closed once no keys are left:
+ * <ul>
+ * <li><tt>xterms.redis.watch.retry_interval</tt>: time between attempts to reconnect (defaults to 1s)</li>
+ * </ul>
+ */
+public class JedisKeyspaceWatcher {
+
+    private final ESLogger logger;
+
+    private final XTermsFetchService fetchService;
+
+    private final TimeValue retryInterval;
+
+    private final int timeout;
+
+    private final Settings settings;
+
+    // subscriptions by redis instance
+    private final ConcurrentMap<String, Subscription> subscriptions = ConcurrentCollections.newConcurrentMap();
+
+    private volatile boolean closed;
+
+    public JedisKeyspaceWatcher(Settings settings, XTermsFetchService fetchService) {
+        this.logger = Loggers.getLogger(getClass(), settings);
+        this.settings = settings;
+        this.fetchService = fetchService;
+        this.retryInterval = settings.getAsTime("xterms.redis.watch.retry_interval", TimeValue.timeValueSeconds(1));
+        this.timeout = (int) settings.getAsTime("xterms.redis.timeout", TimeValue.timeValueSeconds(2)).millis();
+    }
+
+    /**
+     * Invalidates the given lookup whenever one of the keys of the given redis instance changes. Should be called
+     * before the keys are read, so changes made while they are being read are not missed.
+     */
+    public void watch(String url, Collection<String> keys, String lookupKey) {
+        if (closed) {
+            return;
+        }
+        JedisAdaptor.RedisAddress address = new JedisAdaptor.RedisAddress(url);
+        while (true) {
+            Subscription subscription = subscriptions.get(address.key());
+            if (subscription == null) {
+                synchronized (subscriptions) {
+                    subscription = subscriptions.get(address.key());
+                    if (subscription == null) {
+                        subscription = new Subscription(address);
+                        subscriptions.put(address.key(), subscription);
+                    }
+                }
+            }
+            if (subscription.watch(keys, lookupKey)) {
+                return;
+            }
+            // the last lookup of the subscription was unwatched meanwhile
+            subscriptions.remove(address.key(), subscription);
+        }
+    }
+
+    /**
+     * Stops watching the keys of the given lookup, once its terms are not cached anymore. Subscriptions left without
+     * keys are closed.
+     */
+    public void unwatch(String lookupKey) {
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.unwatch(lookupKey)) {
+                subscriptions.remove(subscription.address.key(), subscription);
+                subscription.close();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.close();
+        }
+        subscriptions.clear();
+    }
+
+    /**
+     * Subscription to the keys of a redis instance, subscribing to the channels of new keys once the initial ones are
+     * subscribed to, so the channels of keys watched while connecting are not missed
+     */
+    class Subscription extends JedisPubSub implements Runnable {
+
+        private final JedisAdaptor.RedisAddress address;
+
+        private final String prefix;
+
+        // lookups to invalidate per key
+        private final ConcurrentMap<String, Set<String>> lookups = ConcurrentCollections.newConcurrentMap();
+
+        private Thread thread;
+
+        private volatile Jedis jedis;
+
+        // whether the channels of all keys were asked for, guarded by this
+        private boolean synced;
+
+        private int initialChannels;
+
+        private Set<String> initialKeys;
+
+        // set under this once the subscription has no keys left
+        private volatile boolean done;
+
+        Subscription(JedisAdaptor.RedisAddress address) {
+            this.address = address;
+            this.prefix = "__keyspace@" + address.db + "__:";
+        }
+
+        /**
+         * @return false if the subscription was closed, having no keys left
+         */
+        boolean watch(Collection<String> keys, String lookupKey) {
+            List<String> channels = new ArrayList<String>();
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                for (String key : keys) {
+                    Set<String> keyLookups = lookups.get(key);
+                    if (keyLookups == null) {
+                        keyLookups = ConcurrentCollections.newConcurrentSet();
+                        lookups.put(key, keyLookups);
+                        channels.add(prefix + key);
+                    }
+                    keyLookups.add(lookupKey);
+                }
+                if (thread == null) {
+                    thread = EsExecutors.daemonThreadFactory(settings, "xterms_redis_watch").newThread(this);
+                    thread.start();
+                } else if (synced && !channels.isEmpty()) {
+                    subscribe(channels.toArray(new String[channels.size()]));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Removes the lookup from the lookups of all keys, unsubscribing from the channels of the keys left without
+         * lookups. Channels of the initial keys are only dropped once connecting again, if still connecting.
+         *
+         * @return true if no keys are left, the subscription should be closed
+         */
+        boolean unwatch(String lookupKey) {
+            List<String> channels = new ArrayList<String>();
+            synchronized (this) {
+                for (Iterator<Map.Entry<String, Set<String>>> it = lookups.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, Set<String>> entry = it.next();
+                    if (entry.getValue().remove(lookupKey) && entry.getValue().isEmpty()) {
+                        it.remove();
+                        channels.add(prefix + entry.getKey());
+                    }
+                }
+                if (lookups.isEmpty()) {
+                    done = true;
+                    return true;
+                }
+                if (synced && !channels.isEmpty()) {
+                    unsubscribe(channels.toArray(new String[channels.size()]));
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (!closed && !done) {
+                String[] channels;
+                synchronized (this) {
+                    synced = false;
+                    initialKeys = new HashSet<String>(lookups.keySet());
+                    initialChannels = initialKeys.size();
+                    channels = new String[initialChannels];
+                    int i = 0;
+                    for (String key : initialKeys) {
+                        channels[i++] = prefix + key;
+                    }
+                }
+                try {
+                    jedis = new Jedis(address.host, address.port, timeout);
+                    jedis.subscribe(this, channels);
+                } catch (RuntimeException e) {
+                    if (!closed && !done) {
+                        logger.warn("lost keyspace notifications of redis [{}], retrying in [{}]: {}", address.key(),
+                                retryInterval, e.getMessage());
+                    }
+                } finally {
+                    disconnect();
+                }
+                if (closed || done) {
+                    return;
+                }
+                // changes might have been missed while not subscribed
+                invalidateAll();
+                try {
+                    Thread.sleep(retryInterval.millis());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            synchronized (this) {
+                if (synced || subscribedChannels < initialChannels) {
+                    return;
+                }
+                synced = true;
+                List<String> missing = new ArrayList<String>();
+                for (String key : lookups.keySet()) {
+                    if (!initialKeys.contains(key)) {
+                        missing.add(prefix + key);
+                    }
+                }
+                initialKeys = null;
+                if (!missing.isEmpty()) {
+                    subscribe(missing.toArray(new String[missing.size()]));
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(String channel, String event) {
+            if (!channel.startsWith(prefix)) {
+                return;
+            }
+            String key = channel.substring(prefix.length());
+            Set<String> keyLookups = lookups.get(key);
+            if (keyLookups != null) {
+                logger.trace("redis key [{}] of [{}] changed by [{}]", key, address.key(), event);
+                for (String lookupKey : keyLookups) {
+                    fetchService.invalidate(null, lookupKey);
+                }
+            }
+        }
+
+        private void invalidateAll() {
+            Set<String> all = new HashSet<String>();
+            for (Map.Entry<String, Set<String>> entry : lookups.entrySet()) {
+                all.addAll(entry.getValue());
+            }
+            for (String lookupKey : all) {
+                fetchService.invalidate(null, lookupKey);
+            }
+        }
+
+        void close() {
+            Thread thread;
+            synchronized (this) {
+                thread = this.thread;
+            }
+            disconnect();
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        private void disconnect() {
+            Jedis jedis = this.jedis;
+            if (jedis != null) {
+                try {
+                    jedis.disconnect();
+                } catch (RuntimeException e) {
+                    // closing anyway
+                }
+            }
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+        }
+    }
+}
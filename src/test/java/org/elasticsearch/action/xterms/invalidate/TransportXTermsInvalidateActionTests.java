@@ -0,0 +1,175 @@
+package org.elasticsearch.action.xterms.invalidate;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.LocalTransportAddress;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+import org.elasticsearch.index.query.fetch.XFetchedTerms;
+import org.elasticsearch.index.query.fetch.XTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.index.query.fetch.XTermsSet;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.transport.local.LocalTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TransportXTermsInvalidateActionTests {
+
+    private final DiscoveryNode localNode = new DiscoveryNode("node1", "node_1", new LocalTransportAddress("1"),
+            ImmutableSettings.EMPTY.getAsMap());
+
+    private XTermsFetchService fetchService;
+
+    private ThreadPool threadPool;
+
+    private TransportXTermsInvalidateAction action;
+
+    private FixedFetch first;
+
+    private FixedFetch second;
+
+    private FixedFetch other;
+
+    @Before
+    public void setUp() {
+        fetchService = new XTermsFetchService(ImmutableSettings.EMPTY);
+        threadPool = new ThreadPool();
+        TransportService transportService = new TransportService(new LocalTransport(threadPool), threadPool);
+        action = new TransportXTermsInvalidateAction(ImmutableSettings.EMPTY, new ClusterName("test"), threadPool,
+                clusterService(localNode), transportService, fetchService);
+        first = new FixedFetch(fetchService, "source", "first");
+        second = new FixedFetch(fetchService, "source", "second");
+        other = new FixedFetch(fetchService, "other", "first");
+        fetchService.getTerms(first);
+        fetchService.getTerms(second);
+        fetchService.getTerms(other);
+    }
+
+    @After
+    public void tearDown() {
+        fetchService.close();
+        threadPool.shutdownNow();
+    }
+
+    @Test
+    public void testLookupIsInvalidated() {
+        XTermsNodeInvalidated node = invalidate(new XTermsInvalidateRequest().lookup(first.lookupKey()));
+        assertThat(node.getInvalidated(), equalTo(1));
+        assertThat(fetchService.getCachedTerms(first), nullValue());
+        assertThat(fetchService.getCachedTerms(second), notNullValue());
+        assertThat(fetchService.getCachedTerms(other), notNullValue());
+    }
+
+    @Test
+    public void testLookupsOfSourceAreInvalidated() {
+        XTermsNodeInvalidated node = invalidate(new XTermsInvalidateRequest().source("source"));
+        assertThat(node.getInvalidated(), equalTo(2));
+        assertThat(fetchService.getCachedTerms(first), nullValue());
+        assertThat(fetchService.getCachedTerms(second), nullValue());
+        assertThat(fetchService.getCachedTerms(other), notNullValue());
+    }
+
+    @Test
+    public void testAllLookupsAreInvalidated() {
+        XTermsNodeInvalidated node = invalidate(new XTermsInvalidateRequest());
+        assertThat(node.getInvalidated(), equalTo(3));
+        assertThat(fetchService.getCachedTerms(first), nullValue());
+        assertThat(fetchService.getCachedTerms(second), nullValue());
+        assertThat(fetchService.getCachedTerms(other), nullValue());
+    }
+
+    @Test
+    public void testResponseKeepsTheNodesThatAnswered() throws IOException {
+        XTermsInvalidateRequest request = new XTermsInvalidateRequest().source("source");
+        AtomicReferenceArray<Object> responses = new AtomicReferenceArray<Object>(2);
+        responses.set(0, invalidate(request));
+        responses.set(1, new FailedNodeException("node_2", "failed", new RuntimeException()));
+        XTermsInvalidateResponse response = action.newResponse(request, responses);
+        assertThat(response.getNodes().length, equalTo(1));
+
+        // shipped to the node asking for the invalidation
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        XTermsInvalidateResponse read = new XTermsInvalidateResponse();
+        read.readFrom(new BytesStreamInput(out.bytes()));
+        assertThat(read.getClusterName(), equalTo(response.getClusterName()));
+        assertThat(read.getNodes().length, equalTo(1));
+        assertThat(read.getNodes()[0].getNode().id(), equalTo("node_1"));
+        assertThat(read.getNodes()[0].getInvalidated(), equalTo(2));
+    }
+
+    @Test
+    public void testNodeRequestIsShipped() throws IOException {
+        TransportXTermsInvalidateAction.NodeRequest request = new TransportXTermsInvalidateAction.NodeRequest("node_1",
+                new XTermsInvalidateRequest().source("source").lookup("lookup"));
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        TransportXTermsInvalidateAction.NodeRequest read = new TransportXTermsInvalidateAction.NodeRequest();
+        read.readFrom(new BytesStreamInput(out.bytes()));
+        assertThat(read.request.source(), equalTo("source"));
+        assertThat(read.request.lookup(), equalTo("lookup"));
+    }
+
+    private XTermsNodeInvalidated invalidate(XTermsInvalidateRequest request) {
+        return action.nodeOperation(new TransportXTermsInvalidateAction.NodeRequest("node_1", request));
+    }
+
+    /**
+     * Cluster service only knowing the local node
+     */
+    private static ClusterService clusterService(final DiscoveryNode localNode) {
+        return (ClusterService) Proxy.newProxyInstance(ClusterService.class.getClassLoader(),
+                new Class[]{ClusterService.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("localNode")) {
+                            return localNode;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Lookup of a single term named after it
+     */
+    static class FixedFetch extends XTermsFetch {
+
+        private final String name;
+
+        FixedFetch(XTermsFetchService fetchService, String url, String name) {
+            super(url, null, fetchService, null, null);
+            this.name = name;
+        }
+
+        @Override
+        protected String sourceKey() {
+            return "fixed|" + url + "|" + name;
+        }
+
+        @Override
+        protected XFetchedTerms fetchTerms() {
+            XTermsSet.Builder terms = new XBytesTermsSet.Builder();
+            terms.add(name);
+            return new XFetchedTerms(terms.build(), null);
+        }
+    }
+}
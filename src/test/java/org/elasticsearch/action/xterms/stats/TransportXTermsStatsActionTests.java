@@ -0,0 +1,178 @@
+package org.elasticsearch.action.xterms.stats;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.LocalTransportAddress;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+import org.elasticsearch.index.query.fetch.XFetchedTerms;
+import org.elasticsearch.index.query.fetch.XTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.index.query.fetch.XTermsSet;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.transport.local.LocalTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.not;
+
+public class TransportXTermsStatsActionTests {
+
+    private final DiscoveryNode localNode = new DiscoveryNode("node1", "node_1", new LocalTransportAddress("1"),
+            ImmutableSettings.EMPTY.getAsMap());
+
+    private XTermsFetchService fetchService;
+
+    private ThreadPool threadPool;
+
+    private TransportXTermsStatsAction action;
+
+    @Before
+    public void setUp() {
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.stats.max_lookups", 1)
+                .put("xterms.breaker.limit", "10mb")
+                .build());
+        threadPool = new ThreadPool();
+        TransportService transportService = new TransportService(new LocalTransport(threadPool), threadPool);
+        action = new TransportXTermsStatsAction(ImmutableSettings.EMPTY, new ClusterName("test"), threadPool,
+                clusterService(localNode), transportService, fetchService);
+    }
+
+    @After
+    public void tearDown() {
+        fetchService.close();
+        threadPool.shutdownNow();
+    }
+
+    @Test
+    public void testNodeStatsRecordFetchesAndTheCache() throws IOException {
+        fetchService.getTerms(new FixedFetch(fetchService, "first", false));
+        fetchService.getTerms(new FixedFetch(fetchService, "first", false));
+        fetchService.getTerms(new FixedFetch(fetchService, "second", false));
+        try {
+            fetchService.getTerms(new FixedFetch(fetchService, "failing", true));
+        } catch (RuntimeException e) {
+            // counted as a failure
+        }
+
+        Map<String, Object> node = render(action.nodeOperation(
+                new TransportXTermsStatsAction.NodeRequest("node_1", new XTermsStatsRequest())));
+        assertThat(node.get("name"), equalTo((Object) "node1"));
+        assertThat(value(node, "cache", "hits"), equalTo((Object) 1));
+        assertThat(value(node, "cache", "misses"), equalTo((Object) 3));
+        assertThat(value(node, "sources", "fixed", "fetches"), equalTo((Object) 3));
+        assertThat(value(node, "sources", "fixed", "failures"), equalTo((Object) 1));
+        assertThat(value(node, "sources", "fixed", "terms"), equalTo((Object) 4));
+        // only the first lookup is tracked individually
+        Map<String, Object> lookups = (Map<String, Object>) node.get("lookups");
+        assertThat(lookups.size(), equalTo(1));
+        assertThat(value(node, "lookups", "fixed|first|bytes", "terms"), equalTo((Object) 2));
+        assertThat(value(node, "breaker", "used_in_bytes"), equalTo((Object) (int) fetchService.breaker().used()));
+        assertThat(value(node, "breaker", "limit_in_bytes"), equalTo((Object) (10 * 1024 * 1024)));
+    }
+
+    @Test
+    public void testResponseKeepsTheStatsOfTheNodesThatAnswered() throws IOException {
+        fetchService.getTerms(new FixedFetch(fetchService, "first", false));
+        XTermsNodeStats nodeStats = action.nodeOperation(
+                new TransportXTermsStatsAction.NodeRequest("node_1", new XTermsStatsRequest()));
+        AtomicReferenceArray<Object> responses = new AtomicReferenceArray<Object>(2);
+        responses.set(0, nodeStats);
+        responses.set(1, new FailedNodeException("node_2", "failed", new RuntimeException()));
+        XTermsStatsResponse response = action.newResponse(new XTermsStatsRequest(), responses);
+        assertThat(response.getNodes().length, equalTo(1));
+
+        // shipped to the node asking for the stats
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        XTermsStatsResponse read = new XTermsStatsResponse();
+        read.readFrom(new BytesStreamInput(out.bytes()));
+        assertThat(read.getClusterName(), equalTo(response.getClusterName()));
+        assertThat(read.getNodes().length, equalTo(1));
+        assertThat(render(read), equalTo(render(response)));
+        assertThat(render(read), hasKey("nodes"));
+        assertThat(((Map<String, Object>) render(read).get("nodes")), hasKey("node_1"));
+        assertThat(((Map<String, Object>) render(read).get("nodes")), not(hasKey("node_2")));
+    }
+
+    private static Map<String, Object> render(ToXContent stats) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        stats.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return XContentFactory.xContent(XContentType.JSON).createParser(builder.string()).mapAndClose();
+    }
+
+    private static Object value(Map<String, Object> map, String... path) {
+        Object value = map;
+        for (String key : path) {
+            value = ((Map<String, Object>) value).get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Cluster service only knowing the local node
+     */
+    private static ClusterService clusterService(final DiscoveryNode localNode) {
+        return (ClusterService) Proxy.newProxyInstance(ClusterService.class.getClassLoader(),
+                new Class[]{ClusterService.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("localNode")) {
+                            return localNode;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Lookup of two terms named after it
+     */
+    static class FixedFetch extends XTermsFetch {
+
+        private final boolean fail;
+
+        FixedFetch(XTermsFetchService fetchService, String url, boolean fail) {
+            super(url, null, fetchService, null, null);
+            this.fail = fail;
+        }
+
+        @Override
+        protected String sourceKey() {
+            return "fixed|" + url;
+        }
+
+        @Override
+        protected XFetchedTerms fetchTerms() {
+            if (fail) {
+                throw new IllegalStateException("source down");
+            }
+            XTermsSet.Builder terms = new XBytesTermsSet.Builder();
+            terms.add(url + "1");
+            terms.add(url + "2");
+            return new XFetchedTerms(terms.build(), null);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.elasticsearch.common.lucene.search;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+import org.elasticsearch.index.query.fetch.XLongTermsSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.common.lucene.search.XTermsFilterTests.bits;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class XTermsDocIdSetCacheTests {
+
+    private static final int DOCS = 2000;
+
+    private final Random random = new Random(42);
+
+    private RAMDirectory directory;
+
+    private DirectoryReader reader;
+
+    private XTermsDocIdSetCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
+        config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+        IndexWriter writer = new IndexWriter(directory, config);
+        for (int i = 0; i < DOCS; i++) {
+            Document document = new Document();
+            document.add(new StringField("name", "name" + random.nextInt(DOCS), Field.Store.NO));
+            // single valued, but indexed at several precisions
+            document.add(new LongField("id", random.nextInt(DOCS), Field.Store.NO));
+            // multi valued
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                document.add(new StringField("tags", "tag" + random.nextInt(DOCS), Field.Store.NO));
+            }
+            writer.addDocument(document);
+            if ((i + 1) % (DOCS / 4) == 0) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        cache = new XTermsDocIdSetCache(ImmutableSettings.EMPTY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testSetsAreEvaluatedOncePerSegment() throws IOException {
+        CountingFilter filter = new CountingFilter(filter(500));
+        Object key = XTermsDocIdSetCache.filterKey("name", new CacheKeyFilter.Key("terms"));
+        for (int round = 0; round < 3; round++) {
+            for (AtomicReaderContext context : reader.leaves()) {
+                int maxDoc = context.reader().maxDoc();
+                assertThat(bits(cache.getDocIdSet(filter, key, context, null), maxDoc),
+                        equalTo(bits(filter.filter.getDocIdSet(context, null), maxDoc)));
+            }
+        }
+        assertThat(filter.evaluations.get(), equalTo(reader.leaves().size()));
+    }
+
+    @Test
+    public void testAcceptDocsAreAppliedToCachedSets() throws IOException {
+        CountingFilter filter = new CountingFilter(filter(500));
+        Object key = XTermsDocIdSetCache.filterKey("name", new CacheKeyFilter.Key("terms"));
+        for (AtomicReaderContext context : reader.leaves()) {
+            int maxDoc = context.reader().maxDoc();
+            // cache the set of the whole segment first
+            cache.getDocIdSet(filter, key, context, null);
+            FixedBitSet acceptDocs = new FixedBitSet(maxDoc);
+            for (int doc = 0; doc < maxDoc; doc += 2) {
+                acceptDocs.set(doc);
+            }
+            FixedBitSet expected = bits(filter.filter.getDocIdSet(context, null), maxDoc);
+            expected.and(acceptDocs);
+            assertThat(bits(cache.getDocIdSet(filter, key, context, acceptDocs), maxDoc), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testDisabledCacheEvaluatesEveryTime() throws IOException {
+        cache = new XTermsDocIdSetCache(ImmutableSettings.settingsBuilder()
+                .put("xterms.segment_cache.size", 0)
+                .build());
+        CountingFilter filter = new CountingFilter(filter(500));
+        Object key = XTermsDocIdSetCache.filterKey("name", new CacheKeyFilter.Key("terms"));
+        for (int round = 0; round < 2; round++) {
+            for (AtomicReaderContext context : reader.leaves()) {
+                cache.getDocIdSet(filter, key, context, null);
+            }
+        }
+        assertThat(filter.evaluations.get(), equalTo(2 * reader.leaves().size()));
+    }
+
+    @Test
+    public void testPatchStringField() throws IOException {
+        XBytesTermsSet base = strings("name", 500);
+        XBytesTermsSet added = strings("name", 50);
+        XBytesTermsSet removed = strings("name", 50);
+        XBytesTermsSet patched = base.patch(added, removed);
+        // single valued, so the sets must be patched rather than evaluated
+        assertPatched("name", false, filter("name", base), filter("name", patched), NOT_EVALUATED,
+                filter("name", added), filter("name", removed));
+    }
+
+    @Test
+    public void testAddOnlyMultiValuedField() throws IOException {
+        XBytesTermsSet base = strings("tag", 500);
+        XBytesTermsSet added = strings("tag", 50);
+        XBytesTermsSet patched = base.patch(added, new XBytesTermsSet.Builder().build());
+        // added docs are patched on multi valued fields as well
+        assertPatched("tags", false, filter("tags", base), filter("tags", patched), NOT_EVALUATED,
+                filter("tags", added), null);
+    }
+
+    @Test
+    public void testRemovalsOnMultiValuedField() throws IOException {
+        XBytesTermsSet base = strings("tag", 500);
+        XBytesTermsSet added = strings("tag", 50);
+        XBytesTermsSet removed = strings("tag", 50);
+        XBytesTermsSet patched = base.patch(added, removed);
+        // a doc matching a removed term might match another one, so the sets are evaluated
+        Filter expected = filter("tags", patched);
+        assertPatched("tags", false, filter("tags", base), expected, expected, filter("tags", added),
+                filter("tags", removed));
+    }
+
+    @Test
+    public void testPatchNumericField() throws IOException {
+        XLongTermsSet base = longs(500);
+        XLongTermsSet added = longs(50);
+        XLongTermsSet removed = longs(50);
+        XLongTermsSet patched = base.patch(added, removed);
+        // only the full precision terms count, so the field is single valued
+        assertPatched("id", true, filter(base), filter(patched), NOT_EVALUATED, filter(added), filter(removed));
+    }
+
+    /**
+     * Evaluates the base filter through the cache, then the filter of the patched terms with a delta, checking that
+     * the sets are the ones of the patched filter
+     */
+    private void assertPatched(String field, boolean numeric, Filter base, Filter expected, Filter evaluated, Filter added,
+                               Filter removed) throws IOException {
+        Object baseKey = XTermsDocIdSetCache.filterKey(field, new CacheKeyFilter.Key("base"));
+        Object patchedKey = XTermsDocIdSetCache.filterKey(field, new CacheKeyFilter.Key("patched"));
+        XTermsDocIdSetCache.Delta delta = new XTermsDocIdSetCache.Delta(baseKey, field, numeric, added, removed);
+        for (AtomicReaderContext context : reader.leaves()) {
+            int maxDoc = context.reader().maxDoc();
+            assertThat(bits(cache.getDocIdSet(base, baseKey, context, null), maxDoc),
+                    equalTo(bits(base.getDocIdSet(context, null), maxDoc)));
+            assertThat(bits(cache.getDocIdSet(evaluated, patchedKey, delta, context, null), maxDoc),
+                    equalTo(bits(expected.getDocIdSet(context, null), maxDoc)));
+        }
+    }
+
+    private static final Filter NOT_EVALUATED = new Filter() {
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            throw new AssertionError("evaluated instead of patched");
+        }
+    };
+
+    private Filter filter(int count) {
+        return filter("name", strings("name", count));
+    }
+
+    private static Filter filter(String field, XBytesTermsSet terms) {
+        return new XBytesTermsFilter(field, terms, XTermsFilter.Execution.AUTO);
+    }
+
+    private static Filter filter(XLongTermsSet terms) {
+        return new XLongTermsFilter("id", terms, false, null, XTermsFilter.Execution.SEEK);
+    }
+
+    private XLongTermsSet longs(int count) {
+        XLongTermsSet.Builder builder = new XLongTermsSet.Builder();
+        for (int i = 0; i < count; i++) {
+            builder.add((long) random.nextInt(DOCS));
+        }
+        return builder.build();
+    }
+
+    private XBytesTermsSet strings(String prefix, int count) {
+        XBytesTermsSet.Builder builder = new XBytesTermsSet.Builder();
+        for (int i = 0; i < count; i++) {
+            builder.add(prefix + random.nextInt(DOCS));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Counts the evaluations of a filter
+     */
+    static class CountingFilter extends Filter {
+
+        final Filter filter;
+
+        final AtomicInteger evaluations = new AtomicInteger();
+
+        CountingFilter(Filter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            evaluations.incrementAndGet();
+            return filter.getDocIdSet(context, acceptDocs);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.elasticsearch.common.lucene.search;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.fielddata.AtomicFieldData;
+import org.elasticsearch.index.fielddata.FieldDataType;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexFieldDataCache;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.mapper.core.StringFieldMapper;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+import org.elasticsearch.index.query.fetch.XFetchedTerms;
+import org.elasticsearch.index.query.fetch.XLongTermsSet;
+import org.elasticsearch.index.query.fetch.XTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.index.query.fetch.XTermsSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class XTermsFilterTests {
+
+    private static final int DOCS = 2000;
+
+    private final Random random = new Random(42);
+
+    private final Mapper.BuilderContext builderContext = new Mapper.BuilderContext(ImmutableSettings.EMPTY, new ContentPath());
+
+    private final FieldMapper longMapper = new LongFieldMapper.Builder("id").build(builderContext);
+
+    private final FieldMapper stringMapper = new StringFieldMapper.Builder("name").build(builderContext);
+
+    private RAMDirectory directory;
+
+    private DirectoryReader reader;
+
+    private XTermsFetchService fetchService;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
+        config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+        IndexWriter writer = new IndexWriter(directory, config);
+        for (int i = 0; i < DOCS; i++) {
+            Document document = new Document();
+            // some docs without values, some with several
+            for (int j = random.nextInt(4) - 1; j > 0; j--) {
+                long value = random.nextInt(DOCS * 2);
+                document.add(new LongField("id", value, Field.Store.NO));
+                document.add(new StringField("name", Long.toString(value), Field.Store.NO));
+            }
+            writer.addDocument(document);
+            if ((i + 1) % (DOCS / 4) == 0) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        fetchService = new XTermsFetchService(ImmutableSettings.EMPTY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fetchService.close();
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testExecutionsOnNumericField() throws IOException {
+        IndexNumericFieldData fieldData = fieldData(longMapper);
+        // seeked, merged, scanned and bigger than the segments
+        for (int size : new int[]{10, 100, 1000, 3000}) {
+            XTermsSet terms = terms(longMapper, size);
+            Filter expected = longMapper.termsFilter(terms.toList(), null);
+            for (XTermsFilter.Execution execution : XTermsFilter.Execution.values()) {
+                assertSameDocs(expected, new XLongTermsFilter("id", (XLongTermsSet) terms, false, fieldData, execution),
+                        execution);
+            }
+        }
+    }
+
+    @Test
+    public void testExecutionsOnStringField() throws IOException {
+        for (int size : new int[]{10, 100, 1000, 3000}) {
+            XTermsSet terms = terms(stringMapper, size);
+            Filter expected = stringMapper.termsFilter(terms.toList(), null);
+            for (XTermsFilter.Execution execution : XTermsFilter.Execution.values()) {
+                assertSameDocs(expected, new XBytesTermsFilter("name", (XBytesTermsSet) terms, execution), execution);
+            }
+        }
+    }
+
+    @Test
+    public void testExecutionsOnSegmentCache() throws IOException {
+        XTermsDocIdSetCache docIdSetCache = new XTermsDocIdSetCache(ImmutableSettings.EMPTY);
+        IndexNumericFieldData fieldData = fieldData(longMapper);
+        XTermsSet terms = terms(longMapper, 100);
+        Filter expected = longMapper.termsFilter(terms.toList(), null);
+        for (XTermsFilter.Execution execution : XTermsFilter.Execution.values()) {
+            // the second round hits the cached sets
+            for (int round = 0; round < 2; round++) {
+                XTermsFilter filter = new XTermsFilter(new FixedFetch(fetchService, longMapper, terms), null, execution, fieldData,
+                        docIdSetCache);
+                assertSameDocs(expected, filter, execution);
+            }
+        }
+    }
+
+    private static IndexNumericFieldData fieldData(FieldMapper mapper) {
+        return new LongArrayIndexFieldData(new Index("test"), ImmutableSettings.EMPTY, mapper.names(),
+                new FieldDataType("long"), new DirectFieldDataCache());
+    }
+
+    /**
+     * Checks that the filter matches the docs matched by the terms filter of the field
+     */
+    private void assertSameDocs(Filter expected, Filter filter, XTermsFilter.Execution execution) throws IOException {
+        for (AtomicReaderContext context : reader.leaves()) {
+            int maxDoc = context.reader().maxDoc();
+            assertThat("execution [" + execution + "]", bits(filter.getDocIdSet(context, null), maxDoc),
+                    equalTo(bits(expected.getDocIdSet(context, null), maxDoc)));
+        }
+    }
+
+    private XTermsSet terms(FieldMapper mapper, int size) {
+        XTermsSet.Builder builder = XTermsSet.builder(mapper);
+        for (int i = 0; i < size; i++) {
+            // half of them missing from the index
+            builder.add((long) random.nextInt(DOCS * 4));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Lookup of a given term set
+     */
+    static class FixedFetch extends XTermsFetch {
+
+        private final XTermsSet terms;
+
+        FixedFetch(XTermsFetchService fetchService, FieldMapper mapper, XTermsSet terms) {
+            super("fixed", null, fetchService, mapper, null);
+            this.terms = terms;
+        }
+
+        @Override
+        protected String sourceKey() {
+            return "fixed:" + System.identityHashCode(terms);
+        }
+
+        @Override
+        protected XFetchedTerms fetchTerms() {
+            return new XFetchedTerms(terms, null);
+        }
+    }
+
+    static FixedBitSet bits(DocIdSet docIdSet, int maxDoc) throws IOException {
+        FixedBitSet bits = new FixedBitSet(maxDoc);
+        DocIdSetIterator iterator = docIdSet != null ? docIdSet.iterator() : null;
+        if (iterator != null) {
+            bits.or(iterator);
+        }
+        return bits;
+    }
+
+    /**
+     * Loads field data straight from the segments, without caching it
+     */
+    static class DirectFieldDataCache implements IndexFieldDataCache {
+
+        @Override
+        public <FD extends AtomicFieldData, IFD extends IndexFieldData<FD>> FD load(AtomicReaderContext context,
+                                                                                    IFD indexFieldData) throws Exception {
+            return indexFieldData.loadDirect(context);
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public void clear(String fieldName) {
+        }
+
+        @Override
+        public void clear(IndexReader reader) {
+        }
+    }
+}
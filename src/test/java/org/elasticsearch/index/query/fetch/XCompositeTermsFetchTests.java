@@ -0,0 +1,105 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class XCompositeTermsFetchTests {
+
+    private XTermsFetchService fetchService;
+
+    private FixedFetch left;
+
+    private FixedFetch right;
+
+    @Before
+    public void setUp() {
+        fetchService = new XTermsFetchService(ImmutableSettings.EMPTY);
+        left = new FixedFetch(fetchService, "left", 0, 1000);
+        right = new FixedFetch(fetchService, "right", 500, 1500);
+    }
+
+    @After
+    public void tearDown() {
+        fetchService.close();
+    }
+
+    @Test
+    public void testOperators() {
+        assertThat(composite(XCompositeTermsFetch.Operator.UNION, null).getTerms().toList(),
+                equalTo(new FixedFetch(fetchService, "union", 0, 1500).getTerms().toList()));
+        assertThat(composite(XCompositeTermsFetch.Operator.INTERSECT, null).getTerms().toList(),
+                equalTo(new FixedFetch(fetchService, "intersect", 500, 1000).getTerms().toList()));
+        assertThat(composite(XCompositeTermsFetch.Operator.MINUS, null).getTerms().toList(),
+                equalTo(new FixedFetch(fetchService, "minus", 0, 500).getTerms().toList()));
+    }
+
+    @Test
+    public void testUnionIsLimitedToTheMaxSize() {
+        // room for either lookup but not for both
+        long maxSize = Math.max(left.getTerms().sizeInBytes(), right.getTerms().sizeInBytes()) + 100;
+        assertTooLarge(composite(XCompositeTermsFetch.Operator.UNION, new ByteSizeValue(maxSize)));
+    }
+
+    @Test
+    public void testIntersectionIsLimitedToTheMaxSize() {
+        assertTooLarge(composite(XCompositeTermsFetch.Operator.INTERSECT, new ByteSizeValue(100)));
+    }
+
+    private void assertTooLarge(XCompositeTermsFetch fetch) {
+        long used = left.getTerms().sizeInBytes() + right.getTerms().sizeInBytes();
+        assertThat(fetchService.breaker().used(), equalTo(used));
+        try {
+            fetch.getTerms();
+            throw new AssertionError("terms should have been over the max size");
+        } catch (XTermsTooLargeException e) {
+            // expected
+        }
+        // the reservations of the combined terms are given back
+        assertThat(fetchService.breaker().used(), equalTo(used));
+    }
+
+    private XCompositeTermsFetch composite(XCompositeTermsFetch.Operator operator, ByteSizeValue maxSize) {
+        XCompositeTermsFetch fetch = new XCompositeTermsFetch(operator, Arrays.<XTermsFetch>asList(left, right), null,
+                fetchService, null, null);
+        fetch.maxSize(maxSize);
+        return fetch;
+    }
+
+    /**
+     * Lookup of the terms numbered from start (inclusive) to end (exclusive)
+     */
+    static class FixedFetch extends XTermsFetch {
+
+        private final int start;
+
+        private final int end;
+
+        FixedFetch(XTermsFetchService fetchService, String url, int start, int end) {
+            super(url, null, fetchService, null, null);
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected String sourceKey() {
+            return "fixed|" + url + "|" + start + "|" + end;
+        }
+
+        @Override
+        protected XFetchedTerms fetchTerms() {
+            XTermsSet.Builder terms = newTermsBuilder();
+            for (int i = start; i < end; i++) {
+                terms.add("term_" + (10000 + i));
+            }
+            return new XFetchedTerms(terms.build(), null);
+        }
+    }
+}
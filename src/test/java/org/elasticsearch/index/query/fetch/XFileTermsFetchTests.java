@@ -0,0 +1,179 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class XFileTermsFetchTests {
+
+    private final FieldMapper longMapper = new LongFieldMapper.Builder("id")
+            .build(new Mapper.BuilderContext(ImmutableSettings.EMPTY, new ContentPath()));
+
+    private File dir;
+
+    private XTermsFetchService fetchService;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("xterms", "");
+        dir.delete();
+        dir.mkdirs();
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.file.dir", dir.getPath())
+                .build());
+    }
+
+    @After
+    public void tearDown() {
+        fetchService.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testNumbersAreMapped() throws IOException {
+        write("ids.xterms", longs(3, 1, 2));
+        XTermsSet terms = fetchService.getTerms(new XFileTermsFetch("ids.xterms", null, fetchService, longMapper, null)).terms();
+        assertThat(terms, instanceOf(XLongTermsSet.class));
+        assertThat(terms.toList(), equalTo(Arrays.<Object>asList(1L, 2L, 3L)));
+        // as strings on other fields
+        terms = fetchService.getTerms(new XFileTermsFetch("ids.xterms", null, fetchService, null, null)).terms();
+        assertThat(terms.toList(), equalTo(Arrays.<Object>asList("1", "2", "3")));
+    }
+
+    @Test
+    public void testOtherTermsAreRead() throws IOException {
+        write("names.xterms", XTermsSetTests.strings(Arrays.asList("b", "a", "c")));
+        XTermsSet terms = fetchService.getTerms(new XFileTermsFetch("names.xterms", null, fetchService, null, null)).terms();
+        assertThat(terms.toList(), equalTo(Arrays.<Object>asList("a", "b", "c")));
+    }
+
+    @Test
+    public void testChangedFilesAreReloaded() throws Exception {
+        write("ids.xterms", longs(1, 2));
+        XFetchedTerms first = fetchService.getTerms(fetch("ids.xterms"));
+        write("ids.xterms", longs(1, 2, 3));
+        Thread.sleep(50);
+        XFetchedTerms second = fetchService.getTerms(fetch("ids.xterms"));
+        assertThat(second.terms().toList(), equalTo(Arrays.<Object>asList(1L, 2L, 3L)));
+        assertThat(second.version(), not(equalTo(first.version())));
+    }
+
+    @Test
+    public void testTouchedFilesKeepTheirTerms() throws Exception {
+        File file = write("ids.xterms", longs(1, 2));
+        XFetchedTerms first = fetchService.getTerms(fetch("ids.xterms"));
+        file.setLastModified(file.lastModified() + 2000);
+        Thread.sleep(50);
+        XFetchedTerms second = fetchService.getTerms(fetch("ids.xterms"));
+        assertThat(second.terms(), sameInstance(first.terms()));
+        assertThat(second.version(), equalTo(first.version()));
+    }
+
+    @Test
+    public void testFilesOutsideTheDirectoryAreRejected() {
+        try {
+            new XFileTermsFetch("../ids.xterms", null, fetchService, longMapper, null);
+            throw new AssertionError("path should have been rejected");
+        } catch (ElasticSearchIllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("is not within"));
+        }
+    }
+
+    @Test
+    public void testOtherFilesAreRejected() throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(dir, "other.txt"));
+        out.write("1\n2\n3\n4\n5\n6\n7\n8\n9\n".getBytes("UTF-8"));
+        out.close();
+        try {
+            fetchService.getTerms(fetch("other.txt"));
+            throw new AssertionError("file should have been rejected");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("Error reading terms file"));
+        }
+    }
+
+    @Test
+    public void testFilesAreTrackedByTheirService() throws IOException {
+        write("ids.xterms", longs(1, 2));
+        fetchService.getTerms(fetch("ids.xterms"));
+        assertThat(fetchService.termsFiles().keySet(), equalTo(Collections.singleton(new File(dir, "ids.xterms")
+                .getCanonicalPath())));
+        // other nodes of the same jvm keep their own state
+        XTermsFetchService other = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.file.dir", dir.getPath())
+                .build());
+        try {
+            assertThat(other.termsFiles().isEmpty(), equalTo(true));
+        } finally {
+            other.close();
+        }
+        fetchService.close();
+        assertThat(fetchService.termsFiles().isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testFilesDefaultToTheConfigDirectory() {
+        XTermsFetchService other = new XTermsFetchService(ImmutableSettings.EMPTY);
+        try {
+            assertThat(other.termsFileDir(), equalTo(new File(new Environment(ImmutableSettings.EMPTY).configFile(), "xterms")));
+        } finally {
+            other.close();
+        }
+    }
+
+    private XFileTermsFetch fetch(String path) {
+        XFileTermsFetch fetch = new XFileTermsFetch(path, null, fetchService, longMapper, null);
+        // fetched again right away, so changes are picked up
+        fetch.refreshInterval(TimeValue.timeValueMillis(10)).maxStale(TimeValue.timeValueMillis(10));
+        return fetch;
+    }
+
+    /**
+     * Writes a terms file aside, then renames it, as a batch job should
+     */
+    private File write(String name, XTermsSet terms) throws IOException {
+        File file = new File(dir, name);
+        long lastModified = file.lastModified();
+        File tmp = new File(dir, name + ".tmp");
+        XFileTermsFetch.write(terms, tmp);
+        file.delete();
+        assertThat(tmp.renameTo(file), equalTo(true));
+        if (file.lastModified() <= lastModified) {
+            // coarse file times
+            file.setLastModified(lastModified + 2000);
+        }
+        return file;
+    }
+
+    private static XTermsSet longs(long... values) {
+        XTermsSet.Builder builder = new XLongTermsSet.Builder();
+        for (long value : values) {
+            builder.add(value);
+        }
+        return builder.build();
+    }
+}
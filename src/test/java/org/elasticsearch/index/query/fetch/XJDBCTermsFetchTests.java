@@ -0,0 +1,166 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+
+public class XJDBCTermsFetchTests {
+
+    private static final String URL = "jdbc:h2:mem:xterms_jdbc;DB_CLOSE_DELAY=-1";
+
+    private static final String DRIVER = "org.h2.Driver";
+
+    private static final int ROWS = 2500;
+
+    private final FieldMapper mapper = new LongFieldMapper.Builder("id")
+            .build(new Mapper.BuilderContext(ImmutableSettings.EMPTY, new ContentPath()));
+
+    private Connection connection;
+
+    private XTermsFetchService fetchService;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName(DRIVER);
+        connection = DriverManager.getConnection(URL, "sa", "");
+        Statement statement = connection.createStatement();
+        statement.execute("DROP TABLE IF EXISTS users");
+        statement.execute("CREATE TABLE users (id BIGINT)");
+        statement.close();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO users VALUES (?)");
+        for (int i = 0; i < ROWS; i++) {
+            insert.setLong(1, i * 3);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+        fetchService = new XTermsFetchService(ImmutableSettings.EMPTY);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        fetchService.close();
+        connection.close();
+    }
+
+    @Test
+    public void testRowsAreFetchedInBatches() throws Exception {
+        List<Object> terms = fetch("SELECT id FROM users", 100).fetchTerms().terms().toList();
+        assertThat(terms.size(), equalTo(ROWS));
+        Set<Object> expected = new HashSet<Object>();
+        for (int i = 0; i < ROWS; i++) {
+            expected.add((long) i * 3);
+        }
+        assertThat(new HashSet<Object>(terms), equalTo(expected));
+    }
+
+    @Test
+    public void testFailedQueriesGiveTheirConnectionBack() throws Exception {
+        XJDBCTermsFetch fetch = fetch("SELECT id FROM missing", null);
+        for (int i = 0; i < 25; i++) {
+            try {
+                fetch.fetchTerms();
+                throw new AssertionError("query should have failed");
+            } catch (RuntimeException e) {
+                assertThat(e.getCause(), instanceOf(SQLException.class));
+            }
+        }
+        // more failures than pooled connections, the pool is still usable
+        assertThat(fetch("SELECT id FROM users WHERE id < 30", null).fetchTerms().terms().toList().size(), equalTo(10));
+    }
+
+    @Test
+    public void testLookupsOfOtherUsersAreNotShared() throws Exception {
+        XJDBCTermsFetch fetch = fetch("SELECT id FROM users", null);
+        XJDBCTermsFetch other = new XJDBCTermsFetch(URL, "SELECT id FROM users", DRIVER, "SA", "", null, null, null,
+                null, null, fetchService, null, null);
+        assertThat(fetch.sourceKey(), not(equalTo(other.sourceKey())));
+    }
+
+    @Test
+    public void testPoolsAreKeyedByUser() throws Exception {
+        Statement statement = connection.createStatement();
+        statement.execute("DROP USER IF EXISTS reader");
+        statement.execute("CREATE USER reader PASSWORD 'secret' ADMIN");
+        statement.close();
+        fetch("SELECT id FROM users", null);
+        fetch("SELECT id FROM users WHERE id < 30", null);
+        assertThat(fetchService.jdbcPools().size(), equalTo(1));
+        XJDBCTermsFetch reader = new XJDBCTermsFetch(URL, "SELECT LOWER(USER())", DRIVER, "reader", "secret", null, null,
+                null, null, null, fetchService, null, null);
+        assertThat(fetchService.jdbcPools().size(), equalTo(2));
+        // connected as the reader, not with the pool of the first user
+        assertThat(reader.fetchTerms().terms().toList(), equalTo(Arrays.<Object>asList("reader")));
+    }
+
+    @Test
+    public void testPoolsAreClosedWithTheService() throws Exception {
+        XJDBCTermsFetch fetch = fetch("SELECT id FROM users", null);
+        fetchService.close();
+        assertThat(fetchService.jdbcPools().size(), equalTo(0));
+        try {
+            fetch.fetchTerms();
+            throw new AssertionError("pool should have been closed");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause(), instanceOf(SQLException.class));
+        }
+        try {
+            fetch("SELECT id FROM users", null);
+            throw new AssertionError("pool should not have been created");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("closed"));
+        }
+    }
+
+    @Test
+    public void testPartitionsFetchEveryRow() throws Exception {
+        Statement statement = connection.createStatement();
+        // lands in the first partition, null terms are ignored though
+        statement.execute("INSERT INTO users VALUES (NULL)");
+        statement.close();
+        List<Object> expected = fetch("SELECT id FROM users", null).fetchTerms().terms().toList();
+        for (int partitions : new int[]{2, 3, 7, 100}) {
+            List<Object> terms = partitioned("SELECT id FROM users", "id", partitions).fetchTerms().terms().toList();
+            assertThat(terms.size(), equalTo(ROWS));
+            assertThat(new HashSet<Object>(terms), equalTo(new HashSet<Object>(expected)));
+        }
+    }
+
+    @Test
+    public void testLookupsWithoutNumericBoundsAreFetchedWhole() throws Exception {
+        List<Object> terms = partitioned("SELECT CAST(id AS VARCHAR) AS name FROM users", "name", 4).fetchTerms().terms().toList();
+        assertThat(terms.size(), equalTo(ROWS));
+        assertThat(partitioned("SELECT id FROM users WHERE id < 0", "id", 4).fetchTerms().terms().toList().size(), equalTo(0));
+    }
+
+    private XJDBCTermsFetch fetch(String query, Integer fetchSize) throws Exception {
+        return new XJDBCTermsFetch(URL, query, DRIVER, "sa", "", 1000, fetchSize, null, null, null, fetchService, mapper,
+                null);
+    }
+
+    private XJDBCTermsFetch partitioned(String query, String column, int partitions) throws Exception {
+        return new XJDBCTermsFetch(URL, query, DRIVER, "sa", "", 1000, null, column, partitions, null, fetchService,
+                mapper, null);
+    }
+}
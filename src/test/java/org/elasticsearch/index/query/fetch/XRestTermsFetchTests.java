@@ -0,0 +1,192 @@
+package org.elasticsearch.index.query.fetch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class XRestTermsFetchTests {
+
+    private static final String RESPONSE = "{\"took\": 3, \"hits\": {\"total\": 4, \"hits\": ["
+            + "{\"_id\": \"1\", \"_source\": {\"user\": {\"id\": 10, \"name\": \"john\"}, \"tags\": [\"a\", \"b\"]}},"
+            + "{\"_id\": \"2\", \"_source\": {\"user.id\": 11, \"friends\": [{\"id\": 12}, {\"id\": 13}]}},"
+            + "{\"_id\": \"3\", \"_source\": {\"user\": {\"id\": [14, [15, null]]}, \"tags\": {\"a\": 1}}},"
+            + "{\"_id\": \"4\", \"_source\": {\"user\": {\"id\": {\"nested\": 16}}, \"users\": {\"id\": 17}}}"
+            + "]}}";
+
+    private HttpServer server;
+
+    private XTermsFetchService fetchService;
+
+    // body served for the lookup, with its ETag
+    private volatile String body = "[\"1\", \"2\", \"3\"]";
+
+    private volatile String etag = "\"v1\"";
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    // unconditional requests answered not modified anyway, as some caching proxies do
+    private final AtomicInteger unconditionalNotModified = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/terms", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                if (etag.equals(ifNoneMatch)
+                        || (ifNoneMatch == null && unconditionalNotModified.getAndDecrement() > 0)) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", etag);
+                boolean gzip = String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Encoding")).contains("gzip");
+                if (gzip) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = gzip ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody();
+                out.write(body.getBytes(Charset.forName("UTF-8")));
+                out.close();
+            }
+        });
+        server.start();
+        fetchService = new XTermsFetchService(ImmutableSettings.EMPTY);
+    }
+
+    @After
+    public void tearDown() {
+        fetchService.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testCompressedResponsesAreDecoded() throws IOException {
+        assertThat(fetch(null).fetchTerms().terms().toList(), equalTo(list("1", "2", "3")));
+        body = RESPONSE;
+        assertThat(fetch("hits.hits._id").fetchTerms().terms().toList(), equalTo(list("1", "2", "3", "4")));
+    }
+
+    @Test
+    public void testCachedTermsAreRevalidated() throws IOException {
+        XFetchedTerms terms = fetchService.getTerms(fetch(null));
+        assertThat(terms.version(), equalTo(etag));
+        // not modified, the terms are reused
+        XFetchedTerms revalidated = fetch(null).fetchTerms();
+        assertThat(notModified.get(), equalTo(1));
+        assertThat(revalidated.terms(), sameInstance(terms.terms()));
+        assertThat(revalidated.cacheKey("rest"), equalTo(terms.cacheKey("rest")));
+        // modified
+        body = "[\"4\"]";
+        etag = "\"v2\"";
+        XFetchedTerms modified = fetch(null).fetchTerms();
+        assertThat(modified.terms().toList(), equalTo(list("4")));
+        assertThat(modified.version(), not(equalTo(terms.version())));
+    }
+
+    @Test
+    public void testUnconditionalRequestsAnsweredNotModifiedAreSentAgain() throws IOException {
+        unconditionalNotModified.set(1);
+        assertThat(fetch(null).fetchTerms().terms().toList(), equalTo(list("1", "2", "3")));
+        assertThat(notModified.get(), equalTo(1));
+        unconditionalNotModified.set(2);
+        try {
+            fetch(null).fetchTerms();
+            throw new AssertionError("fetch should have failed");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause().getMessage(), containsString("304 Not Modified"));
+        }
+    }
+
+    @Test
+    public void testExtractsTheValuesOfThePath() throws IOException {
+        assertThat(extract(RESPONSE, "hits.hits._source.user.id"), equalTo(list(10, 11, 14, 15)));
+        assertThat(extract(RESPONSE, "hits.hits._id"), equalTo(list("1", "2", "3", "4")));
+        assertThat(extract(RESPONSE, "hits.total"), equalTo(list(4)));
+        assertThat(extract(RESPONSE, "hits.missing"), equalTo(list()));
+    }
+
+    @Test
+    public void testExtractsLikeTheMapValues() throws IOException {
+        for (String path : new String[]{"hits.hits._source.user.id", "hits.hits._source.tags", "hits.hits",
+                "hits.hits._source.friends.id", "took", "hits.hits._source.user.name"}) {
+            Map<String, Object> map = JsonXContent.jsonXContent.createParser(RESPONSE).mapAndClose();
+            XTermsSet.Builder expected = new XBytesTermsSet.Builder();
+            for (Object value : XContentMapValues.extractRawValues(path, map)) {
+                // objects are skipped when streaming
+                if (!(value instanceof Map)) {
+                    expected.add(value);
+                }
+            }
+            assertThat("path [" + path + "]", extract(RESPONSE, path), equalTo(expected.build().toList()));
+        }
+    }
+
+    @Test
+    public void testExtractsFromTopLevelArrays() throws IOException {
+        assertThat(extract("[{\"id\": 1}, {\"id\": \"2\"}, [{\"id\": 3}], {\"other\": 4}]", "id"), equalTo(list(1, "2", 3)));
+    }
+
+    @Test
+    public void testNumbersAreKeptAsWrittenForOtherFields() throws IOException {
+        assertThat(extract("{\"ids\": [1e3, 12345678901234567890123, 1.50]}", "ids"),
+                equalTo(list("1e3", "12345678901234567890123", "1.50")));
+    }
+
+    private XRestTermsFetch fetch(String path) throws IOException {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/terms";
+        return new XRestTermsFetch(url, path, 1000, null, null, fetchService, null, null);
+    }
+
+    private List<Object> extract(String json, String path) throws IOException {
+        XRestTermsFetch fetch = fetch(path);
+        XContentParser parser = JsonXContent.jsonXContent.createParser(json);
+        String[] pathElements = Strings.splitStringToArray(path, '.');
+        XTermsSet.Builder terms = new XBytesTermsSet.Builder();
+        XContentParser.Token token = parser.nextToken();
+        if (token == XContentParser.Token.START_OBJECT) {
+            fetch.extractObject(parser, pathElements, 0, terms);
+        } else {
+            fetch.extractArray(parser, pathElements, 0, terms);
+        }
+        parser.close();
+        return terms.build().toList();
+    }
+
+    /**
+     * Terms of a bytes term set, sorted by their UTF-8 bytes
+     */
+    private static List<Object> list(Object... values) {
+        XTermsSet.Builder terms = new XBytesTermsSet.Builder();
+        for (Object value : values) {
+            terms.add(value);
+        }
+        return terms.build().toList();
+    }
+}
@@ -0,0 +1,119 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class XSourceGuardTests {
+
+    @Test
+    public void testBulkheadRejectsFetchesOverTheMaxConcurrent() {
+        XSourceGuard guard = guard(2, 3, TimeValue.timeValueMinutes(1));
+        guard.acquire();
+        guard.acquire();
+        assertRejected(guard, "Too many concurrent fetches");
+        // permits are given back whatever the outcome
+        guard.onSuccess();
+        guard.acquire();
+        guard.onFailure();
+        guard.acquire();
+        assertRejected(guard, "Too many concurrent fetches");
+    }
+
+    @Test
+    public void testReleasedFetchesDontCount() throws InterruptedException {
+        XSourceGuard guard = guard(1, 1, TimeValue.timeValueMillis(50));
+        guard.acquire();
+        guard.release();
+        assertThat(guard.isOpen(), equalTo(false));
+        // nor decide a trial fetch
+        guard.acquire();
+        guard.onFailure();
+        Thread.sleep(100);
+        guard.acquire();
+        guard.release();
+        assertThat(guard.isOpen(), equalTo(false));
+        guard.acquire();
+        guard.onFailure();
+        assertThat(guard.isOpen(), equalTo(true));
+    }
+
+    @Test
+    public void testRejectionsByTheBulkheadDontOpenTheCircuit() {
+        XSourceGuard guard = guard(1, 1, TimeValue.timeValueMinutes(1));
+        guard.acquire();
+        assertRejected(guard, "Too many concurrent fetches");
+        assertThat(guard.isOpen(), equalTo(false));
+    }
+
+    @Test
+    public void testCircuitOpensAfterMaxFailures() {
+        XSourceGuard guard = guard(10, 3, TimeValue.timeValueMinutes(1));
+        for (int i = 0; i < 2; i++) {
+            guard.acquire();
+            guard.onFailure();
+        }
+        assertThat(guard.isOpen(), equalTo(false));
+        // a success in between starts over
+        guard.acquire();
+        guard.onSuccess();
+        for (int i = 0; i < 2; i++) {
+            guard.acquire();
+            guard.onFailure();
+        }
+        assertThat(guard.isOpen(), equalTo(false));
+        guard.acquire();
+        guard.onFailure();
+        assertThat(guard.isOpen(), equalTo(true));
+        assertRejected(guard, "is unavailable");
+    }
+
+    @Test
+    public void testSuccessfulTrialClosesTheCircuit() throws InterruptedException {
+        XSourceGuard guard = open(guard(10, 1, TimeValue.timeValueMillis(50)));
+        Thread.sleep(100);
+        assertThat(guard.isOpen(), equalTo(false));
+        guard.acquire();
+        // a single trial at a time
+        assertThat(guard.isOpen(), equalTo(true));
+        assertRejected(guard, "is unavailable");
+        guard.onSuccess();
+        assertThat(guard.isOpen(), equalTo(false));
+        guard.acquire();
+        guard.onSuccess();
+    }
+
+    @Test
+    public void testFailedTrialOpensTheCircuitAgain() throws InterruptedException {
+        XSourceGuard guard = open(guard(10, 1, TimeValue.timeValueMillis(50)));
+        Thread.sleep(100);
+        guard.acquire();
+        guard.onFailure();
+        assertThat(guard.isOpen(), equalTo(true));
+        assertRejected(guard, "is unavailable");
+    }
+
+    private static XSourceGuard guard(int maxConcurrent, int maxFailures, TimeValue openTime) {
+        return new XSourceGuard("test", maxConcurrent, TimeValue.timeValueMillis(10), maxFailures,
+                TimeValue.timeValueMinutes(1), openTime);
+    }
+
+    private static XSourceGuard open(XSourceGuard guard) {
+        guard.acquire();
+        guard.onFailure();
+        assertThat(guard.isOpen(), equalTo(true));
+        return guard;
+    }
+
+    private static void assertRejected(XSourceGuard guard, String message) {
+        try {
+            guard.acquire();
+            throw new AssertionError("fetch should have been rejected");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString(message));
+        }
+    }
+}
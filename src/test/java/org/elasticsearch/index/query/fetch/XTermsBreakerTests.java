@@ -0,0 +1,154 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+public class XTermsBreakerTests {
+
+    private XTermsFetchService fetchService;
+
+    @Before
+    public void setUp() {
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.breaker.limit", "1mb")
+                .build());
+    }
+
+    @After
+    public void tearDown() {
+        fetchService.close();
+    }
+
+    @Test
+    public void testBreakerRefusesReservationsOverTheLimit() {
+        XTermsBreaker breaker = new XTermsBreaker(1000);
+        breaker.addEstimateAndMaybeBreak(600, "test");
+        try {
+            breaker.addEstimateAndMaybeBreak(600, "test");
+            throw new AssertionError("reservation should have been refused");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("over the limit"));
+        }
+        // refused reservations are not kept
+        assertThat(breaker.used(), equalTo(600L));
+        breaker.addWithoutBreaking(600);
+        assertThat(breaker.used(), equalTo(1200L));
+        breaker.release(1200);
+        assertThat(breaker.used(), equalTo(0L));
+    }
+
+    @Test
+    public void testBuildersReserveFromTheBreakerUntilReleased() {
+        XTermsBreaker breaker = new XTermsBreaker(-1);
+        XTermsSet.Builder builder = new XLongTermsSet.Builder().limit(breaker, -1, "test");
+        for (long i = 0; i < 100000; i++) {
+            builder.add(i);
+        }
+        assertThat(breaker.used(), greaterThanOrEqualTo(100000L * 8));
+        builder.release();
+        assertThat(breaker.used(), equalTo(0L));
+    }
+
+    @Test
+    public void testBuildersFailOverTheirMaxSize() {
+        XTermsBreaker breaker = new XTermsBreaker(-1);
+        assertOverMaxSize(new XLongTermsSet.Builder().limit(breaker, 10000, "test"), breaker);
+        assertOverMaxSize(new XBytesTermsSet.Builder().limit(breaker, 10000, "test"), breaker);
+    }
+
+    private static void assertOverMaxSize(XTermsSet.Builder builder, XTermsBreaker breaker) {
+        try {
+            for (long i = 0; i < 100000; i++) {
+                builder.add(i);
+            }
+            throw new AssertionError("builder should have failed");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("max size"));
+        }
+        builder.release();
+        assertThat(breaker.used(), equalTo(0L));
+    }
+
+    @Test
+    public void testBuildersFailOverTheBreakerLimit() {
+        XTermsBreaker breaker = new XTermsBreaker(100000);
+        XTermsSet.Builder builder = new XLongTermsSet.Builder().limit(breaker, -1, "test");
+        try {
+            for (long i = 0; i < 100000; i++) {
+                builder.add(i);
+            }
+            throw new AssertionError("builder should have failed");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("over the limit"));
+        }
+        builder.release();
+        assertThat(breaker.used(), equalTo(0L));
+    }
+
+    @Test
+    public void testCachedTermsStayAccountedUntilEvicted() {
+        XFetchedTerms terms = fetchService.getTerms(new BuildingFetch(fetchService, 1000));
+        // the reservations of the builder are released, the set is accounted for by its size
+        assertThat(fetchService.breaker().used(), equalTo(terms.sizeInBytes()));
+        assertThat(terms.sizeInBytes(), greaterThan(0L));
+        fetchService.clear();
+        assertThat(fetchService.breaker().used(), equalTo(0L));
+    }
+
+    @Test
+    public void testFetchesOverTheLimitsReleaseTheirReservations() {
+        BuildingFetch fetch = new BuildingFetch(fetchService, 1000);
+        fetch.maxSize(new ByteSizeValue(1000));
+        try {
+            fetchService.getTerms(fetch);
+            throw new AssertionError("fetch should have failed");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("max size"));
+        }
+        assertThat(fetchService.breaker().used(), equalTo(0L));
+        // over the 1mb limit of the node
+        try {
+            fetchService.getTerms(new BuildingFetch(fetchService, 1000000));
+            throw new AssertionError("fetch should have failed");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("over the limit"));
+        }
+        assertThat(fetchService.breaker().used(), equalTo(0L));
+    }
+
+    /**
+     * Lookup of the given number of terms, added to a builder of the lookup as a source would
+     */
+    static class BuildingFetch extends XTermsFetch {
+
+        private final int count;
+
+        BuildingFetch(XTermsFetchService fetchService, int count) {
+            super("building", null, fetchService, null, null);
+            this.count = count;
+        }
+
+        @Override
+        protected String sourceKey() {
+            return "building:" + count;
+        }
+
+        @Override
+        protected XFetchedTerms fetchTerms() {
+            XTermsSet.Builder terms = newTermsBuilder();
+            for (int i = 0; i < count; i++) {
+                terms.add("term" + i);
+            }
+            return new XFetchedTerms(terms.build(), null);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class XTermsFetchServiceTests {
+
+    private XTermsFetchService fetchService;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        fetchService = new XTermsFetchService(ImmutableSettings.EMPTY);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        fetchService.close();
+    }
+
+    @Test
+    public void testConcurrentFetchesAreCoalesced() throws Exception {
+        final CountingFetch fetch = new CountingFetch("lookup");
+        fetch.block();
+        List<Future<XFetchedTerms>> results = new ArrayList<Future<XFetchedTerms>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<XFetchedTerms>() {
+                @Override
+                public XFetchedTerms call() throws Exception {
+                    return fetchService.getTerms(new CountingFetch("lookup", fetch));
+                }
+            }));
+        }
+        fetch.awaitFetching();
+        // let the others pile up on the inflight task before it completes
+        Thread.sleep(100);
+        fetch.unblock();
+        XFetchedTerms terms = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<XFetchedTerms> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS), sameInstance(terms));
+        }
+        assertThat(fetch.fetches.get(), equalTo(1));
+    }
+
+    @Test
+    public void testFetchedTermsAreCached() {
+        CountingFetch fetch = new CountingFetch("lookup");
+        XFetchedTerms terms = fetchService.getTerms(fetch);
+        assertThat(fetchService.getTerms(new CountingFetch("lookup", fetch)), sameInstance(terms));
+        assertThat(fetch.fetches.get(), equalTo(1));
+        fetchService.getTerms(new CountingFetch("other", fetch));
+        assertThat(fetch.fetches.get(), equalTo(2));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        fetchService.close();
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.source.failure_cache.expire", 0)
+                .build());
+        CountingFetch fetch = new CountingFetch("lookup");
+        fetch.fail = true;
+        try {
+            fetchService.getTerms(fetch);
+            throw new AssertionError("fetch should have failed");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("source down"));
+        }
+        fetch.fail = false;
+        assertThat(fetchService.getTerms(new CountingFetch("lookup", fetch)).terms().toList(),
+                equalTo(Arrays.<Object>asList(1L, 2L)));
+        assertThat(fetch.fetches.get(), equalTo(2));
+    }
+
+    @Test
+    public void testFailuresAreRememberedBriefly() throws Exception {
+        fetchService.close();
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.source.failure_cache.expire", "100ms")
+                .build());
+        CountingFetch fetch = new CountingFetch("lookup");
+        fetch.fail = true;
+        for (int i = 0; i < 3; i++) {
+            try {
+                fetchService.getTerms(new CountingFetch("lookup", fetch));
+                throw new AssertionError("fetch should have failed");
+            } catch (RuntimeException e) {
+                assertThat(e.getMessage(), containsString("source down"));
+            }
+        }
+        assertThat(fetch.fetches.get(), equalTo(1));
+        Thread.sleep(200);
+        fetch.fail = false;
+        fetchService.getTerms(new CountingFetch("lookup", fetch));
+        assertThat(fetch.fetches.get(), equalTo(2));
+    }
+
+    @Test
+    public void testRejectionsAreNotRemembered() throws Exception {
+        fetchService.close();
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.source.max_concurrent", 1)
+                .put("xterms.source.max_wait", "10ms")
+                .build());
+        final CountingFetch fetch = new CountingFetch("lookup");
+        fetch.block();
+        Future<XFetchedTerms> blocked = executor.submit(new Callable<XFetchedTerms>() {
+            @Override
+            public XFetchedTerms call() throws Exception {
+                return fetchService.getTerms(fetch);
+            }
+        });
+        fetch.awaitFetching();
+        // another lookup of the same source
+        CountingFetch other = new CountingFetch("lookup", fetch) {
+            @Override
+            protected String sourceKey() {
+                return "other";
+            }
+        };
+        try {
+            fetchService.getTerms(other);
+            throw new AssertionError("fetch should have been rejected");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), not(containsString("source down")));
+        }
+        fetch.unblock();
+        blocked.get(10, TimeUnit.SECONDS);
+        assertThat(fetchService.getTerms(other).terms().toList(), equalTo(Arrays.<Object>asList(1L, 2L)));
+        assertThat(fetch.fetches.get(), equalTo(2));
+    }
+
+    @Test
+    public void testErrorsGiveBackTheirPermit() {
+        fetchService.close();
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.source.max_concurrent", 1)
+                .put("xterms.source.max_wait", "10ms")
+                .build());
+        CountingFetch fetch = new CountingFetch("lookup") {
+            @Override
+            protected XFetchedTerms fetchTerms() {
+                throw new AssertionError("out of stack");
+            }
+        };
+        try {
+            fetchService.getTerms(fetch);
+            throw new AssertionError("fetch should have failed");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause().getMessage(), equalTo("out of stack"));
+        }
+        assertThat(fetchService.getTerms(new CountingFetch("lookup")).terms().toList(),
+                equalTo(Arrays.<Object>asList(1L, 2L)));
+    }
+
+    @Test
+    public void testTermsTooLargeAreNotSourceFailures() {
+        fetchService.close();
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.source.max_concurrent", 1)
+                .put("xterms.source.max_wait", "10ms")
+                .put("xterms.source.breaker.failures", 1)
+                .build());
+        CountingFetch fetch = new CountingFetch("lookup") {
+            @Override
+            protected XFetchedTerms fetchTerms() {
+                fetches.incrementAndGet();
+                // as wrapped by sources
+                throw new RuntimeException(new XTermsTooLargeException("over the max size"));
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                fetchService.getTerms(fetch);
+                throw new AssertionError("fetch should have failed");
+            } catch (RuntimeException e) {
+                assertThat(e.getCause(), instanceOf(XTermsTooLargeException.class));
+            }
+        }
+        // neither remembered nor opening the circuit, and the permit is given back
+        assertThat(fetch.fetches.get(), equalTo(2));
+        assertThat(fetchService.guard(fetch.url).isOpen(), equalTo(false));
+        assertThat(fetchService.getTerms(new CountingFetch("lookup")).terms().toList(),
+                equalTo(Arrays.<Object>asList(1L, 2L)));
+    }
+
+    @Test
+    public void testLastTermsAreServedOnFailureIfAsked() throws Exception {
+        CountingFetch fetch = new CountingFetch("lookup");
+        fetch.refreshInterval(TimeValue.timeValueMillis(10)).maxStale(TimeValue.timeValueMillis(10)).serveStale(true);
+        XFetchedTerms terms = fetchService.getTerms(fetch);
+        Thread.sleep(50);
+        fetch.fail = true;
+        assertThat(fetchService.getTerms(fetch), sameInstance(terms));
+        assertThat(fetch.fetches.get(), equalTo(2));
+    }
+
+    @Test
+    public void testStaleTermsAreServedWhileRefreshedAhead() throws Exception {
+        CountingFetch fetch = new CountingFetch("lookup");
+        fetch.refreshInterval(TimeValue.timeValueMillis(50));
+        XFetchedTerms terms = fetchService.getTerms(fetch);
+        Thread.sleep(100);
+        fetch.block();
+        // served right away, the refresh waits in the background
+        assertThat(fetchService.getTerms(fetch), sameInstance(terms));
+        fetch.awaitFetching();
+        assertThat(fetch.fetches.get(), equalTo(2));
+        fetch.unblock();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (fetchService.getCachedTerms(fetch) == terms && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(fetchService.getCachedTerms(fetch), not(sameInstance(terms)));
+    }
+
+    @Test
+    public void testTermsOlderThanMaxStaleAreFetchedAgain() throws Exception {
+        CountingFetch fetch = new CountingFetch("lookup");
+        fetch.refreshInterval(TimeValue.timeValueMillis(10)).maxStale(TimeValue.timeValueMillis(50));
+        XFetchedTerms terms = fetchService.getTerms(fetch);
+        Thread.sleep(100);
+        assertThat(fetchService.getTerms(fetch), not(sameInstance(terms)));
+        assertThat(fetch.fetches.get(), equalTo(2));
+    }
+
+    /**
+     * Lookup counting the fetches of every lookup sharing its counter, optionally blocking them until released
+     */
+    static class CountingFetch extends XTermsFetch {
+
+        final AtomicInteger fetches;
+
+        private volatile CountDownLatch fetching = new CountDownLatch(1);
+
+        private volatile CountDownLatch release = new CountDownLatch(0);
+
+        volatile boolean fail;
+
+        private final CountingFetch shared;
+
+        CountingFetch(String url) {
+            super(url, null, null, null, null);
+            this.fetches = new AtomicInteger();
+            this.shared = this;
+        }
+
+        CountingFetch(String url, CountingFetch shared) {
+            super(url, null, null, null, null);
+            this.fetches = shared.fetches;
+            this.shared = shared;
+        }
+
+        void block() {
+            fetching = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        void unblock() {
+            release.countDown();
+        }
+
+        void awaitFetching() throws InterruptedException {
+            assertThat(fetching.await(10, TimeUnit.SECONDS), equalTo(true));
+        }
+
+        @Override
+        protected String sourceKey() {
+            return "counting:" + url;
+        }
+
+        @Override
+        protected XFetchedTerms fetchTerms() {
+            fetches.incrementAndGet();
+            shared.fetching.countDown();
+            try {
+                shared.release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (shared.fail) {
+                throw new IllegalStateException("source down");
+            }
+            XTermsSet.Builder terms = new XLongTermsSet.Builder();
+            terms.add(2L);
+            terms.add(1L);
+            return new XFetchedTerms(terms.build(), null);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class XTermsPayloadTests {
+
+    @Test
+    public void testTermsRoundTrip() throws IOException {
+        XBytesTermsSet.Builder builder = new XBytesTermsSet.Builder();
+        builder.add("");
+        builder.add("caf\u00e9");
+        char[] big = new char[5000];
+        Arrays.fill(big, 'x');
+        builder.add(new String(big));
+        XBytesTermsSet terms = builder.build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XTermsPayload.writeTerms(terms, out);
+        XBytesTermsSet.Builder read = new XBytesTermsSet.Builder();
+        XTermsPayload.readTerms(new ByteArrayInputStream(out.toByteArray()), read);
+        assertThat(read.build().toList(), equalTo(terms.toList()));
+    }
+
+    @Test
+    public void testLengthsOverAnIntAreRejected() {
+        // 2^35, would be cast to 0
+        assertFails(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}, null,
+                "Invalid term length");
+    }
+
+    @Test
+    public void testMalformedLengthsAreRejected() {
+        byte[] payload = new byte[12];
+        Arrays.fill(payload, (byte) 0xFF);
+        assertFails(payload, null, "Malformed");
+    }
+
+    @Test
+    public void testLengthsOverTheMaxSizeAreRejectedBeforeReading() {
+        // announces 1GB but holds a single byte
+        assertFails(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x04, 'x'},
+                new XBytesTermsSet.Builder().limit(null, 1024 * 1024, "payload"), "over the max size");
+    }
+
+    @Test
+    public void testTruncatedTermsFailWithoutAllocatingTheirLength() {
+        // announces 1GB without limits, the bytes actually there are read
+        try {
+            XTermsPayload.readTerms(new ByteArrayInputStream(
+                    new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x04, 'x'}), new XBytesTermsSet.Builder());
+            throw new AssertionError("payload should have been rejected");
+        } catch (EOFException e) {
+            assertThat(e.getMessage(), containsString("got [1]"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void assertFails(byte[] payload, XTermsSet.Builder builder, String message) {
+        try {
+            XTermsPayload.readTerms(new ByteArrayInputStream(payload), builder != null ? builder : new XBytesTermsSet.Builder());
+            throw new AssertionError("payload should have been rejected");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString(message));
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString(message));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.elasticsearch.index.query.fetch;
+
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+public class XTermsSetTests {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testBuildLongs() {
+        TreeSet<Long> expected = randomLongs(1000, 500);
+        XTermsSet.Builder builder = new XLongTermsSet.Builder();
+        for (Long value : expected.descendingSet()) {
+            builder.add(value);
+            builder.add(value.toString());
+        }
+        assertThat(builder.build().toList(), equalTo((List<Object>) new ArrayList<Object>(expected)));
+    }
+
+    @Test
+    public void testBuildBytes() {
+        TreeSet<String> expected = randomStrings(1000, 500);
+        XTermsSet.Builder builder = new XBytesTermsSet.Builder();
+        for (String value : expected.descendingSet()) {
+            builder.add(value);
+            builder.add(value);
+        }
+        assertThat(builder.build().toList(), equalTo((List<Object>) new ArrayList<Object>(expected)));
+    }
+
+    @Test
+    public void testNullTermsAreIgnored() {
+        XTermsSet.Builder builder = new XBytesTermsSet.Builder();
+        builder.add((Object) null);
+        builder.add("");
+        assertThat(builder.build().size(), equalTo(1));
+        builder = new XLongTermsSet.Builder();
+        builder.add((Object) null);
+        assertThat(builder.build().size(), equalTo(0));
+    }
+
+    @Test
+    public void testEncodeDecodeLongs() throws IOException {
+        TreeSet<Long> values = randomLongs(1000, 1000000000000L);
+        values.add(-1L);
+        values.add(0L);
+        XTermsSet terms = longs(values);
+        XTermsSet decoded = XTermsSet.decode(terms.encode(), new XLongTermsSet.Builder());
+        assertThat(decoded, instanceOf(XLongTermsSet.class));
+        assertThat(decoded.toList(), equalTo(terms.toList()));
+    }
+
+    @Test
+    public void testEncodeDecodeExtremeLongs() throws IOException {
+        // deltas over Long.MAX_VALUE and the zig-zag encoding of the extremes take 10 bytes
+        for (List<Long> values : Arrays.asList(
+                Arrays.asList(Long.MIN_VALUE, Long.MIN_VALUE + 1, 0L, Long.MAX_VALUE - 1, Long.MAX_VALUE),
+                Arrays.asList(Long.MIN_VALUE, Long.MAX_VALUE),
+                Arrays.asList(Long.MAX_VALUE),
+                Arrays.asList(Long.MIN_VALUE))) {
+            XTermsSet terms = longs(values);
+            XTermsSet decoded = XTermsSet.decode(terms.encode(), new XLongTermsSet.Builder());
+            assertThat(decoded.toList(), equalTo(terms.toList()));
+        }
+    }
+
+    @Test
+    public void testEncodeDecodeBytes() throws IOException {
+        TreeSet<String> values = randomStrings(1000, 100000);
+        values.add("");
+        values.add("caf\u00e9");
+        XTermsSet terms = strings(values);
+        XTermsSet decoded = XTermsSet.decode(terms.encode(), new XBytesTermsSet.Builder());
+        assertThat(decoded, instanceOf(XBytesTermsSet.class));
+        assertThat(decoded.toList(), equalTo(terms.toList()));
+    }
+
+    @Test
+    public void testDecodeChecksTheBlockOfBytes() throws IOException {
+        assertThat(XTermsSet.decode(bytesPayload(2, 0, 1, 'a', 1, 1, 'b'), new XBytesTermsSet.Builder()).toList(),
+                equalTo(Arrays.<Object>asList("a", "ab")));
+        // prefix longer than the previous term
+        assertCorrupted(bytesPayload(2, 0, 1, 'b', 5, 1, 'c'), "out of the bounds");
+        // suffix past the end of the block
+        assertCorrupted(bytesPayload(1, 0, 9, 'a'), "out of the bounds");
+        // not ascending, or duplicated
+        assertCorrupted(bytesPayload(2, 0, 1, 'b', 0, 1, 'a'), "not greater");
+        assertCorrupted(bytesPayload(2, 0, 1, 'a', 1, 0), "not greater");
+        // more terms than announced
+        assertCorrupted(bytesPayload(0, 0, 1, 'a'), "announces [0] terms");
+        // length over an int
+        assertCorrupted(bytesPayload(1, 0xFF, 0xFF, 0xFF, 0xFF, 0x7F), "malformed");
+    }
+
+    @Test
+    public void testDecodeChecksTheOrderOfLongs() throws IOException {
+        // the second value is a duplicate, or wraps around below the first one
+        assertCorrupted(longsPayload(2, 5, 0), "not greater");
+        assertCorrupted(longsPayload(2, 0, -1), "not greater");
+        assertCorrupted(longsPayload(2, Long.MAX_VALUE, 1), "not greater");
+    }
+
+    @Test
+    public void testEncodeDecodeEmpty() throws IOException {
+        XTermsSet decoded = XTermsSet.decode(new XLongTermsSet.Builder().build().encode(), new XLongTermsSet.Builder());
+        assertThat(decoded.size(), equalTo(0));
+        decoded = XTermsSet.decode(new XBytesTermsSet.Builder().build().encode(), new XBytesTermsSet.Builder());
+        assertThat(decoded.size(), equalTo(0));
+    }
+
+    @Test
+    public void testDecodeOverMaxSize() throws IOException {
+        XTermsSet terms = longs(randomLongs(1000, 1000000000000L));
+        String payload = terms.encode();
+        XTermsSet.decode(payload, new XLongTermsSet.Builder().limit(null, 8 * terms.size(), "payload"));
+        try {
+            XTermsSet.decode(payload, new XLongTermsSet.Builder().limit(null, 8 * (terms.size() - 1), "payload"));
+            throw new AssertionError("payload should be over the max size");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage(), containsString("over the max size"));
+        }
+    }
+
+    @Test
+    public void testPatchLongs() {
+        for (int round = 0; round < 20; round++) {
+            TreeSet<Long> base = randomLongs(random.nextInt(500), 1000);
+            TreeSet<Long> added = randomLongs(random.nextInt(100), 1000);
+            TreeSet<Long> removed = randomLongs(random.nextInt(100), 1000);
+            // terms both added and removed are kept
+            TreeSet<Long> expected = new TreeSet<Long>(base);
+            expected.removeAll(removed);
+            expected.addAll(added);
+            XTermsSet patched = longs(base).patch(longs(added), longs(removed));
+            assertThat(patched.toList(), equalTo((List<Object>) new ArrayList<Object>(expected)));
+        }
+    }
+
+    @Test
+    public void testPatchBytes() {
+        for (int round = 0; round < 20; round++) {
+            TreeSet<String> base = randomStrings(random.nextInt(500), 1000);
+            TreeSet<String> added = randomStrings(random.nextInt(100), 1000);
+            TreeSet<String> removed = randomStrings(random.nextInt(100), 1000);
+            TreeSet<String> expected = new TreeSet<String>(base);
+            expected.removeAll(removed);
+            expected.addAll(added);
+            XTermsSet patched = strings(base).patch(strings(added), strings(removed));
+            assertThat(patched.toList(), equalTo((List<Object>) new ArrayList<Object>(expected)));
+        }
+    }
+
+    @Test
+    public void testIntersectLongs() {
+        for (int round = 0; round < 20; round++) {
+            TreeSet<Long> left = randomLongs(random.nextInt(500), 1000);
+            TreeSet<Long> right = randomLongs(random.nextInt(500), 1000);
+            TreeSet<Long> expected = new TreeSet<Long>(left);
+            expected.retainAll(right);
+            XTermsSet intersection = longs(left).intersect(longs(right));
+            assertThat(intersection.toList(), equalTo((List<Object>) new ArrayList<Object>(expected)));
+        }
+    }
+
+    @Test
+    public void testIntersectBytes() {
+        for (int round = 0; round < 20; round++) {
+            TreeSet<String> left = randomStrings(random.nextInt(500), 1000);
+            TreeSet<String> right = randomStrings(random.nextInt(500), 1000);
+            TreeSet<String> expected = new TreeSet<String>(left);
+            expected.retainAll(right);
+            XTermsSet intersection = strings(left).intersect(strings(right));
+            assertThat(intersection.toList(), equalTo((List<Object>) new ArrayList<Object>(expected)));
+        }
+    }
+
+    private static String bytesPayload(int size, int... block) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.writeByte((byte) 1);
+        out.writeVInt(size);
+        out.writeVInt(block.length);
+        for (int b : block) {
+            out.writeByte((byte) b);
+        }
+        return Base64.encodeBytes(out.bytes().toBytes());
+    }
+
+    private static String longsPayload(int size, long first, long... deltas) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.writeByte((byte) 0);
+        out.writeVInt(size);
+        out.writeVLong((first << 1) ^ (first >> 63));
+        for (long delta : deltas) {
+            out.writeVLong(delta);
+        }
+        return Base64.encodeBytes(out.bytes().toBytes());
+    }
+
+    private static void assertCorrupted(String payload, String message) {
+        try {
+            XTermsSet.decode(payload, new XBytesTermsSet.Builder());
+            throw new AssertionError("payload should have been rejected");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString(message));
+        }
+    }
+
+    private TreeSet<Long> randomLongs(int count, long bound) {
+        TreeSet<Long> values = new TreeSet<Long>();
+        for (int i = 0; i < count; i++) {
+            values.add((long) (random.nextDouble() * bound) * (random.nextBoolean() ? 1 : -1));
+        }
+        return values;
+    }
+
+    private TreeSet<String> randomStrings(int count, int bound) {
+        TreeSet<String> values = new TreeSet<String>();
+        for (int i = 0; i < count; i++) {
+            // ascii only, so the order of strings is the order of their bytes
+            values.add("term" + random.nextInt(bound));
+        }
+        return values;
+    }
+
+    static XTermsSet longs(Iterable<Long> values) {
+        XTermsSet.Builder builder = new XLongTermsSet.Builder();
+        for (Long value : values) {
+            builder.add(value.longValue());
+        }
+        return builder.build();
+    }
+
+    static XTermsSet strings(Iterable<String> values) {
+        XTermsSet.Builder builder = new XBytesTermsSet.Builder();
+        for (String value : values) {
+            builder.add(value);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,176 @@
+package org.elasticsearch.rest.action.xterms;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.mapper.core.StringFieldMapper;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+import org.elasticsearch.index.query.fetch.XLongTermsSet;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.elasticsearch.index.query.fetch.XTermsLookup;
+import org.elasticsearch.index.query.fetch.XTermsSet;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.nullValue;
+
+public class RestXTermsSearchActionTests {
+
+    private static final String MAPPING = "{\"doc\": {\"properties\": {"
+            + "\"user\": {\"properties\": {\"id\": {\"type\": \"long\"}}},"
+            + "\"name\": {\"type\": \"string\"},"
+            + "\"code\": {\"type\": \"integer\"}}}}";
+
+    private static final String OTHER_MAPPING = "{\"doc\": {\"properties\": {"
+            + "\"code\": {\"type\": \"string\"}}}}";
+
+    private static final Long[] VALUES = {Long.MIN_VALUE, Long.MIN_VALUE + 1, -1L, 0L, 1L, Long.MAX_VALUE - 1,
+            Long.MAX_VALUE};
+
+    private final Mapper.BuilderContext builderContext = new Mapper.BuilderContext(ImmutableSettings.EMPTY, new ContentPath());
+
+    private HttpServer server;
+
+    private XTermsFetchService fetchService;
+
+    private ThreadPool threadPool;
+
+    private RestXTermsSearchAction action;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/terms", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write(Arrays.toString(VALUES).getBytes(Charset.forName("UTF-8")));
+                out.close();
+            }
+        });
+        server.start();
+        fetchService = new XTermsFetchService(ImmutableSettings.EMPTY);
+        threadPool = new ThreadPool();
+        ClusterState state = ClusterState.builder().metaData(MetaData.builder()
+                .put(IndexMetaData.builder("test").numberOfShards(1).numberOfReplicas(0).putMapping("doc", MAPPING))
+                .put(IndexMetaData.builder("other").numberOfShards(1).numberOfReplicas(0).putMapping("doc", OTHER_MAPPING)))
+                .build();
+        action = new RestXTermsSearchAction(ImmutableSettings.EMPTY, null, new RestController(ImmutableSettings.EMPTY),
+                fetchService, threadPool, clusterService(state));
+    }
+
+    @After
+    public void tearDown() {
+        fetchService.close();
+        threadPool.shutdownNow();
+        server.stop(0);
+    }
+
+    @Test
+    public void testFieldsMappedAsIntegralNumbersAreLongs() throws IOException {
+        String[] test = {"test"};
+        assertThat(action.numericFieldMapper("user.id", test, new String[0]), instanceOf(LongFieldMapper.class));
+        assertThat(action.numericFieldMapper("code", test, new String[]{"doc"}), instanceOf(LongFieldMapper.class));
+        assertThat(action.numericFieldMapper("name", test, new String[0]), nullValue());
+        assertThat(action.numericFieldMapper("missing", test, new String[0]), nullValue());
+        assertThat(action.numericFieldMapper("user.id", test, new String[]{"other_type"}), nullValue());
+        // a string in one of the indices
+        assertThat(action.numericFieldMapper("code", new String[0], new String[0]), nullValue());
+        assertThat(action.numericFieldMapper("code", new String[]{"test", "other"}, new String[0]), nullValue());
+    }
+
+    @Test
+    public void testNumericTermsRoundTripAsLongs() throws IOException {
+        XTermsSet terms = resolveAndParse("user.id", XLongTermsSet.class,
+                new LongFieldMapper.Builder("user.id").build(builderContext));
+        assertThat(terms, instanceOf(XLongTermsSet.class));
+        assertThat(terms.toList(), equalTo(Arrays.<Object>asList((Object[]) VALUES)));
+    }
+
+    @Test
+    public void testStringTermsRoundTripAsBytes() throws IOException {
+        XTermsSet terms = resolveAndParse("name", XBytesTermsSet.class,
+                new StringFieldMapper.Builder("name").build(builderContext));
+        assertThat(terms, instanceOf(XBytesTermsSet.class));
+        XBytesTermsSet.Builder expected = new XBytesTermsSet.Builder();
+        for (Long value : VALUES) {
+            expected.add(value);
+        }
+        assertThat(terms.toList(), equalTo(expected.build().toList()));
+    }
+
+    /**
+     * Resolves the lookup of a search on the field as the coordinating node does, then parses the resolved lookup as
+     * shards do
+     *
+     * @param shipped type of the set the terms are shipped as
+     */
+    @SuppressWarnings("unchecked")
+    private XTermsSet resolveAndParse(String field, Class<? extends XTermsSet> shipped, FieldMapper shardMapper)
+            throws IOException {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/terms";
+        String json = XContentFactory.jsonBuilder().startObject()
+                .startObject("query").startObject("filtered").startObject("filter").startObject("xterms")
+                .startObject(field).field("url", url).endObject()
+                .endObject().endObject().endObject().endObject()
+                .endObject().string();
+        Map<String, Object> source = JsonXContent.jsonXContent.createParser(json).mapAndClose();
+        action.resolveLookups(source, new String[]{"test"}, new String[0]);
+
+        Map<String, Object> lookup = source;
+        for (String key : new String[]{"query", "filtered", "filter", "xterms", field}) {
+            lookup = (Map<String, Object>) lookup.get(key);
+        }
+        assertThat(lookup.keySet(), equalTo(Collections.singleton("payload")));
+        assertThat(XTermsSet.decode((String) lookup.get("payload"), new XBytesTermsSet.Builder()), instanceOf(shipped));
+        XContentParser parser = JsonXContent.jsonXContent.createParser(XContentFactory.jsonBuilder().map(lookup).bytes());
+        parser.nextToken();
+        return XTermsLookup.parse(parser).createFetch(null, fetchService, shardMapper, null).getTerms();
+    }
+
+    /**
+     * Cluster service only knowing the given state
+     */
+    private static ClusterService clusterService(final ClusterState state) {
+        return (ClusterService) Proxy.newProxyInstance(ClusterService.class.getClassLoader(),
+                new Class[]{ClusterService.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("state")) {
+                            return state;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
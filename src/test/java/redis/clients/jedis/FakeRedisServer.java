@@ -0,0 +1,281 @@
+package redis.clients.jedis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In process stand-in for redis, speaking just enough of the protocol for the commands the plugin sends:
+ * <tt>SMEMBERS</tt>, <tt>SSCAN</tt>, <tt>ZSCAN</tt> and <tt>HSCAN</tt> (with <tt>COUNT</tt>), plus <tt>PING</tt> and
+ * <tt>SELECT</tt> for the client. Sorted sets and hashes are held as members interleaved with scores and fields
+ * interleaved with values, the way scans reply them.
+ * <p/>
+ * Connections can <tt>SUBSCRIBE</tt> and <tt>UNSUBSCRIBE</tt> to channels, messages being sent to them with {@link #publish(String, String)}.
+ */
+public class FakeRedisServer implements Runnable {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, List<String>> sets = new ConcurrentHashMap<String, List<String>>();
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    private final ServerSocket serverSocket;
+
+    private final Thread thread;
+
+    final AtomicInteger connections = new AtomicInteger();
+
+    final AtomicInteger scans = new AtomicInteger();
+
+    public FakeRedisServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.thread = new Thread(this, "fake-redis");
+        this.thread.setDaemon(true);
+    }
+
+    public FakeRedisServer addSet(String key, String... members) {
+        sets.put(key, Arrays.asList(members));
+        return this;
+    }
+
+    public FakeRedisServer addInterleaved(String key, String... elements) {
+        sets.put(key, Arrays.asList(elements));
+        return this;
+    }
+
+    public FakeRedisServer start() {
+        thread.start();
+        return this;
+    }
+
+    public String url() {
+        return "redis://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        dropSubscribers();
+    }
+
+    /**
+     * Sends a message to the connections subscribed to the channel
+     *
+     * @return the number of connections the message was sent to
+     */
+    public int publish(String channel, String message) throws IOException {
+        int receivers = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.channels.contains(channel)) {
+                synchronized (subscriber.out) {
+                    writeArray(subscriber.out, Arrays.asList("message", channel, message), 0, 3);
+                    subscriber.out.flush();
+                }
+                receivers++;
+            }
+        }
+        return receivers;
+    }
+
+    /**
+     * Returns true if a connection is subscribed to the channel
+     */
+    public boolean isSubscribed(String channel) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.channels.contains(channel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the connections of all subscribers, as if they were lost
+     */
+    public void dropSubscribers() throws IOException {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.socket.close();
+        }
+        subscribers.clear();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread connection = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "fake-redis-connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Subscriber subscriber = null;
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            subscriber = new Subscriber(socket, out);
+            List<String> command;
+            while ((command = readCommand(in)) != null) {
+                synchronized (out) {
+                    reply(command, subscriber);
+                    if (in.available() == 0) {
+                        // pipelined commands are answered together
+                        out.flush();
+                    }
+                }
+            }
+            socket.close();
+        } catch (IOException e) {
+            // connection dropped
+        } finally {
+            if (subscriber != null) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    private void reply(List<String> command, Subscriber subscriber) throws IOException {
+        OutputStream out = subscriber.out;
+        String name = command.get(0).toLowerCase();
+        if ("subscribe".equals(name)) {
+            for (String channel : command.subList(1, command.size())) {
+                subscriber.channels.add(channel);
+                out.write("*3\r\n".getBytes(UTF8));
+                writeBulk(out, "subscribe");
+                writeBulk(out, channel);
+                out.write((":" + subscriber.channels.size() + "\r\n").getBytes(UTF8));
+            }
+            if (!subscribers.contains(subscriber)) {
+                subscribers.add(subscriber);
+            }
+        } else if ("unsubscribe".equals(name)) {
+            for (String channel : command.subList(1, command.size())) {
+                subscriber.channels.remove(channel);
+                out.write("*3\r\n".getBytes(UTF8));
+                writeBulk(out, "unsubscribe");
+                writeBulk(out, channel);
+                out.write((":" + subscriber.channels.size() + "\r\n").getBytes(UTF8));
+            }
+        } else if ("ping".equals(name)) {
+            out.write("+PONG\r\n".getBytes(UTF8));
+        } else if ("select".equals(name)) {
+            out.write("+OK\r\n".getBytes(UTF8));
+        } else if ("smembers".equals(name)) {
+            List<String> set = set(command.get(1));
+            writeArray(out, set, 0, set.size());
+        } else if (name.endsWith("scan")) {
+            scans.incrementAndGet();
+            List<String> elements = set(command.get(1));
+            int step = "sscan".equals(name) ? 1 : 2;
+            int cursor = Integer.parseInt(command.get(2));
+            int count = 10;
+            for (int i = 3; i < command.size() - 1; i++) {
+                if ("count".equalsIgnoreCase(command.get(i))) {
+                    count = Integer.parseInt(command.get(i + 1));
+                }
+            }
+            int end = Math.min(elements.size(), cursor + count * step);
+            out.write("*2\r\n".getBytes(UTF8));
+            writeBulk(out, Integer.toString(end == elements.size() ? 0 : end));
+            writeArray(out, elements, cursor, end);
+        } else {
+            out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(UTF8));
+        }
+    }
+
+    private List<String> set(String key) {
+        List<String> set = sets.get(key);
+        return set != null ? set : new ArrayList<String>();
+    }
+
+    static void writeArray(OutputStream out, List<String> elements, int from, int to) throws IOException {
+        out.write(("*" + (to - from) + "\r\n").getBytes(UTF8));
+        for (int i = from; i < to; i++) {
+            writeBulk(out, elements.get(i));
+        }
+    }
+
+    static void writeBulk(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.write(("$" + bytes.length + "\r\n").getBytes(UTF8));
+        out.write(bytes);
+        out.write("\r\n".getBytes(UTF8));
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        int size = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            readLine(in);
+            command.add(new String(bytes, UTF8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') {
+                in.read(); // \n
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+
+    static class Subscriber {
+
+        final Socket socket;
+
+        final OutputStream out;
+
+        final Set<String> channels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Subscriber(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package redis.clients.jedis;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.query.fetch.XBytesTermsSet;
+import org.elasticsearch.index.query.fetch.XTermsSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class JedisAdaptorTests {
+
+    private FakeRedisServer server;
+
+    private JedisAdaptor adaptor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeRedisServer()
+                .addSet("users", "1", "2", "3")
+                .addSet("admins", "3", "4")
+                .addSet("visitors", visitors())
+                .addInterleaved("scores", "1", "0.5", "5", "1.5")
+                .addInterleaved("names", "6", "john", "7", "jane")
+                .start();
+        adaptor = new JedisAdaptor(ImmutableSettings.settingsBuilder().put("xterms.redis.pool.size", 1).build());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        adaptor.close();
+        server.close();
+    }
+
+    @Test
+    public void testPipelinedCommandsAddTheUnionOfTheirReplies() {
+        List<Object> terms = execute(server.url(), Arrays.asList("smembers", "smembers"),
+                Arrays.asList(new String[]{"users"}, new String[]{"admins"}), 10);
+        assertThat(terms, equalTo(Arrays.<Object>asList("1", "2", "3", "4")));
+    }
+
+    @Test
+    public void testConnectionsAreReturnedToThePool() {
+        for (int i = 0; i < 5; i++) {
+            assertThat(execute(server.url(), Collections.singletonList("smembers"),
+                    Collections.singletonList(new String[]{"users"}), 10).size(), equalTo(3));
+        }
+        assertThat(server.connections.get(), equalTo(1));
+    }
+
+    @Test
+    public void testScanWalksTheCursorInBatches() {
+        List<Object> terms = execute(server.url(), Collections.singletonList("sscan"),
+                Collections.singletonList(new String[]{"visitors"}), 10);
+        assertThat(terms, equalTo(Arrays.<Object>asList((Object[]) visitors())));
+        assertThat(server.scans.get(), equalTo(3));
+    }
+
+    @Test
+    public void testScansAreMergedWithTheOtherReplies() {
+        List<Object> terms = execute(server.url(), Arrays.asList("zscan", "smembers", "hscan"),
+                Arrays.asList(new String[]{"scores"}, new String[]{"users"}, new String[]{"names", "MATCH", "*"}), 1);
+        // members of the sorted set and fields of the hash, each of them once
+        assertThat(terms, equalTo(Arrays.<Object>asList("1", "2", "3", "5", "6", "7")));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnsupportedCommand() {
+        execute(server.url(), Collections.singletonList("flushall"), Collections.singletonList(new String[0]), 10);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testClosedAdaptorDoesNotOpenPools() {
+        adaptor.close();
+        execute(server.url(), Collections.singletonList("smembers"),
+                Collections.singletonList(new String[]{"users"}), 10);
+    }
+
+    private List<Object> execute(String url, List<String> commands, List<String[]> args, int scanCount) {
+        XTermsSet.Builder terms = new XBytesTermsSet.Builder();
+        adaptor.execute(url, commands, args, scanCount, terms);
+        return terms.build().toList();
+    }
+
+    private static String[] visitors() {
+        String[] visitors = new String[25];
+        for (int i = 0; i < visitors.length; i++) {
+            visitors[i] = Integer.toString(100 + i);
+        }
+        return visitors;
+    }
+}
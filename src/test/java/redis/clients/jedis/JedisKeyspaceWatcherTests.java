@@ -0,0 +1,147 @@
+package redis.clients.jedis;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.query.fetch.XFetchedTerms;
+import org.elasticsearch.index.query.fetch.XRedisTermsFetch;
+import org.elasticsearch.index.query.fetch.XTermsFetchService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class JedisKeyspaceWatcherTests {
+
+    private FakeRedisServer server;
+
+    private XTermsFetchService fetchService;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeRedisServer()
+                .addSet("users", "1", "2")
+                .addSet("admins", "3")
+                .start();
+        fetchService = new XTermsFetchService(ImmutableSettings.settingsBuilder()
+                .put("xterms.redis.watch.retry_interval", "10ms")
+                .build());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fetchService.close();
+        server.close();
+    }
+
+    @Test
+    public void testChangedKeysInvalidateTheirLookups() throws Exception {
+        XRedisTermsFetch fetch = fetch("users");
+        XFetchedTerms terms = fetchService.getTerms(fetch);
+        awaitSubscribed("users");
+        assertThat(fetchService.getCachedTerms(fetch), sameInstance(terms));
+        // notifications of other keys don't matter
+        server.publish("__keyspace@0__:others", "sadd");
+        assertThat(fetchService.getCachedTerms(fetch), sameInstance(terms));
+
+        server.addSet("users", "1", "2", "5");
+        assertThat(server.publish("__keyspace@0__:users", "sadd"), equalTo(1));
+        awaitInvalidated(fetch);
+        assertThat(fetchService.getTerms(fetch).terms().toList(), equalTo(Arrays.<Object>asList("1", "2", "5")));
+    }
+
+    @Test
+    public void testKeysWatchedLaterAreSubscribedToo() throws Exception {
+        XRedisTermsFetch users = fetch("users");
+        XFetchedTerms usersTerms = fetchService.getTerms(users);
+        awaitSubscribed("users");
+        XRedisTermsFetch admins = fetch("admins");
+        XFetchedTerms terms = fetchService.getTerms(admins);
+        awaitSubscribed("admins");
+
+        server.publish("__keyspace@0__:admins", "del");
+        awaitInvalidated(admins);
+        assertThat(fetchService.getCachedTerms(users), sameInstance(usersTerms));
+        assertThat(fetchService.getTerms(admins), not(sameInstance(terms)));
+    }
+
+    @Test
+    public void testLostConnectionsInvalidateAllLookups() throws Exception {
+        XRedisTermsFetch users = fetch("users");
+        XRedisTermsFetch admins = fetch("admins");
+        fetchService.getTerms(users);
+        fetchService.getTerms(admins);
+        awaitSubscribed("users");
+        awaitSubscribed("admins");
+
+        server.dropSubscribers();
+        awaitInvalidated(users);
+        awaitInvalidated(admins);
+        // subscribed again once reconnected
+        awaitSubscribed("users");
+        awaitSubscribed("admins");
+    }
+
+    @Test
+    public void testKeysAreUnwatchedOnceTheirLookupsLeaveTheCache() throws Exception {
+        XRedisTermsFetch users = fetch("users");
+        XRedisTermsFetch both = fetch("users", "admins");
+        fetchService.getTerms(users);
+        fetchService.getTerms(both);
+        awaitSubscribed("users");
+        awaitSubscribed("admins");
+
+        // no keys are left, the connection is closed
+        fetchService.clear();
+        awaitUnsubscribed("users");
+        awaitUnsubscribed("admins");
+
+        // and opened again for the keys watched next
+        fetchService.getTerms(users);
+        awaitSubscribed("users");
+        assertThat(server.isSubscribed("__keyspace@0__:admins"), equalTo(false));
+    }
+
+    private XRedisTermsFetch fetch(String... keys) {
+        List<String> cmds = new ArrayList<String>();
+        List<List<String>> args = new ArrayList<List<String>>();
+        for (String key : keys) {
+            cmds.add("smembers");
+            args.add(Collections.singletonList(key));
+        }
+        return new XRedisTermsFetch(server.url(), cmds, args, null, null, fetchService, null, null).watch(true);
+    }
+
+    private void awaitSubscribed(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!server.isSubscribed("__keyspace@0__:" + key) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(server.isSubscribed("__keyspace@0__:" + key), equalTo(true));
+    }
+
+    private void awaitUnsubscribed(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.isSubscribed("__keyspace@0__:" + key) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(server.isSubscribed("__keyspace@0__:" + key), equalTo(false));
+    }
+
+    private void awaitInvalidated(XRedisTermsFetch fetch) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (fetchService.getCachedTerms(fetch) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(fetchService.getCachedTerms(fetch), nullValue());
+    }
+}